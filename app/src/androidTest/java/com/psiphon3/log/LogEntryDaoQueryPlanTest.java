@@ -0,0 +1,195 @@
+package com.psiphon3.log;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that every LogEntryDao query is served by one of the log table indexes, and that
+ * existing databases are migrated to the current schema without losing rows.
+ */
+@RunWith(AndroidJUnit4.class)
+public class LogEntryDaoQueryPlanTest {
+    private static final String MIGRATION_TEST_DB = "loggingprovider-migration-test.db";
+
+    private Context mContext;
+    private LoggingContentProvider.LoggingRoomDatabase mDb;
+
+    @Before
+    public void initialize() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDb = LoggingContentProvider.LoggingRoomDatabase.configure(
+                Room.inMemoryDatabaseBuilder(mContext, LoggingContentProvider.LoggingRoomDatabase.class))
+                .allowMainThreadQueries()
+                .build();
+    }
+
+    @After
+    public void cleanup() {
+        mDb.close();
+        mContext.deleteDatabase(MIGRATION_TEST_DB);
+    }
+
+    @Test
+    public void statusLogQueries_UseStatusLogsIndex() {
+        SupportSQLiteDatabase db = mDb.getOpenHelper().getWritableDatabase();
+        assertUsesIndex(db, LogEntryDao.LAST_STATUS_LOG, LogEntry.STATUS_LOGS_INDEX);
+        assertUsesIndex(db, LogEntryDao.NEWEST_STATUS_LOGS, LogEntry.STATUS_LOGS_INDEX);
+        assertUsesIndex(db, LogEntryDao.STATUS_LOGS_BEFORE, LogEntry.STATUS_LOGS_INDEX);
+        assertUsesIndex(db, LogEntryDao.STATUS_LOGS_AT_OR_BEFORE, LogEntry.STATUS_LOGS_INDEX);
+        assertUsesIndex(db, LogEntryDao.STATUS_LOGS_AFTER, LogEntry.STATUS_LOGS_INDEX);
+    }
+
+    @Test
+    public void exportQueries_UseExportIndex() {
+        SupportSQLiteDatabase db = mDb.getOpenHelper().getWritableDatabase();
+        assertUsesIndex(db, LogEntryDao.LOGS_BEFORE_DATE, LogEntry.EXPORT_INDEX);
+        assertUsesIndex(db, LogEntryDao.DELETE_LOGS_BEFORE, LogEntry.EXPORT_INDEX);
+    }
+
+    @Test
+    public void statusLogsIndex_IsPartial() {
+        assertTrue(getIndexSql(mDb.getOpenHelper().getWritableDatabase(), LogEntry.STATUS_LOGS_INDEX)
+                .contains("WHERE"));
+    }
+
+    @Test
+    public void migrationFromVersion3_ConvertsRowsAndCreatesIndexes() {
+        // Schema created by Room for version 3 of the database
+        SQLiteDatabase legacyDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(MIGRATION_TEST_DB), null);
+        legacyDb.execSQL("CREATE TABLE IF NOT EXISTS `log` (`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                "`logjson` TEXT NOT NULL, `is_diagnostic` INTEGER NOT NULL, `priority` INTEGER NOT NULL, " +
+                "`timestamp` INTEGER NOT NULL)");
+        legacyDb.execSQL("CREATE INDEX IF NOT EXISTS `index_log_timestamp` ON `log` (`timestamp`)");
+        legacyDb.execSQL("INSERT INTO log (logjson, is_diagnostic, priority, timestamp) VALUES " +
+                "('{\"stringResourceName\":\"com.psiphon3:string/app_name\",\"sensitivity\":1," +
+                "\"formatArgs\":[\"arg\",42]}', 0, 4, 1000)");
+        legacyDb.execSQL("INSERT INTO log (logjson, is_diagnostic, priority, timestamp) VALUES " +
+                "('{\"msg\":\"diagnostic\",\"data\":{\"count\":3}}', 1, 4, 1001)");
+        legacyDb.setVersion(3);
+        legacyDb.close();
+
+        LoggingContentProvider.LoggingRoomDatabase migratedDb = LoggingContentProvider.LoggingRoomDatabase.configure(
+                Room.databaseBuilder(mContext, LoggingContentProvider.LoggingRoomDatabase.class, MIGRATION_TEST_DB))
+                .allowMainThreadQueries()
+                .build();
+        try {
+            SupportSQLiteDatabase db = migratedDb.getOpenHelper().getWritableDatabase();
+            try (Cursor cursor = migratedDb.getLastStatusLogEntry()) {
+                assertTrue(cursor.moveToFirst());
+                LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
+                assertEquals(1000, logEntry.getTimestamp());
+                LogRecord logRecord = LogRecord.decode(logEntry.getRecord());
+                assertNotNull(logRecord);
+                assertEquals(MyLog.Sensitivity.NOT_SENSITIVE, logRecord.getSensitivity());
+                assertArrayEquals(new Object[]{"arg", 42}, logRecord.getFormatArgs());
+                assertNotEquals(0, logRecord.getResourceId(mContext));
+            }
+            try (Cursor cursor = migratedDb.getLogsBeforeDate(2000)) {
+                assertTrue(cursor.moveToFirst());
+                LogRecord logRecord = LogRecord.decode(LoggingContentProvider.convertRows(cursor).getRecord());
+                assertNotNull(logRecord);
+                assertEquals("diagnostic:{\"count\":3}", logRecord.getDiagnosticMessage());
+            }
+            assertTrue(getIndexSql(db, LogEntry.STATUS_LOGS_INDEX).contains("WHERE"));
+            assertFalse(getIndexSql(db, LogEntry.EXPORT_INDEX).isEmpty());
+            assertFalse(getIndexSql(db, LogEntry.EXPORT_INDEX).contains("record"));
+            assertEquals("", getIndexSql(db, "index_log_timestamp"));
+            assertUsesIndex(db, LogEntryDao.STATUS_LOGS_BEFORE, LogEntry.STATUS_LOGS_INDEX);
+        } finally {
+            migratedDb.close();
+        }
+    }
+
+    @Test
+    public void migrationFromVersion3_CountsDroppedRows() {
+        SupportSQLiteDatabase db = mDb.getOpenHelper().getWritableDatabase();
+        db.execSQL("DROP TABLE `log`");
+        db.execSQL("CREATE TABLE `log` (`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                "`logjson` TEXT NOT NULL, `is_diagnostic` INTEGER NOT NULL, `priority` INTEGER NOT NULL, " +
+                "`timestamp` INTEGER NOT NULL)");
+        db.execSQL("INSERT INTO log (logjson, is_diagnostic, priority, timestamp) VALUES " +
+                "('{\"msg\":\"diagnostic\"}', 1, 4, 1000)");
+        db.execSQL("INSERT INTO log (logjson, is_diagnostic, priority, timestamp) VALUES " +
+                "('not json', 1, 4, 1001)");
+        db.execSQL("INSERT INTO log (logjson, is_diagnostic, priority, timestamp) VALUES " +
+                "('{\"msg\":', 0, 4, 1002)");
+
+        assertEquals(2, LoggingContentProvider.LoggingRoomDatabase.convertLegacyLogs(db));
+        try (Cursor cursor = db.query("SELECT timestamp FROM log")) {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1000, cursor.getLong(0));
+        }
+        assertTrue(getIndexSql(db, LogEntry.STATUS_LOGS_INDEX).contains("WHERE"));
+    }
+
+    @Test
+    public void downgrade_RecreatesDatabase() {
+        SQLiteDatabase newerDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(MIGRATION_TEST_DB), null);
+        newerDb.execSQL("CREATE TABLE `log` (`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `newer` TEXT)");
+        newerDb.setVersion(100);
+        newerDb.close();
+
+        LoggingContentProvider.LoggingRoomDatabase db = LoggingContentProvider.LoggingRoomDatabase.configure(
+                Room.databaseBuilder(mContext, LoggingContentProvider.LoggingRoomDatabase.class, MIGRATION_TEST_DB))
+                .allowMainThreadQueries()
+                .build();
+        try {
+            try (Cursor cursor = db.getLastStatusLogEntry()) {
+                assertFalse(cursor.moveToFirst());
+            }
+            assertTrue(getIndexSql(db.getOpenHelper().getWritableDatabase(), LogEntry.STATUS_LOGS_INDEX)
+                    .contains("WHERE"));
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void assertUsesIndex(SupportSQLiteDatabase db, String query, String indexName) {
+        // Bind a dummy value to every named parameter
+        String sql = query.replaceAll(":\\w+", "?");
+        Object[] args = new Object[sql.length() - sql.replace("?", "").length()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = 0;
+        }
+        List<String> plan = new ArrayList<>();
+        try (Cursor cursor = db.query("EXPLAIN QUERY PLAN " + sql, args)) {
+            int detailIndex = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailIndex));
+            }
+        }
+        boolean usesIndex = false;
+        for (String step : plan) {
+            // A full table scan reads "SCAN log" or "SCAN TABLE log" without an index
+            assertFalse("Table scan in " + plan + " for " + query, step.matches("SCAN (TABLE )?log\\s*"));
+            usesIndex |= step.contains("INDEX " + indexName);
+        }
+        assertTrue("Expected " + indexName + " in " + plan + " for " + query, usesIndex);
+    }
+
+    private static String getIndexSql(SupportSQLiteDatabase db, String indexName) {
+        try (Cursor cursor = db.query("SELECT sql FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new Object[]{indexName})) {
+            return cursor.moveToFirst() ? cursor.getString(0) : "";
+        }
+    }
+}
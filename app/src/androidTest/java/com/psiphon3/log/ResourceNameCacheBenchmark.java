@@ -0,0 +1,97 @@
+package com.psiphon3.log;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.psiphon3.R;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the per row cost of the resource lookups done by the feedback export of 10k status
+ * logs, with and without ResourceNameCache. Results are logged with the "Benchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ResourceNameCacheBenchmark {
+    private static final String TAG = "Benchmark";
+    private static final int ROWS = 10000;
+    private static final int DISTINCT_RESOURCES = 50;
+
+    private Context mContext;
+    private String[] mRowNames;
+
+    @Before
+    public void initialize() throws IllegalAccessException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        List<String> names = new ArrayList<>();
+        for (Field field : R.string.class.getFields()) {
+            if (names.size() == DISTINCT_RESOURCES) {
+                break;
+            }
+            names.add(mContext.getResources().getResourceEntryName(field.getInt(null)));
+        }
+        mRowNames = new String[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            mRowNames[i] = names.get(i % names.size());
+        }
+        ResourceNameCache.invalidate();
+    }
+
+    @Test
+    public void export10kRows_CachedLookupsAreFaster() {
+        // Warm up both paths
+        long uncachedChecksum = runUncached();
+        long cachedChecksum = runCached();
+        assertEquals(uncachedChecksum, cachedChecksum);
+
+        long start = System.nanoTime();
+        runUncached();
+        long uncachedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runCached();
+        long cachedNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "resource lookups per row: uncached " + uncachedNanos / ROWS + " ns, cached " +
+                cachedNanos / ROWS + " ns");
+        assertTrue(cachedNanos < uncachedNanos);
+    }
+
+    @Test
+    public void invalidate_LookupsStillResolve() {
+        int id = ResourceNameCache.getIdentifier(mContext, mRowNames[0]);
+        ResourceNameCache.invalidate();
+        assertEquals(id, ResourceNameCache.getIdentifier(mContext, mRowNames[0]));
+        assertEquals(mRowNames[0], ResourceNameCache.getName(mContext, id));
+        assertEquals(0, ResourceNameCache.getIdentifier(mContext, "no_such_resource_name"));
+    }
+
+    private long runUncached() {
+        long checksum = 0;
+        for (String name : mRowNames) {
+            int id = mContext.getResources().getIdentifier(name, "string", mContext.getPackageName());
+            checksum += id + mContext.getResources().getResourceEntryName(id).length();
+        }
+        return checksum;
+    }
+
+    private long runCached() {
+        long checksum = 0;
+        for (String name : mRowNames) {
+            int id = ResourceNameCache.getIdentifier(mContext, name);
+            checksum += id + ResourceNameCache.getEntryName(mContext, id).length();
+        }
+        return checksum;
+    }
+}
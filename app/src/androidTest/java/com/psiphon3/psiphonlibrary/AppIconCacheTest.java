@@ -0,0 +1,37 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class AppIconCacheTest {
+
+    @Test
+    public void load_CachesDownscaledIcon() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        AppIconCache cache = AppIconCache.getInstance(context);
+        int expectedSize = Math.round(48 * context.getResources().getDisplayMetrics().density);
+
+        Bitmap icon = cache.load(context.getPackageName()).blockingGet();
+
+        assertEquals(expectedSize, icon.getWidth());
+        assertEquals(expectedSize, icon.getHeight());
+        assertSame(icon, cache.get(context.getPackageName()));
+        assertSame(icon, cache.load(context.getPackageName()).blockingGet());
+    }
+
+    @Test
+    public void load_UnknownPackage_UsesDefaultIcon() {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        assertNotNull(AppIconCache.getInstance(context).load("com.example.not.installed").blockingGet());
+    }
+}
@@ -0,0 +1,220 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the throughput of extracting and verifying a synthetic signed upgrade package, with
+ * the streaming verifier and with the previous decode and re-encode implementation. Results are
+ * logged with the "Benchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class AuthenticatedDataPackageBenchmark {
+    private static final String TAG = "Benchmark";
+    private static final int DATA_SIZE = 16 * 1024 * 1024;
+    private static final int RUNS = 3;
+
+    private static KeyPair sKeyPair;
+    private static String sPublicKey;
+    private static byte[] sData;
+    private static byte[] sPackage;
+
+    @BeforeClass
+    public static void createPackage() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        sKeyPair = generator.generateKeyPair();
+        sPublicKey = Base64.encodeToString(sKeyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        sData = new byte[DATA_SIZE];
+        new Random(1).nextBytes(sData);
+        sPackage = createPackage(sData, Base64.NO_WRAP);
+    }
+
+    private static byte[] createPackage(byte[] data, int base64Flags) throws Exception {
+        String encodedData = Base64.encodeToString(data, Base64.NO_WRAP);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(sKeyPair.getPrivate());
+        signer.update(encodedData.getBytes());
+        String publicKeyDigest = Base64.encodeToString(
+                MessageDigest.getInstance("SHA256").digest(sPublicKey.getBytes()), Base64.NO_WRAP);
+        // Wrapped lines are escaped line breaks in the JSON value
+        String packageData = Base64.encodeToString(data, base64Flags).replace("\n", "\\n");
+        return ("{\"data\":\"" + packageData + "\"," +
+                "\"signingPublicKeyDigest\":\"" + publicKeyDigest + "\"," +
+                "\"signature\":\"" + Base64.encodeToString(signer.sign(), Base64.NO_WRAP) + "\"}")
+                .getBytes();
+    }
+
+    @Test
+    public void extractAndVerify_Throughput() throws Exception {
+        // Warm up both paths
+        ByteArrayOutputStream legacyOutput = new ByteArrayOutputStream(DATA_SIZE);
+        assertTrue(runLegacy(legacyOutput));
+        assertArrayEquals(sData, legacyOutput.toByteArray());
+        ByteArrayOutputStream output = new ByteArrayOutputStream(DATA_SIZE);
+        run(output);
+        assertArrayEquals(sData, output.toByteArray());
+
+        long legacyNanos = Long.MAX_VALUE;
+        long nanos = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            runLegacy(new NullOutputStream());
+            legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            run(new NullOutputStream());
+            nanos = Math.min(nanos, System.nanoTime() - start);
+        }
+
+        Log.i(TAG, "authenticated data package extraction: re-encoding " +
+                megabytesPerSecond(legacyNanos) + " MB/s, streaming " +
+                megabytesPerSecond(nanos) + " MB/s");
+    }
+
+    @Test
+    public void extractAndVerify_WrappedBase64() throws Exception {
+        byte[] data = Arrays.copyOf(sData, 100001);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        AuthenticatedDataPackage.extractAndVerifyData(sPublicKey,
+                new ByteArrayInputStream(createPackage(data, Base64.DEFAULT)), true, output);
+        assertArrayEquals(data, output.toByteArray());
+    }
+
+    @Test(expected = AuthenticatedDataPackage.AuthenticatedDataPackageException.class)
+    public void extractAndVerify_ModifiedData_Fails() throws Exception {
+        byte[] modified = Arrays.copyOf(sPackage, sPackage.length);
+        // First character of the data value
+        modified[9] = (byte) (modified[9] == 'A' ? 'B' : 'A');
+        AuthenticatedDataPackage.extractAndVerifyData(sPublicKey,
+                new ByteArrayInputStream(modified), true, new NullOutputStream());
+    }
+
+    @Test(expected = AuthenticatedDataPackage.AuthenticatedDataPackageException.class)
+    public void extractAndVerify_EscapedNonLatin1Character_Fails() throws Exception {
+        byte[] valid = createPackage(Arrays.copyOf(sData, 1000), Base64.NO_WRAP);
+        // An escaped character beyond the Base64 decoding table in front of the data value
+        byte[] prefix = "{\"data\":\"\\u0100".getBytes();
+        byte[] modified = Arrays.copyOf(prefix, prefix.length + valid.length - 9);
+        System.arraycopy(valid, 9, modified, prefix.length, valid.length - 9);
+        AuthenticatedDataPackage.extractAndVerifyData(sPublicKey,
+                new ByteArrayInputStream(modified), true, new NullOutputStream());
+    }
+
+    @Test
+    public void extractAndVerify_AfterFailure_ReusedVerifierSucceeds() throws Exception {
+        byte[] data = Arrays.copyOf(sData, 1000);
+        byte[] valid = createPackage(data, Base64.NO_WRAP);
+        byte[] truncated = Arrays.copyOf(valid, 500);
+        try {
+            AuthenticatedDataPackage.extractAndVerifyData(sPublicKey,
+                    new ByteArrayInputStream(truncated), true, new NullOutputStream());
+            fail("truncated package verified");
+        } catch (AuthenticatedDataPackage.AuthenticatedDataPackageException e) {
+            // expected, the verifier of this thread was left with partial data
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        AuthenticatedDataPackage.extractAndVerifyData(sPublicKey,
+                new ByteArrayInputStream(valid), true, output);
+        assertArrayEquals(data, output.toByteArray());
+    }
+
+    private static long megabytesPerSecond(long nanos) {
+        return (long) (sPackage.length / (nanos / 1e9) / (1024 * 1024));
+    }
+
+    private static void run(OutputStream output) throws Exception {
+        AuthenticatedDataPackage.extractAndVerifyData(
+                sPublicKey, new ByteArrayInputStream(sPackage), true, output);
+    }
+
+    // The previous implementation: the data value is decoded by Jackson and re-encoded for the
+    // verifier. Checks the signature only, the digest check is the same for both.
+    private static boolean runLegacy(final OutputStream output) throws Exception {
+        final Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(sKeyPair.getPublic());
+        final OutputStream signatureStream = new Base64OutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    verifier.update(b, off, len);
+                } catch (SignatureException e) {
+                    throw new IOException(e);
+                }
+            }
+        }, Base64.NO_WRAP);
+        OutputStream verifyingStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+                signatureStream.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                output.write(b, off, len);
+                signatureStream.write(b, off, len);
+            }
+        };
+
+        String signature = null;
+        JsonParser parser = new JsonFactory().createParser(new ByteArrayInputStream(sPackage));
+        try {
+            parser.nextToken();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                parser.nextToken();
+                if (fieldName.equals("data")) {
+                    parser.readBinaryValue(Base64Variants.MIME, verifyingStream);
+                    signatureStream.close();
+                } else if (fieldName.equals("signature")) {
+                    signature = parser.getValueAsString();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return verifier.verify(Base64.decode(signature, Base64.NO_WRAP));
+    }
+
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
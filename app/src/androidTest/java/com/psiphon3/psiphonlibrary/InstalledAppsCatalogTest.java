@@ -0,0 +1,86 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class InstalledAppsCatalogTest {
+
+    private Context mContext;
+    private File mFile;
+
+    @Before
+    public void initialize() {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mFile = new File(mContext.getCacheDir(), "installed_apps_catalog_test.json");
+        mFile.delete();
+    }
+
+    @After
+    public void cleanup() {
+        mFile.delete();
+    }
+
+    @Test
+    public void getEntries_ContainsSelfWithInternet() {
+        InstalledAppsCatalog catalog = new InstalledAppsCatalog(mContext, mFile);
+        InstalledAppsCatalog.Entry self = toMap(catalog.getEntries()).get(mContext.getPackageName());
+
+        assertNotNull(self);
+        assertTrue(self.hasInternet);
+        assertNotNull(self.label);
+        assertTrue(self.lastUpdateTime > 0);
+        assertTrue(mFile.exists());
+    }
+
+    @Test
+    public void getEntries_ReloadsPersistedCatalog() {
+        Map<String, InstalledAppsCatalog.Entry> first =
+                toMap(new InstalledAppsCatalog(mContext, mFile).getEntries());
+
+        // A new instance stands in for a new process reading the file
+        Map<String, InstalledAppsCatalog.Entry> second =
+                toMap(new InstalledAppsCatalog(mContext, mFile).getEntries());
+
+        assertEquals(first.keySet(), second.keySet());
+        for (InstalledAppsCatalog.Entry entry : first.values()) {
+            InstalledAppsCatalog.Entry reloaded = second.get(entry.packageId);
+            assertEquals(entry.label, reloaded.label);
+            assertEquals(entry.versionCode, reloaded.versionCode);
+            assertEquals(entry.hasInternet, reloaded.hasInternet);
+            assertEquals(entry.lastUpdateTime, reloaded.lastUpdateTime);
+        }
+    }
+
+    @Test
+    public void getEntries_IgnoresCorruptFile() throws Exception {
+        FileOutputStream out = new FileOutputStream(mFile);
+        out.write("{not json".getBytes());
+        out.close();
+
+        assertFalse(new InstalledAppsCatalog(mContext, mFile).getEntries().isEmpty());
+    }
+
+    private static Map<String, InstalledAppsCatalog.Entry> toMap(List<InstalledAppsCatalog.Entry> entries) {
+        Map<String, InstalledAppsCatalog.Entry> map = new HashMap<>();
+        for (InstalledAppsCatalog.Entry entry : entries) {
+            map.put(entry.packageId, entry);
+        }
+        return map;
+    }
+}
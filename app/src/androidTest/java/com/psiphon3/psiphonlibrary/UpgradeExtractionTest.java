@@ -0,0 +1,228 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+import android.util.Base64;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class UpgradeExtractionTest {
+    private static final int DATA_SIZE = 10 * 1024 * 1024;
+    private static final int WRITE_SIZE = 8000;
+
+    private Context mContext;
+    private File mDownloadedFile;
+    private File mOutputFile;
+    private UpgradeManager.ExtractionCheckpoint mCheckpoint;
+    private byte[] mData;
+
+    @Before
+    public void initialize() throws IOException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mDownloadedFile = new File(mContext.getCacheDir(), "upgrade_extraction_test.download");
+        FileOutputStream download = new FileOutputStream(mDownloadedFile);
+        download.write(new byte[]{1, 2, 3});
+        download.close();
+        mOutputFile = new File(mContext.getCacheDir(), "upgrade_extraction_test.apk");
+        mCheckpoint = new UpgradeManager.ExtractionCheckpoint(mContext, mDownloadedFile);
+        mCheckpoint.delete();
+        mData = new byte[DATA_SIZE];
+        new Random(1).nextBytes(mData);
+    }
+
+    @After
+    public void cleanUp() {
+        mCheckpoint.delete();
+        mDownloadedFile.delete();
+        mOutputFile.delete();
+        new UpgradeManager.UnverifiedUpgradeFile(mContext).delete();
+        new UpgradeManager.VerifiedUpgradeFile(mContext).delete();
+    }
+
+    @Test
+    public void extractAndVerify_OutOfSpace_ResumesToVerified() throws Exception {
+        String publicKey = writeSignedDownload();
+
+        // Runs out of space after 9 MB of the extracted data
+        UpgradeManager.DownloadedUpgradeFile interrupted =
+                new UpgradeManager.DownloadedUpgradeFile(mContext, mDownloadedFile, publicKey) {
+                    @Override
+                    OutputStream createDestination(FileChannel channel, File file,
+                                                   UpgradeManager.ExtractionCheckpoint checkpoint, long resumeOffset) {
+                        return new UpgradeManager.CheckpointedOutputStream(channel, file, checkpoint, resumeOffset) {
+                            private long written;
+
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                if (written + len > 9 * 1024 * 1024) {
+                                    throw new UpgradeManager.OutOfSpaceException(
+                                            new IOException("write failed: ENOSPC (No space left on device)"));
+                                }
+                                written += len;
+                                super.write(b, off, len);
+                            }
+                        };
+                    }
+                };
+        assertEquals(UpgradeManager.ExtractionResult.INTERRUPTED, interrupted.extractAndVerify(null));
+        assertTrue(mDownloadedFile.exists());
+        UpgradeManager.ExtractionCheckpoint checkpoint =
+                new UpgradeManager.ExtractionCheckpoint(mContext, mDownloadedFile);
+        long resumeOffset = checkpoint.load();
+        assertTrue(resumeOffset > 0);
+        assertEquals(1, checkpoint.getInterruptions());
+        assertTrue(new UpgradeManager.UnverifiedUpgradeFile(mContext).getSize() >= resumeOffset);
+
+        // Resumes through the unverified file opened for appending
+        UpgradeManager.DownloadedUpgradeFile resumed =
+                new UpgradeManager.DownloadedUpgradeFile(mContext, mDownloadedFile, publicKey);
+        assertEquals(UpgradeManager.ExtractionResult.VERIFIED, resumed.extractAndVerify(null));
+        assertEquals(0, new UpgradeManager.ExtractionCheckpoint(mContext, mDownloadedFile).load());
+        assertFalse(new UpgradeManager.UnverifiedUpgradeFile(mContext).exists());
+
+        File verifiedFile = new UpgradeManager.VerifiedUpgradeFile(mContext).getFile();
+        assertTrue(Arrays.equals(mData, readFully(verifiedFile)));
+    }
+
+    @Test
+    public void interruptedExtraction_ResumesFromCheckpoint() throws IOException {
+        // Interrupted after 9 MB, without closing the stream
+        UpgradeManager.CheckpointedOutputStream output = open(0);
+        write(output, 9 * 1024 * 1024);
+
+        long resumeOffset = mCheckpoint.load();
+        assertTrue(resumeOffset > 0 && resumeOffset <= 9 * 1024 * 1024);
+        assertTrue(mOutputFile.length() >= resumeOffset);
+
+        // Data up to the checkpoint is skipped, not written again
+        output = open(resumeOffset);
+        write(output, DATA_SIZE);
+        output.close();
+
+        assertOutputIsData();
+    }
+
+    @Test
+    public void resumedExtraction_ModifiedFile_IsRewritten() throws IOException {
+        UpgradeManager.CheckpointedOutputStream output = open(0);
+        write(output, 9 * 1024 * 1024);
+        long resumeOffset = mCheckpoint.load();
+        assertTrue(resumeOffset > 1000);
+
+        // Corrupted after the checkpoint was saved
+        RandomAccessFile file = new RandomAccessFile(mOutputFile, "rw");
+        file.seek(1000);
+        file.write(~mData[1000]);
+        file.close();
+
+        output = open(resumeOffset);
+        write(output, DATA_SIZE);
+        output.close();
+
+        assertOutputIsData();
+    }
+
+    @Test
+    public void checkpoint_Interruptions_AreBounded() throws IOException {
+        mCheckpoint.save(1234);
+        for (int i = 0; i < UpgradeManager.ExtractionCheckpoint.MAX_INTERRUPTIONS; i++) {
+            UpgradeManager.ExtractionCheckpoint checkpoint =
+                    new UpgradeManager.ExtractionCheckpoint(mContext, mDownloadedFile);
+            assertEquals(1234, checkpoint.load());
+            assertEquals(i, checkpoint.getInterruptions());
+            assertTrue(checkpoint.saveInterruption());
+        }
+        UpgradeManager.ExtractionCheckpoint checkpoint =
+                new UpgradeManager.ExtractionCheckpoint(mContext, mDownloadedFile);
+        assertEquals(1234, checkpoint.load());
+        assertFalse(checkpoint.saveInterruption());
+    }
+
+    @Test
+    public void checkpoint_OtherDownload_IsIgnored() throws IOException {
+        mCheckpoint.save(1234);
+        assertEquals(1234, mCheckpoint.load());
+
+        FileOutputStream download = new FileOutputStream(mDownloadedFile, true);
+        download.write(4);
+        download.close();
+        assertEquals(0, new UpgradeManager.ExtractionCheckpoint(mContext, mDownloadedFile).load());
+    }
+
+    private UpgradeManager.CheckpointedOutputStream open(long resumeOffset) throws IOException {
+        FileChannel channel = new RandomAccessFile(mOutputFile, "rw").getChannel();
+        channel.truncate(resumeOffset);
+        channel.position(resumeOffset);
+        return new UpgradeManager.CheckpointedOutputStream(channel, mOutputFile, mCheckpoint, resumeOffset);
+    }
+
+    /**
+     * Writes mData as a gzipped upgrade package signed with a new key to mDownloadedFile.
+     * @return the public key of the signature
+     */
+    private String writeSignedDownload() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String publicKey = Base64.encodeToString(keyPair.getPublic().getEncoded(), Base64.NO_WRAP);
+        String encodedData = Base64.encodeToString(mData, Base64.NO_WRAP);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(encodedData.getBytes());
+        String publicKeyDigest = Base64.encodeToString(
+                MessageDigest.getInstance("SHA256").digest(publicKey.getBytes()), Base64.NO_WRAP);
+
+        GZIPOutputStream download = new GZIPOutputStream(new FileOutputStream(mDownloadedFile));
+        download.write(("{\"data\":\"" + encodedData + "\"," +
+                "\"signingPublicKeyDigest\":\"" + publicKeyDigest + "\"," +
+                "\"signature\":\"" + Base64.encodeToString(signer.sign(), Base64.NO_WRAP) + "\"}")
+                .getBytes());
+        download.close();
+        return publicKey;
+    }
+
+    private void assertOutputIsData() throws IOException {
+        assertTrue(Arrays.equals(mData, readFully(mOutputFile)));
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        assertEquals(DATA_SIZE, file.length());
+        byte[] written = new byte[DATA_SIZE];
+        FileInputStream input = new FileInputStream(file);
+        int read = 0;
+        while (read < DATA_SIZE) {
+            read += input.read(written, read, DATA_SIZE - read);
+        }
+        input.close();
+        return written;
+    }
+
+    private void write(UpgradeManager.CheckpointedOutputStream output, int length) throws IOException {
+        for (int offset = 0; offset < length; offset += WRITE_SIZE) {
+            output.write(mData, offset, Math.min(WRITE_SIZE, length - offset));
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class VerifiedUpgradeManifestTest {
+    private Context mContext;
+    private File mApk;
+
+    @Before
+    public void initialize() throws IOException {
+        mContext = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        mApk = new File(mContext.getCacheDir(), "verified_upgrade_manifest_test.apk");
+        FileOutputStream apk = new FileOutputStream(mApk);
+        apk.write(new byte[100000]);
+        apk.close();
+        UpgradeManager.VerifiedUpgradeManifest.delete(mContext);
+    }
+
+    @After
+    public void cleanUp() {
+        UpgradeManager.VerifiedUpgradeManifest.delete(mContext);
+        mApk.delete();
+    }
+
+    @Test
+    public void savedManifest_MatchesFile() {
+        assertNull(UpgradeManager.VerifiedUpgradeManifest.read(mContext));
+
+        UpgradeManager.VerifiedUpgradeManifest.save(mContext, mApk, 42);
+        UpgradeManager.VerifiedUpgradeManifest manifest = UpgradeManager.VerifiedUpgradeManifest.read(mContext);
+        assertNotNull(manifest);
+        assertEquals(42, manifest.getVersionCode());
+        assertTrue(manifest.matches(mApk));
+    }
+
+    @Test
+    public void touchedFile_MatchesContentOnly() {
+        UpgradeManager.VerifiedUpgradeManifest.save(mContext, mApk, 42);
+        assertTrue(mApk.setLastModified(mApk.lastModified() - 10000));
+
+        UpgradeManager.VerifiedUpgradeManifest manifest = UpgradeManager.VerifiedUpgradeManifest.read(mContext);
+        assertFalse(manifest.matches(mApk));
+        assertTrue(manifest.matchesContent(mApk));
+    }
+
+    @Test
+    public void modifiedFile_DoesNotMatch() throws IOException {
+        UpgradeManager.VerifiedUpgradeManifest.save(mContext, mApk, 42);
+        FileOutputStream apk = new FileOutputStream(mApk, true);
+        apk.write(1);
+        apk.close();
+
+        UpgradeManager.VerifiedUpgradeManifest manifest = UpgradeManager.VerifiedUpgradeManifest.read(mContext);
+        assertFalse(manifest.matches(mApk));
+        assertFalse(manifest.matchesContent(mApk));
+    }
+}
@@ -32,12 +32,10 @@ import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.psiphon3.log.LogEntry;
-import com.psiphon3.log.MyLog;
+import com.psiphon3.log.LogRecord;
 import com.psiphon3.psiphonlibrary.Utils;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import java.util.Arrays;
 import java.util.Date;
 
 public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.LogEntryViewHolder> {
@@ -61,19 +59,14 @@ public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.
         if (item == null) {
             return;
         }
+        LogRecord logRecord = LogRecord.decode(item.getRecord());
+        if (logRecord == null) {
+            return;
+        }
         if (item.isDiagnostic()) {
-            try {
-                JSONObject jsonObj = new JSONObject(item.getLogJson());
-                Date timestamp = new Date(item.getTimestamp());
-                String msg = jsonObj.getString("msg");
-                JSONObject data = jsonObj.optJSONObject("data");
-                String msgStr = data == null ? msg : msg + ":" + data.toString();
-                holder.bind(timestamp, msgStr);
-            } catch (JSONException ignored) {
-            }
+            holder.bind(new Date(item.getTimestamp()), logRecord.getDiagnosticMessage());
         } else {
-                String msg = MyLog.getStatusLogMessageForDisplay(item.getLogJson(), context);
-                holder.bind(new Date(item.getTimestamp()), msg);
+            holder.bind(new Date(item.getTimestamp()), logRecord.getStatusMessage(context));
         }
     }
 
@@ -111,7 +104,7 @@ public class LogsListAdapter extends PagedListAdapter<LogEntry, LogsListAdapter.
         @Override
         public boolean areContentsTheSame(@NonNull LogEntry oldItem,
                                           @NonNull LogEntry newItem) {
-            return oldItem.getLogJson().equals(newItem.getLogJson()) &&
+            return Arrays.equals(oldItem.getRecord(), newItem.getRecord()) &&
                     (oldItem.getTimestamp() == newItem.getTimestamp());
         }
     }
@@ -126,7 +126,7 @@ public class MainActivity extends LocalizedActivities.AppCompatActivity {
         setContentView(R.layout.main_activity);
 
         EmbeddedValues.initialize(getApplicationContext());
-        multiProcessPreferences = new AppPreferences(this);
+        multiProcessPreferences = AppPreferences.getInstance(this);
 
         viewModel = new ViewModelProvider(this,
                 new ViewModelProvider.AndroidViewModelFactory(getApplication()))
@@ -57,7 +57,7 @@ public class OptionsTabFragment extends PsiphonPreferenceFragmentCompat {
         addPreferencesFromResource(R.xml.settings_preferences_screen);
 
         Context context = getPreferenceManager().getContext();
-        multiProcessPreferences = new AppPreferences(context);
+        multiProcessPreferences = AppPreferences.getInstance(context);
 
         regionListPreference = findPreference(getContext().getString(R.string.regionPreferenceKey));
         regionListPreference.setOnRegionSelectedListener(regionCode -> {
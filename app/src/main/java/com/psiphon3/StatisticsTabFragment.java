@@ -26,10 +26,10 @@ import org.achartengine.renderer.XYSeriesRenderer;
 import java.util.ArrayList;
 
 import io.reactivex.android.schedulers.AndroidSchedulers;
-import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
 
 public class StatisticsTabFragment extends Fragment {
-    private CompositeDisposable compositeDisposable = new CompositeDisposable();
+    private Disposable dataStatsDisposable;
 
     private TextView elapsedConnectionTimeView;
     private TextView totalSentView;
@@ -51,10 +51,25 @@ public class StatisticsTabFragment extends Fragment {
         fastReceivedGraph.update(dataTransferStats.getFastReceivedSeries());
     }
 
+    // Only subscribe to the data stats while the tab is visible, the tunnel service stops
+    // pushing them when there are no subscribers.
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-        compositeDisposable.dispose();
+    public void onResume() {
+        super.onResume();
+        dataStatsDisposable = ((LocalizedActivities.AppCompatActivity) requireActivity())
+                .getTunnelServiceInteractor().dataStatsFlowable()
+                .startWith(Boolean.FALSE)
+                .observeOn(AndroidSchedulers.mainThread())
+                .doOnNext(this::updateStatisticsUICallback)
+                .subscribe();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (dataStatsDisposable != null) {
+            dataStatsDisposable.dispose();
+        }
     }
 
     @Override
@@ -69,13 +84,6 @@ public class StatisticsTabFragment extends Fragment {
         slowReceivedGraph = new DataTransferGraph(fragmentView, R.id.slowReceivedGraph);
         fastSentGraph = new DataTransferGraph(fragmentView, R.id.fastSentGraph);
         fastReceivedGraph = new DataTransferGraph(fragmentView, R.id.fastReceivedGraph);
-
-        compositeDisposable.add(((LocalizedActivities.AppCompatActivity) requireActivity())
-                .getTunnelServiceInteractor().dataStatsFlowable()
-                .startWith(Boolean.FALSE)
-                .observeOn(AndroidSchedulers.mainThread())
-                .doOnNext(this::updateStatisticsUICallback)
-                .subscribe());
     }
 
     @Nullable
@@ -26,16 +26,28 @@ import androidx.room.Entity;
 import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
-@Entity(tableName = "log", indices = {@Index("timestamp")})
+// LoggingContentProvider.LoggingRoomDatabase recreates the status logs index as a partial index
+// over the rows with is_diagnostic = 0, which Room cannot declare but accepts since it only
+// validates index names and columns.
+@Entity(tableName = "log", indices = {
+        @Index(value = {"timestamp", "_ID"}, name = LogEntry.STATUS_LOGS_INDEX),
+        @Index(value = {"timestamp", "is_diagnostic", "priority"}, name = LogEntry.EXPORT_INDEX)})
 public class LogEntry {
+    // Serves all status log queries
+    static final String STATUS_LOGS_INDEX = "index_log_status_timestamp__ID";
+    // Serves the feedback export and log maintenance queries by timestamp range. The record is
+    // deliberately not included, a covering index would store every log body twice.
+    static final String EXPORT_INDEX = "index_log_timestamp_is_diagnostic_priority";
+
     @PrimaryKey(autoGenerate = true)
     @ColumnInfo(name = "_ID")
     @NonNull
     private int id;
 
-    @ColumnInfo(name = "logjson")
+    // Encoded with LogRecord
+    @ColumnInfo(name = "record")
     @NonNull
-    private String logJson;
+    private byte[] record;
 
     @ColumnInfo(name = "is_diagnostic")
     private boolean isDiagnostic;
@@ -47,8 +59,8 @@ public class LogEntry {
     @ColumnInfo(name = "timestamp")
     private long timestamp;
 
-    public LogEntry(@NonNull String logJson, boolean isDiagnostic, int priority, long timestamp) {
-        this.logJson = logJson;
+    public LogEntry(@NonNull byte[] record, boolean isDiagnostic, int priority, long timestamp) {
+        this.record = record;
         this.isDiagnostic = isDiagnostic;
         this.priority = priority;
         this.timestamp = timestamp;
@@ -63,12 +75,12 @@ public class LogEntry {
     }
 
     @NonNull
-    public String getLogJson() {
-        return logJson;
+    public byte[] getRecord() {
+        return record;
     }
 
-    public void setLogJson(@NonNull String logJson) {
-        this.logJson = logJson;
+    public void setRecord(@NonNull byte[] record) {
+        this.record = record;
     }
 
     public int getPriority() {
@@ -99,7 +111,7 @@ public class LogEntry {
     public String toString() {
         return "LogEntry{" +
                 "id=" + id +
-                ", logJson='" + logJson + '\'' +
+                ", record=" + record.length + " bytes" +
                 ", isDiagnostic=" + isDiagnostic +
                 ", priority=" + priority +
                 ", timestamp=" + timestamp +
@@ -29,18 +29,49 @@ import io.reactivex.Flowable;
 
 @Dao
 public abstract class LogEntryDao {
-    @Query("SELECT COUNT(*) FROM log WHERE is_diagnostic = 0")
-    abstract Cursor getStatusLogsCount();
+    // Queries are kept in constants so that their plans can be checked by tests.
+    static final String LOGS_BEFORE_DATE =
+            "SELECT * FROM log WHERE timestamp < :beforeDateMillis ORDER BY timestamp DESC";
+    static final String DELETE_LOGS_BEFORE =
+            "DELETE FROM log WHERE timestamp < :beforeDateMillis";
+    static final String LAST_STATUS_LOG =
+            "SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC, _ID DESC LIMIT 1";
+    // Status logs are paged by the (timestamp, _ID) key of the last loaded row rather than by
+    // offset so that every page is a range scan of the status logs index.
+    // The key comparisons are spelled out because row values need SQLite 3.15.
+    static final String NEWEST_STATUS_LOGS =
+            "SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC, _ID DESC LIMIT :limit";
+    static final String STATUS_LOGS_BEFORE =
+            "SELECT * FROM log WHERE is_diagnostic = 0 AND timestamp <= :timestamp " +
+                    "AND (timestamp < :timestamp OR _ID < :id) ORDER BY timestamp DESC, _ID DESC LIMIT :limit";
+    static final String STATUS_LOGS_AT_OR_BEFORE =
+            "SELECT * FROM log WHERE is_diagnostic = 0 AND timestamp <= :timestamp " +
+                    "AND (timestamp < :timestamp OR _ID <= :id) ORDER BY timestamp DESC, _ID DESC LIMIT :limit";
+    static final String STATUS_LOGS_AFTER =
+            "SELECT * FROM log WHERE is_diagnostic = 0 AND timestamp >= :timestamp " +
+                    "AND (timestamp > :timestamp OR _ID > :id) ORDER BY timestamp ASC, _ID ASC LIMIT :limit";
 
-    @Query("SELECT * FROM log WHERE timestamp < :beforeDateMillis ORDER BY timestamp DESC")
+    @Query(LOGS_BEFORE_DATE)
     abstract Cursor getLogsBeforeDate(long beforeDateMillis);
 
-    @Query("DELETE FROM log WHERE timestamp < :beforeDateMillis")
+    @Query(DELETE_LOGS_BEFORE)
     abstract int deleteLogsBefore(long beforeDateMillis);
 
-    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC LIMIT 1")
+    @Query(LAST_STATUS_LOG)
     public abstract Cursor getLastStatusLogEntry();
 
-    @Query("SELECT * FROM log WHERE is_diagnostic = 0 ORDER BY timestamp DESC LIMIT :limit OFFSET :offset")
-    public abstract Cursor getStatusLogs(int offset, int limit);
+    @Query(NEWEST_STATUS_LOGS)
+    public abstract Cursor getNewestStatusLogs(int limit);
+
+    // Rows older than the key, newest first.
+    @Query(STATUS_LOGS_BEFORE)
+    public abstract Cursor getStatusLogsBefore(long timestamp, int id, int limit);
+
+    // The row with the key, if it still exists, and the rows older than it, newest first.
+    @Query(STATUS_LOGS_AT_OR_BEFORE)
+    public abstract Cursor getStatusLogsAtOrBefore(long timestamp, int id, int limit);
+
+    // Rows newer than the key, oldest first.
+    @Query(STATUS_LOGS_AFTER)
+    public abstract Cursor getStatusLogsAfter(long timestamp, int id, int limit);
 }
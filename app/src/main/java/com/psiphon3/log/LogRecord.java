@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import com.psiphon3.BuildConfig;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+/**
+ * Compact binary encoding of the log records stored in the record column of the log table.
+ * <p>
+ * A record starts with a format version byte and a type byte.
+ * <p>
+ * Status records continue with the string resource id as a varint, the app version code that id
+ * belongs to as a varint, the resource name, a sensitivity byte and the format args. The id is
+ * only trusted when the record was written by the running version of the app, since resource ids
+ * may change between builds; otherwise the id is looked up again by name.
+ * <p>
+ * Diagnostic records continue with the message and the data name/value pairs.
+ * <p>
+ * Strings are a varint byte length followed by UTF-8 bytes; format args and data values are a
+ * type tag byte followed by the value, integers being zigzag varints.
+ */
+public final class LogRecord {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int TYPE_STATUS = 1;
+    private static final int TYPE_DIAGNOSTIC = 2;
+
+    private static final int TAG_NULL = 0;
+    private static final int TAG_STRING = 1;
+    private static final int TAG_INT = 2;
+    private static final int TAG_LONG = 3;
+    private static final int TAG_DOUBLE = 4;
+    private static final int TAG_FALSE = 5;
+    private static final int TAG_TRUE = 6;
+    // JSON text of a JSONObject or JSONArray value
+    private static final int TAG_JSON = 7;
+
+    private final boolean isDiagnostic;
+    private final int resourceId;
+    private final int resourceVersionCode;
+    private final String resourceName;
+    private final int sensitivity;
+    @Nullable
+    private final Object[] formatArgs;
+    private final String msg;
+    private final String[] dataNames;
+    private final Object[] dataValues;
+
+    private LogRecord(boolean isDiagnostic, int resourceId, int resourceVersionCode, String resourceName,
+                      int sensitivity, @Nullable Object[] formatArgs, String msg,
+                      String[] dataNames, Object[] dataValues) {
+        this.isDiagnostic = isDiagnostic;
+        this.resourceId = resourceId;
+        this.resourceVersionCode = resourceVersionCode;
+        this.resourceName = resourceName;
+        this.sensitivity = sensitivity;
+        this.formatArgs = formatArgs;
+        this.msg = msg;
+        this.dataNames = dataNames;
+        this.dataValues = dataValues;
+    }
+
+    /**
+     * Encodes a status log. The resource name is the entry name of a string resource of the app
+     * package or, for other packages, the fully qualified resource name.
+     */
+    public static byte[] encodeStatusLog(int resourceId, String resourceName, int sensitivity,
+                                         @Nullable Object[] formatArgs) {
+        return encodeStatusLog(resourceId, BuildConfig.VERSION_CODE, resourceName, sensitivity, formatArgs);
+    }
+
+    private static byte[] encodeStatusLog(int resourceId, int resourceVersionCode, String resourceName,
+                                          int sensitivity, @Nullable Object[] formatArgs) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32);
+        out.write(FORMAT_VERSION);
+        out.write(TYPE_STATUS);
+        writeVarint(out, resourceId);
+        writeVarint(out, resourceVersionCode);
+        writeString(out, resourceName);
+        out.write(sensitivity);
+        int argsCount = formatArgs == null ? 0 : formatArgs.length;
+        writeVarint(out, argsCount);
+        for (int i = 0; i < argsCount; i++) {
+            writeValue(out, formatArgs[i]);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] encodeDiagnosticLog(String msg, Object[] nameValuePairs) {
+        if (nameValuePairs.length % 2 != 0) {
+            throw new IllegalArgumentException("Number of arguments in nameValuePairs must divide by 2.");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(32 + msg.length());
+        out.write(FORMAT_VERSION);
+        out.write(TYPE_DIAGNOSTIC);
+        writeString(out, msg);
+        writeVarint(out, nameValuePairs.length / 2);
+        for (int i = 0; i < nameValuePairs.length; i += 2) {
+            writeString(out, String.valueOf(nameValuePairs[i]));
+            writeValue(out, nameValuePairs[i + 1]);
+        }
+        return out.toByteArray();
+    }
+
+    // Converts a record of the former JSON text format, used by the database migration.
+    static byte[] encodeLegacyJson(String logjson, boolean isDiagnostic) throws JSONException {
+        JSONObject jsonObject = new JSONObject(logjson);
+        if (isDiagnostic) {
+            JSONObject data = jsonObject.optJSONObject("data");
+            Object[] nameValuePairs = new Object[data == null ? 0 : data.length() * 2];
+            if (data != null) {
+                int i = 0;
+                for (Iterator<String> keys = data.keys(); keys.hasNext(); ) {
+                    String name = keys.next();
+                    nameValuePairs[i++] = name;
+                    nameValuePairs[i++] = data.get(name);
+                }
+            }
+            return encodeDiagnosticLog(jsonObject.optString("msg"), nameValuePairs);
+        }
+        JSONArray formatArgsJsonArray = jsonObject.optJSONArray("formatArgs");
+        Object[] formatArgs = null;
+        if (formatArgsJsonArray != null) {
+            formatArgs = new Object[formatArgsJsonArray.length()];
+            for (int i = 0; i < formatArgs.length; i++) {
+                formatArgs[i] = formatArgsJsonArray.get(i);
+            }
+        }
+        // The legacy format stored fully qualified resource names and no ids
+        return encodeStatusLog(0, 0, jsonObject.getString("stringResourceName"),
+                jsonObject.optInt("sensitivity", 0), formatArgs);
+    }
+
+    /**
+     * @return the decoded record or null if the record is malformed.
+     */
+    @Nullable
+    public static LogRecord decode(byte[] record) {
+        try {
+            Reader in = new Reader(record);
+            if (in.readByte() != FORMAT_VERSION) {
+                return null;
+            }
+            int type = in.readByte();
+            if (type == TYPE_STATUS) {
+                int resourceId = in.readVarint();
+                int resourceVersionCode = in.readVarint();
+                String resourceName = in.readString();
+                int sensitivity = in.readByte();
+                int argsCount = in.readVarint();
+                Object[] formatArgs = null;
+                if (argsCount > 0) {
+                    formatArgs = new Object[argsCount];
+                    for (int i = 0; i < argsCount; i++) {
+                        formatArgs[i] = in.readValue();
+                    }
+                }
+                return new LogRecord(false, resourceId, resourceVersionCode, resourceName,
+                        sensitivity, formatArgs, null, null, null);
+            } else if (type == TYPE_DIAGNOSTIC) {
+                String msg = in.readString();
+                int pairsCount = in.readVarint();
+                String[] dataNames = new String[pairsCount];
+                Object[] dataValues = new Object[pairsCount];
+                for (int i = 0; i < pairsCount; i++) {
+                    dataNames[i] = in.readString();
+                    dataValues[i] = in.readValue();
+                }
+                return new LogRecord(true, 0, 0, null, 0, null, msg, dataNames, dataValues);
+            }
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public boolean isDiagnostic() {
+        return isDiagnostic;
+    }
+
+    public int getSensitivity() {
+        return sensitivity;
+    }
+
+    @Nullable
+    public Object[] getFormatArgs() {
+        return formatArgs;
+    }
+
+    public String getMsg() {
+        return msg;
+    }
+
+    /**
+     * @return id of the string resource of a status log, or 0 if the resource no longer exists.
+     */
+    public int getResourceId(Context context) {
+        if (resourceId != 0 && resourceVersionCode == BuildConfig.VERSION_CODE) {
+            return resourceId;
+        }
+        return ResourceNameCache.getIdentifier(context, resourceName);
+    }
+
+    /**
+     * @return the formatted message of a status log, or an empty string if its resource no
+     * longer exists.
+     */
+    public String getStatusMessage(Context context) {
+        int id = getResourceId(context);
+        if (id == 0) {
+            // Failed to convert from resource name to ID. This can happen if a
+            // string resource has been renamed since the log entry was created.
+            return "";
+        }
+        return context.getString(id, formatArgs);
+    }
+
+    /**
+     * @return the message of a diagnostic log followed by its data as JSON text, if any.
+     */
+    public String getDiagnosticMessage() {
+        StringBuilder sb = new StringBuilder(msg.length() + 16 * dataNames.length);
+        sb.append(msg).append(':');
+        appendDataJson(sb);
+        return sb.toString();
+    }
+
+    public String[] getDataNames() {
+        return dataNames;
+    }
+
+    /**
+     * @return values of the data of a diagnostic log: null, String, Integer, Long, Double,
+     * Boolean or, for nested JSON values, an object for which isJsonText() is true and whose
+     * toString() returns the JSON text.
+     */
+    public Object[] getDataValues() {
+        return dataValues;
+    }
+
+    public static boolean isJsonText(Object value) {
+        return value instanceof JsonText;
+    }
+
+    private void appendDataJson(StringBuilder sb) {
+        sb.append('{');
+        for (int i = 0; i < dataNames.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(JSONObject.quote(dataNames[i])).append(':');
+            Object value = dataValues[i];
+            if (value instanceof String) {
+                sb.append(JSONObject.quote((String) value));
+            } else if (value instanceof JsonText) {
+                sb.append(((JsonText) value).text);
+            } else if (value instanceof Number) {
+                try {
+                    sb.append(JSONObject.numberToString((Number) value));
+                } catch (JSONException e) {
+                    // NaN and infinities are not valid JSON numbers
+                    sb.append(JSONObject.quote(value.toString()));
+                }
+            } else {
+                sb.append(value);
+            }
+        }
+        sb.append('}');
+    }
+
+    // Nested JSON value kept as text until it is needed.
+    private static final class JsonText {
+        final String text;
+
+        JsonText(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    private static void writeValue(ByteArrayOutputStream out, Object value) {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.write(TAG_INT);
+            writeVarint(out, zigzag(((Number) value).intValue()));
+        } else if (value instanceof Long) {
+            out.write(TAG_LONG);
+            writeVarLong(out, zigzag((Long) value));
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(TAG_DOUBLE);
+            long bits = Double.doubleToLongBits(((Number) value).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (value instanceof JSONObject || value instanceof JSONArray || value instanceof JsonText) {
+            out.write(TAG_JSON);
+            writeString(out, value.toString());
+        } else {
+            out.write(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarint(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    // Reads values from a record, throwing IllegalArgumentException on malformed input.
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position;
+
+        Reader(byte[] bytes) {
+            if (bytes == null) {
+                throw new IllegalArgumentException("null record");
+            }
+            this.bytes = bytes;
+        }
+
+        int readByte() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("truncated record");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        int readVarint() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("malformed varint");
+        }
+
+        String readString() {
+            int length = readVarint();
+            if (length < 0 || length > bytes.length - position) {
+                throw new IllegalArgumentException("truncated record");
+            }
+            String value = new String(bytes, position, length, UTF_8);
+            position += length;
+            return value;
+        }
+
+        Object readValue() {
+            int tag = readByte();
+            switch (tag) {
+                case TAG_NULL:
+                    return null;
+                case TAG_STRING:
+                    return readString();
+                case TAG_INT:
+                    int i = readVarint();
+                    return (i >>> 1) ^ -(i & 1);
+                case TAG_LONG:
+                    long l = readVarLong();
+                    return (l >>> 1) ^ -(l & 1);
+                case TAG_DOUBLE:
+                    long bits = 0;
+                    for (int b = 0; b < 8; b++) {
+                        bits = (bits << 8) | readByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case TAG_FALSE:
+                    return Boolean.FALSE;
+                case TAG_TRUE:
+                    return Boolean.TRUE;
+                case TAG_JSON:
+                    return new JsonText(readString());
+                default:
+                    throw new IllegalArgumentException("unknown value tag " + tag);
+            }
+        }
+    }
+}
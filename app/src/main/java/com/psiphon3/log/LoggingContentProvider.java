@@ -24,7 +24,6 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.util.Log;
 
@@ -33,27 +32,39 @@ import androidx.annotation.Nullable;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
 
 import com.psiphon3.BuildConfig;
 
+import org.json.JSONException;
+
+import java.io.IOException;
 import java.util.concurrent.Executors;
 
 public class LoggingContentProvider extends ContentProvider {
 
     public static final String AUTHORITY = BuildConfig.APPLICATION_ID + "." + LoggingContentProvider.class.getSimpleName();
     public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+    // Logging from here goes to logcat only, MyLog would write back into this provider.
+    private static final String TAG = "Psiphon";
 
-    private static final int STATUS_LOGS = 1;
-    private static final int STATUS_LOGS_COUNT = 2;
+    private static final int STATUS_LOGS_NEWEST = 1;
+    private static final int STATUS_LOGS_BEFORE = 2;
     private static final int DELETE_LOGS_BEFORE = 3;
     private static final int STATUS_LOG_LAST = 4;
     private static final int ALL_LOGS_BEFORE = 5;
+    private static final int STATUS_LOGS_AT_OR_BEFORE = 6;
+    private static final int STATUS_LOGS_AFTER = 7;
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
-        sUriMatcher.addURI(AUTHORITY, "status/offset/#/limit/#", STATUS_LOGS);
-        sUriMatcher.addURI(AUTHORITY, "status/count", STATUS_LOGS_COUNT);
+        sUriMatcher.addURI(AUTHORITY, "status/limit/#", STATUS_LOGS_NEWEST);
+        sUriMatcher.addURI(AUTHORITY, "status/before/#/#/limit/#", STATUS_LOGS_BEFORE);
+        sUriMatcher.addURI(AUTHORITY, "status/atorbefore/#/#/limit/#", STATUS_LOGS_AT_OR_BEFORE);
+        sUriMatcher.addURI(AUTHORITY, "status/after/#/#/limit/#", STATUS_LOGS_AFTER);
         sUriMatcher.addURI(AUTHORITY, "delete/#", DELETE_LOGS_BEFORE);
         sUriMatcher.addURI(AUTHORITY, "status/last", STATUS_LOG_LAST);
         sUriMatcher.addURI(AUTHORITY, "all/#", ALL_LOGS_BEFORE);
@@ -61,17 +72,17 @@ public class LoggingContentProvider extends ContentProvider {
 
     public static LogEntry convertRows(Cursor cursor) {
         final int cursorIndexOfId = cursor.getColumnIndexOrThrow("_ID");
-        final int cursorIndexOfLogJson = cursor.getColumnIndexOrThrow("logjson");
+        final int cursorIndexOfRecord = cursor.getColumnIndexOrThrow("record");
         final int cursorIndexOfIsDiagnostic = cursor.getColumnIndexOrThrow("is_diagnostic");
         final int cursorIndexOfPriority = cursor.getColumnIndexOrThrow("priority");
         final int cursorIndexOfTimestamp = cursor.getColumnIndexOrThrow("timestamp");
 
-        final String tmpLogJson = cursor.getString(cursorIndexOfLogJson);
+        final byte[] tmpRecord = cursor.getBlob(cursorIndexOfRecord);
         final boolean tmpIsDiagnostic = cursor.getInt(cursorIndexOfIsDiagnostic) != 0;
         final int tmpPriority = cursor.getInt(cursorIndexOfPriority);
         final long tmpTimestamp = cursor.getLong(cursorIndexOfTimestamp);
 
-        final LogEntry logEntry = new LogEntry(tmpLogJson, tmpIsDiagnostic, tmpPriority, tmpTimestamp);
+        final LogEntry logEntry = new LogEntry(tmpRecord, tmpIsDiagnostic, tmpPriority, tmpTimestamp);
 
         final int tmpId = cursor.getInt(cursorIndexOfId);
         logEntry.setId(tmpId);
@@ -91,13 +102,16 @@ public class LoggingContentProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
 
         switch (match) {
-            case STATUS_LOGS_COUNT:
-                return getCount();
+            case STATUS_LOGS_NEWEST:
+                return getStatusLogs(match, 0, 0, Integer.parseInt(uri.getPathSegments().get(2)));
 
-            case STATUS_LOGS:
-                int offset = Integer.parseInt(uri.getPathSegments().get(2));
-                int limit = Integer.parseInt(uri.getPathSegments().get(4));
-                return getStatusLogs(offset, limit);
+            case STATUS_LOGS_BEFORE:
+            case STATUS_LOGS_AT_OR_BEFORE:
+            case STATUS_LOGS_AFTER:
+                long timestamp = Long.parseLong(uri.getPathSegments().get(2));
+                int id = Integer.parseInt(uri.getPathSegments().get(3));
+                int limit = Integer.parseInt(uri.getPathSegments().get(5));
+                return getStatusLogs(match, timestamp, id, limit);
 
             case STATUS_LOG_LAST:
                 return getLastStatusLogEntry();
@@ -124,16 +138,30 @@ public class LoggingContentProvider extends ContentProvider {
         if (context == null || values == null) {
             return null;
         }
+        insertLogEntries(context, uri, new ContentValues[]{values});
+        return null;
+    }
+
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final Context context = getContext();
+        if (context == null || values.length == 0) {
+            return 0;
+        }
+        insertLogEntries(context, uri, values);
+        return values.length;
+    }
+
+    // Inserts all rows in a single transaction and notifies observers at most once per batch,
+    // only if the batch contains status rows.
+    private void insertLogEntries(Context context, Uri uri, ContentValues[] values) {
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
         db.getQueryExecutor().execute(() -> {
-            db.getOpenHelper().getWritableDatabase()
-                    .insert("log", SQLiteDatabase.CONFLICT_NONE, values);
-            if (!values.getAsBoolean("is_diagnostic")) {
+            if (db.insertLogEntries(values)) {
                 context.getContentResolver().notifyChange(uri, null);
             }
         });
-        return null;
     }
 
     @Override
@@ -163,24 +191,23 @@ public class LoggingContentProvider extends ContentProvider {
         throw new UnsupportedOperationException();
     }
 
-    private Cursor getStatusLogs(int offset, int limit) {
+    private Cursor getStatusLogs(int match, long timestamp, int id, int limit) {
         final Context context = getContext();
         if (context == null) {
             return null;
         }
         LoggingRoomDatabase db =
                 LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        return db.getStatusLogs(offset, limit);
-    }
-
-    private Cursor getCount() {
-        final Context context = getContext();
-        if (context == null) {
-            return null;
+        switch (match) {
+            case STATUS_LOGS_BEFORE:
+                return db.getStatusLogsBefore(timestamp, id, limit);
+            case STATUS_LOGS_AT_OR_BEFORE:
+                return db.getStatusLogsAtOrBefore(timestamp, id, limit);
+            case STATUS_LOGS_AFTER:
+                return db.getStatusLogsAfter(timestamp, id, limit);
+            default:
+                return db.getNewestStatusLogs(limit);
         }
-        LoggingRoomDatabase db =
-                LoggingRoomDatabase.getDatabase(context.getApplicationContext());
-        return db.getStatusLogsCount();
     }
 
     private Cursor getLastStatusLogEntry() {
@@ -203,21 +230,115 @@ public class LoggingContentProvider extends ContentProvider {
         return db.getLogsBeforeDate(beforeMillis);
     }
 
-    @Database(entities = {LogEntry.class,}, version = 3, exportSchema = false)
+    @Database(entities = {LogEntry.class,}, version = 4, exportSchema = false)
     public abstract static class LoggingRoomDatabase extends RoomDatabase {
         private static volatile LoggingRoomDatabase INSTANCE;
 
+        // Replaces the logjson text column with the binary record column, converting existing
+        // rows, and replaces the timestamp index with a partial index over status logs and an
+        // index for the feedback export.
+        static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+            @Override
+            public void migrate(@NonNull SupportSQLiteDatabase database) {
+                int droppedRows = convertLegacyLogs(database);
+                if (droppedRows > 0) {
+                    Log.w(TAG, "Dropped " + droppedRows + " unparsable log rows while migrating");
+                }
+            }
+        };
+
+        // Converts the version 3 log table and returns the number of rows that were dropped
+        // because their logjson could not be parsed.
+        static int convertLegacyLogs(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `log_new` (`_ID` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`record` BLOB NOT NULL, `is_diagnostic` INTEGER NOT NULL, `priority` INTEGER NOT NULL, " +
+                    "`timestamp` INTEGER NOT NULL)");
+            int droppedRows = 0;
+            SupportSQLiteStatement statement = database.compileStatement(
+                    "INSERT INTO log_new (_ID, record, is_diagnostic, priority, timestamp) VALUES (?, ?, ?, ?, ?)");
+            try (Cursor cursor = database.query("SELECT _ID, logjson, is_diagnostic, priority, timestamp FROM log")) {
+                while (cursor.moveToNext()) {
+                    boolean isDiagnostic = cursor.getInt(2) != 0;
+                    byte[] record;
+                    try {
+                        record = LogRecord.encodeLegacyJson(cursor.getString(1), isDiagnostic);
+                    } catch (JSONException e) {
+                        droppedRows++;
+                        continue;
+                    }
+                    statement.bindLong(1, cursor.getLong(0));
+                    statement.bindBlob(2, record);
+                    statement.bindLong(3, isDiagnostic ? 1 : 0);
+                    statement.bindLong(4, cursor.getLong(3));
+                    statement.bindLong(5, cursor.getLong(4));
+                    statement.executeInsert();
+                    statement.clearBindings();
+                }
+            }
+            closeQuietly(statement);
+            // Dropping the table also drops the version 3 timestamp index
+            database.execSQL("DROP TABLE `log`");
+            database.execSQL("ALTER TABLE `log_new` RENAME TO `log`");
+            createExportIndex(database);
+            createStatusLogsIndex(database);
+            return droppedRows;
+        }
+
+        // Room creates the status logs index as a plain index on a fresh or destructively
+        // migrated database, replace it.
+        static final Callback CALLBACK = new Callback() {
+            @Override
+            public void onCreate(@NonNull SupportSQLiteDatabase db) {
+                createStatusLogsIndex(db);
+            }
+
+            @Override
+            public void onDestructiveMigration(@NonNull SupportSQLiteDatabase db) {
+                createStatusLogsIndex(db);
+            }
+        };
+
+        private static void closeQuietly(SupportSQLiteStatement statement) {
+            if (statement == null) {
+                return;
+            }
+            try {
+                statement.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        static void createExportIndex(SupportSQLiteDatabase database) {
+            database.execSQL("CREATE INDEX IF NOT EXISTS `" + LogEntry.EXPORT_INDEX +
+                    "` ON `log` (`timestamp`, `is_diagnostic`, `priority`)");
+        }
+
+        static void createStatusLogsIndex(SupportSQLiteDatabase database) {
+            database.execSQL("DROP INDEX IF EXISTS `" + LogEntry.STATUS_LOGS_INDEX + "`");
+            database.execSQL("CREATE INDEX `" + LogEntry.STATUS_LOGS_INDEX +
+                    "` ON `log` (`timestamp`, `_ID`) WHERE `is_diagnostic` = 0");
+        }
+
+        // Applies the migrations and callbacks to a database builder, also used by tests.
+        static Builder<LoggingRoomDatabase> configure(Builder<LoggingRoomDatabase> builder) {
+            return builder
+                    // Here we are migrating from plain SQLiteOpenHelper to Room; we are
+                    // not providing migration strategy, because in the previous
+                    // version(#2) the logs table is fully truncated every time the app
+                    // starts fresh.
+                    .fallbackToDestructiveMigrationFrom(1, 2)
+                    // Logs are not worth keeping across a downgrade.
+                    .fallbackToDestructiveMigrationOnDowngrade()
+                    .addMigrations(MIGRATION_3_4)
+                    .addCallback(CALLBACK);
+        }
+
         private static LoggingRoomDatabase getDatabase(final Context context) {
             if (INSTANCE == null) {
                 synchronized (LoggingRoomDatabase.class) {
                     if (INSTANCE == null) {
-                        INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
-                                LoggingRoomDatabase.class, "loggingprovider.db")
-                                // Here we are migrating from plain SQLiteOpenHelper to Room; we are
-                                // not providing migration strategy, because in the previous
-                                // version(#2) the logs table is fully truncated every time the app
-                                // starts fresh.
-                                .fallbackToDestructiveMigration()
+                        INSTANCE = configure(Room.databaseBuilder(context.getApplicationContext(),
+                                LoggingRoomDatabase.class, "loggingprovider.db"))
                                 .setQueryExecutor(Executors.newSingleThreadExecutor())
                                 .build();
                     }
@@ -228,6 +349,39 @@ public class LoggingContentProvider extends ContentProvider {
 
         protected abstract LogEntryDao logEntryDao();
 
+        // Returns true if at least one non diagnostic row was inserted.
+        public boolean insertLogEntries(ContentValues[] values) {
+            boolean hasStatusLogs = false;
+            SupportSQLiteDatabase database = getOpenHelper().getWritableDatabase();
+            SupportSQLiteStatement statement = null;
+            database.beginTransaction();
+            try {
+                statement = database.compileStatement(
+                        "INSERT INTO log (record, is_diagnostic, priority, timestamp) VALUES (?, ?, ?, ?)");
+                for (ContentValues row : values) {
+                    byte[] record = row == null ? null : row.getAsByteArray("record");
+                    if (record == null) {
+                        continue;
+                    }
+                    statement.bindBlob(1, record);
+                    boolean isDiagnostic = Boolean.TRUE.equals(row.getAsBoolean("is_diagnostic"));
+                    Integer priority = row.getAsInteger("priority");
+                    Long timestamp = row.getAsLong("timestamp");
+                    statement.bindLong(2, isDiagnostic ? 1 : 0);
+                    statement.bindLong(3, priority == null ? 0 : priority);
+                    statement.bindLong(4, timestamp == null ? 0 : timestamp);
+                    statement.executeInsert();
+                    statement.clearBindings();
+                    hasStatusLogs |= !isDiagnostic;
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                closeQuietly(statement);
+                database.endTransaction();
+            }
+            return hasStatusLogs;
+        }
+
         public int deleteLogEntriesBefore(long beforeDateMillis) {
             return logEntryDao().deleteLogsBefore(beforeDateMillis);
         }
@@ -240,12 +394,20 @@ public class LoggingContentProvider extends ContentProvider {
             return logEntryDao().getLogsBeforeDate(beforeDateMills);
         }
 
-        public Cursor getStatusLogsCount() {
-            return logEntryDao().getStatusLogsCount();
+        public Cursor getNewestStatusLogs(int limit) {
+            return logEntryDao().getNewestStatusLogs(limit);
+        }
+
+        public Cursor getStatusLogsBefore(long timestamp, int id, int limit) {
+            return logEntryDao().getStatusLogsBefore(timestamp, id, limit);
+        }
+
+        public Cursor getStatusLogsAtOrBefore(long timestamp, int id, int limit) {
+            return logEntryDao().getStatusLogsAtOrBefore(timestamp, id, limit);
         }
 
-        public Cursor getStatusLogs(int offset, int limit) {
-            return logEntryDao().getStatusLogs(offset, limit);
+        public Cursor getStatusLogsAfter(long timestamp, int id, int limit) {
+            return logEntryDao().getStatusLogsAfter(timestamp, id, limit);
         }
     }
 }
@@ -25,13 +25,13 @@ import android.net.Uri;
 
 import androidx.annotation.NonNull;
 import androidx.paging.DataSource;
-import androidx.paging.PositionalDataSource;
+import androidx.paging.ItemKeyedDataSource;
 
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
-public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry> {
+public class LogsDataSourceFactory extends DataSource.Factory<LogsDataSourceFactory.Key, LogEntry> {
     private final ContentResolver contentResolver;
     private LogsDataSource dataSource;
 
@@ -41,7 +41,7 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
 
     @NonNull
     @Override
-    public DataSource<Integer, LogEntry> create() {
+    public DataSource<Key, LogEntry> create() {
         dataSource = new LogsDataSource(contentResolver);
         return dataSource;
     }
@@ -52,7 +52,21 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
         }
     }
 
-    private static class LogsDataSource extends PositionalDataSource<LogEntry> {
+    // Position of a status log in the list, which is sorted by timestamp and then by row id,
+    // newest first.
+    public static final class Key {
+        final long timestamp;
+        final int id;
+
+        Key(long timestamp, int id) {
+            this.timestamp = timestamp;
+            this.id = id;
+        }
+    }
+
+    // Loads pages relative to the key of an already loaded row, so the cost of a page does not
+    // depend on how far the user has scrolled and no total count of rows is needed.
+    private static class LogsDataSource extends ItemKeyedDataSource<Key, LogEntry> {
         private final ContentResolver contentResolver;
 
         public LogsDataSource(ContentResolver contentResolver) {
@@ -60,43 +74,48 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
         }
 
         @Override
-        public void loadInitial(@NonNull LoadInitialParams params, @NonNull LoadInitialCallback<LogEntry> callback) {
-            int firstLoadPosition = 0;
-            int firstLoadSize = 0;
-            int totalCount = getStatusLogsCount();
-
-            if (totalCount != 0) {
-                firstLoadPosition = computeInitialLoadPosition(params, totalCount);
-                firstLoadSize = computeInitialLoadSize(params, firstLoadPosition, totalCount);
+        public void loadInitial(@NonNull LoadInitialParams<Key> params, @NonNull LoadInitialCallback<LogEntry> callback) {
+            Key key = params.requestedInitialKey;
+            Uri.Builder builder = LoggingContentProvider.CONTENT_URI.buildUpon()
+                    .appendPath("status");
+            if (key != null) {
+                appendKey(builder.appendPath("atorbefore"), key);
             }
-            callback.onResult(getStatusLogs(firstLoadPosition, firstLoadSize), firstLoadPosition, totalCount);
+            callback.onResult(getStatusLogs(builder, params.requestedLoadSize, false));
         }
 
-        private int getStatusLogsCount() {
-            int count = 0;
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
+        @Override
+        public void loadAfter(@NonNull LoadParams<Key> params, @NonNull LoadCallback<LogEntry> callback) {
+            Uri.Builder builder = LoggingContentProvider.CONTENT_URI.buildUpon()
                     .appendPath("status")
-                    .appendPath("count")
-                    .build();
+                    .appendPath("before");
+            appendKey(builder, params.key);
+            callback.onResult(getStatusLogs(builder, params.requestedLoadSize, false));
+        }
 
-            try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    count = cursor.getInt(0);
-                }
-            }
-            return count;
+        @Override
+        public void loadBefore(@NonNull LoadParams<Key> params, @NonNull LoadCallback<LogEntry> callback) {
+            Uri.Builder builder = LoggingContentProvider.CONTENT_URI.buildUpon()
+                    .appendPath("status")
+                    .appendPath("after");
+            appendKey(builder, params.key);
+            // Newer rows are selected oldest first, put them back in list order.
+            callback.onResult(getStatusLogs(builder, params.requestedLoadSize, true));
         }
 
+        @NonNull
         @Override
-        public void loadRange(@NonNull LoadRangeParams params, @NonNull LoadRangeCallback<LogEntry> callback) {
-            callback.onResult(getStatusLogs(params.startPosition, params.loadSize));
+        public Key getKey(@NonNull LogEntry item) {
+            return new Key(item.getTimestamp(), item.getId());
         }
 
-        private List<LogEntry> getStatusLogs(int offset, int limit) {
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("status")
-                    .appendPath("offset")
-                    .appendPath(String.valueOf(offset))
+        private static void appendKey(Uri.Builder builder, Key key) {
+            builder.appendPath(String.valueOf(key.timestamp))
+                    .appendPath(String.valueOf(key.id));
+        }
+
+        private List<LogEntry> getStatusLogs(Uri.Builder builder, int limit, boolean reverse) {
+            Uri uri = builder
                     .appendPath("limit")
                     .appendPath(String.valueOf(limit))
                     .build();
@@ -109,6 +128,9 @@ public class LogsDataSourceFactory extends DataSource.Factory<Integer, LogEntry>
                     final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
                     logEntryList.add(logEntry);
                 }
+                if (reverse) {
+                    Collections.reverse(logEntryList);
+                }
                 return logEntryList;
             }
         }
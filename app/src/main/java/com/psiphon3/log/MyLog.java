@@ -27,18 +27,35 @@ import androidx.annotation.StringRes;
 
 import com.psiphon3.BuildConfig;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MyLog {
     private static final String TAG = "Psiphon";
-    private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+
+    // Logs are not written one by one but queued and group committed to the logging provider,
+    // which is important when tunnel-core emits bursts of diagnostic notices. A batch is flushed
+    // once it reaches flushSize entries or flushLatencyMs after its first entry was queued,
+    // whichever comes first. When the queue is full new logs are dropped and counted.
+    public static final int DEFAULT_FLUSH_SIZE = 100;
+    public static final long DEFAULT_FLUSH_LATENCY_MS = 250;
+    private static final int MAX_PENDING_LOGS = 5000;
+    private static final BlockingQueue<ContentValues> pendingLogs = new ArrayBlockingQueue<>(MAX_PENDING_LOGS);
+    private static final AtomicBoolean isFlushScheduled = new AtomicBoolean(false);
+    private static final AtomicBoolean isImmediateFlushScheduled = new AtomicBoolean(false);
+    private static final AtomicInteger droppedLogsCount = new AtomicInteger(0);
+    private static volatile int flushSize = DEFAULT_FLUSH_SIZE;
+    private static volatile long flushLatencyMs = DEFAULT_FLUSH_LATENCY_MS;
 
     // It is expected that the logger implementation will be an Activity, so
     // we're only going to hold a weak reference to it -- we don't want to
@@ -77,6 +94,19 @@ public class MyLog {
 
     static public void setLogger(ILogger logger) {
         MyLog.logger = new WeakReference<>(logger);
+        // Flush the logs that were kept queued while there was no logger
+        if (logger != null && !pendingLogs.isEmpty()
+                && isImmediateFlushScheduled.compareAndSet(false, true)) {
+            executorService.execute(MyLog::flushPendingLogs);
+        }
+    }
+
+    static public void setFlushThresholds(int flushSize, long flushLatencyMs) {
+        if (flushSize < 1 || flushLatencyMs < 0) {
+            throw new IllegalArgumentException("Flush size must be positive and flush latency must not be negative.");
+        }
+        MyLog.flushSize = flushSize;
+        MyLog.flushLatencyMs = flushLatencyMs;
     }
 
     // Status log with priority Log.VERBOSE
@@ -139,26 +169,9 @@ public class MyLog {
         if (logger.get() == null) {
             return;
         }
-        try {
-            JSONObject logJsonObject = new JSONObject();
-
-            String stringResourceName = logger.get().getContext().getResources().getResourceName(resId);
-            logJsonObject.put("stringResourceName", stringResourceName);
-
-            logJsonObject.put("sensitivity", sensitivity);
-
-            JSONArray formatArgsJsonArray = new JSONArray();
-            for (Object arg : formatArgs) {
-                formatArgsJsonArray.put(arg);
-            }
-
-            logJsonObject.put("formatArgs", formatArgsJsonArray.length() == 0 ?
-                    JSONObject.NULL : formatArgsJsonArray);
-
-            storeLog(logJsonObject.toString(), false, priority, timestamp.getTime());
-        } catch (JSONException ignored) {
-            // fail silently
-        }
+        String resourceName = ResourceNameCache.getName(logger.get().getContext(), resId);
+        storeLog(LogRecord.encodeStatusLog(resId, resourceName, sensitivity, formatArgs),
+                false, priority, timestamp.getTime());
     }
 
     private static void storeDiagnosticLog(String msg, Object[] nameValuePairs, int priority,
@@ -166,68 +179,71 @@ public class MyLog {
         if (logger.get() == null) {
             return;
         }
-        if (nameValuePairs.length % 2 != 0) {
-            throw new IllegalArgumentException("Number of arguments in nameValuePairs must divide by 2.");
-        }
-        JSONObject logJsonObject = new JSONObject();
-        JSONObject data = new JSONObject();
-        try {
-            for (int i = 0; i < nameValuePairs.length / 2; i++) {
-                data.put(nameValuePairs[i * 2].toString(), nameValuePairs[i * 2 + 1]);
-            }
-            logJsonObject.put("msg", msg);
-            logJsonObject.put("data", data);
-
-            storeLog(logJsonObject.toString(), true, priority, timestamp.getTime());
-        } catch (JSONException ignored) {
-            // fail silently
-        }
+        storeLog(LogRecord.encodeDiagnosticLog(msg, nameValuePairs), true, priority, timestamp.getTime());
     }
 
-    private static void storeLog(String logjson, boolean isDiagnostic, int priority, long timestamp) {
+    private static void storeLog(byte[] record, boolean isDiagnostic, int priority, long timestamp) {
         if (logger.get() == null) {
             return;
         }
         ContentValues values = new ContentValues();
-        values.put("logjson", logjson);
+        values.put("record", record);
         values.put("is_diagnostic", isDiagnostic);
         values.put("priority", priority);
         values.put("timestamp", timestamp);
 
-        executorService.execute(() ->
-                logger.get().getContext().getContentResolver()
-                        .insert(LoggingContentProvider.CONTENT_URI, values));
+        if (!pendingLogs.offer(values)) {
+            droppedLogsCount.incrementAndGet();
+        }
+        if (pendingLogs.size() >= flushSize) {
+            if (isImmediateFlushScheduled.compareAndSet(false, true)) {
+                executorService.execute(MyLog::flushPendingLogs);
+            }
+        } else if (isFlushScheduled.compareAndSet(false, true)) {
+            executorService.schedule(MyLog::flushPendingLogs, flushLatencyMs, TimeUnit.MILLISECONDS);
+        }
 
         if (BuildConfig.DEBUG) {
-            if (isDiagnostic) {
-                Log.println(priority, TAG, logjson.replaceAll("\\\\", ""));
-            } else {
-                Log.println(priority, TAG, getStatusLogMessageForDisplay(logjson, logger.get().getContext()));
+            LogRecord logRecord = LogRecord.decode(record);
+            if (logRecord != null) {
+                Log.println(priority, TAG, isDiagnostic ? logRecord.getDiagnosticMessage() :
+                        logRecord.getStatusMessage(logger.get().getContext()));
             }
         }
     }
 
-    public static String getStatusLogMessageForDisplay(String logjson, Context context) {
-        try {
-            JSONObject jsonObject = new JSONObject(logjson);
-            JSONArray formatArgsJSONArray = jsonObject.optJSONArray("formatArgs");
-            Object[] formatArgs = null;
-            if (formatArgsJSONArray != null) {
-                formatArgs = new Object[formatArgsJSONArray.length()];
-                for (int i = 0; i < formatArgsJSONArray.length(); i++) {
-                    formatArgs[i] = formatArgsJSONArray.get(i);
-                }
+    // Runs on the executorService thread only. Without a logger the entries stay queued until
+    // one is set again.
+    private static void flushPendingLogs() {
+        isFlushScheduled.set(false);
+        isImmediateFlushScheduled.set(false);
+        List<ContentValues> batch = new ArrayList<>();
+        ILogger currentLogger;
+        while ((currentLogger = logger.get()) != null && pendingLogs.drainTo(batch, flushSize) > 0) {
+            int droppedCount = droppedLogsCount.getAndSet(0);
+            if (droppedCount > 0) {
+                batch.add(droppedLogsValues(droppedCount));
             }
+            currentLogger.getContext().getContentResolver()
+                    .bulkInsert(LoggingContentProvider.CONTENT_URI, batch.toArray(new ContentValues[0]));
+            batch.clear();
+        }
+    }
 
-            int resourceID = context.getResources().getIdentifier(jsonObject.getString("stringResourceName"), null, null);
-            if (resourceID == 0) {
-                // Failed to convert from resource name to ID. This can happen if a
-                // string resource has been renamed since the log entry was created.
-                return "";
-            }
-            return context.getString(resourceID, formatArgs);
-        } catch (JSONException e) {
+    private static ContentValues droppedLogsValues(int droppedCount) {
+        ContentValues values = new ContentValues();
+        values.put("record", LogRecord.encodeDiagnosticLog("Dropped logs", new Object[]{"count", droppedCount}));
+        values.put("is_diagnostic", true);
+        values.put("priority", Log.WARN);
+        values.put("timestamp", System.currentTimeMillis());
+        return values;
+    }
+
+    public static String getStatusLogMessageForDisplay(byte[] record, Context context) {
+        LogRecord logRecord = LogRecord.decode(record);
+        if (logRecord == null || logRecord.isDiagnostic()) {
             return "";
         }
+        return logRecord.getStatusMessage(context);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.log;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.content.res.Resources;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide cache of the string resource name and id lookups done for every status log when
+ * it is stored, rendered or exported. Resources.getIdentifier() and friends are string keyed
+ * lookups that are too slow to run per row.
+ * <p>
+ * Names are either the entry name of a string resource of the app package or the fully qualified
+ * name of a resource of another package, as stored by LogRecord. Unknown names are cached as 0.
+ * The cache is cleared on configuration and locale changes.
+ */
+public final class ResourceNameCache {
+    private static final ConcurrentHashMap<String, Integer> nameToId = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, String> idToName = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Integer, String> idToEntryName = new ConcurrentHashMap<>();
+    private static volatile boolean isRegistered = false;
+
+    private ResourceNameCache() {
+    }
+
+    /**
+     * @return id of the string resource with the given name, or 0 if there is no such resource.
+     */
+    public static int getIdentifier(Context context, String name) {
+        Integer id = nameToId.get(name);
+        if (id == null) {
+            registerCallbacks(context);
+            Resources resources = context.getResources();
+            id = name.indexOf(':') >= 0 ?
+                    resources.getIdentifier(name, null, null) :
+                    resources.getIdentifier(name, "string", context.getPackageName());
+            nameToId.put(name, id);
+            if (id != 0) {
+                idToName.putIfAbsent(id, name);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @return the name under which a status log stores the given resource.
+     * @throws Resources.NotFoundException if the resource does not exist.
+     */
+    public static String getName(Context context, int resId) {
+        String name = idToName.get(resId);
+        if (name == null) {
+            registerCallbacks(context);
+            Resources resources = context.getResources();
+            name = context.getPackageName().equals(resources.getResourcePackageName(resId)) ?
+                    resources.getResourceEntryName(resId) : resources.getResourceName(resId);
+            idToName.put(resId, name);
+            nameToId.putIfAbsent(name, resId);
+        }
+        return name;
+    }
+
+    /**
+     * @return the entry name of the given resource, without package and type.
+     * @throws Resources.NotFoundException if the resource does not exist.
+     */
+    public static String getEntryName(Context context, int resId) {
+        String entryName = idToEntryName.get(resId);
+        if (entryName == null) {
+            registerCallbacks(context);
+            entryName = context.getResources().getResourceEntryName(resId);
+            idToEntryName.put(resId, entryName);
+        }
+        return entryName;
+    }
+
+    public static void invalidate() {
+        nameToId.clear();
+        idToName.clear();
+        idToEntryName.clear();
+    }
+
+    private static void registerCallbacks(Context context) {
+        if (isRegistered) {
+            return;
+        }
+        synchronized (ResourceNameCache.class) {
+            if (isRegistered) {
+                return;
+            }
+            context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks() {
+                @Override
+                public void onConfigurationChanged(@NonNull Configuration newConfig) {
+                    invalidate();
+                }
+
+                @Override
+                public void onLowMemory() {
+                }
+            });
+            isRegistered = true;
+        }
+    }
+}
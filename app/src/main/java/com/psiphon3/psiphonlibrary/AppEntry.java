@@ -19,20 +19,14 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.graphics.drawable.Drawable;
-
-import io.reactivex.Single;
-
 public class AppEntry implements Comparable<AppEntry> {
     private final String name;
     private final String packageId;
-    private final Single<Drawable> iconLoader;
     private final String comparableName;
 
-    public AppEntry(String name, String packageId, Single<Drawable> iconLoader) {
+    public AppEntry(String name, String packageId) {
         this.name = name;
         this.packageId = packageId;
-        this.iconLoader = iconLoader;
         comparableName = getComparableName();
     }
 
@@ -50,5 +44,4 @@ public class AppEntry implements Comparable<AppEntry> {
     public String getPackageId() {
         return packageId;
     }
-    public Single<Drawable> getIconLoader() { return iconLoader; }
 }
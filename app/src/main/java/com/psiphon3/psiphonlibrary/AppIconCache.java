@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.concurrent.Executors;
+
+import io.reactivex.Scheduler;
+import io.reactivex.Single;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Process-wide LRU cache of app icons downscaled to the size they are shown at in the app picker,
+ * bounded by the total number of bytes of the bitmaps.
+ * <p>
+ * Icons are loaded on a small dedicated pool so that loads queued while scrolling don't occupy
+ * the io scheduler; a load that is disposed before it started is skipped.
+ */
+class AppIconCache {
+    private static final int ICON_SIZE_DP = 48;
+    private static final int MAX_CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int LOADER_THREADS = 2;
+
+    private static volatile AppIconCache instance;
+
+    private final PackageManager packageManager;
+    private final int iconSizePx;
+    private final LruCache<String, Bitmap> cache;
+    private final Scheduler scheduler = Schedulers.from(Executors.newFixedThreadPool(LOADER_THREADS));
+
+    private AppIconCache(Context context) {
+        packageManager = context.getPackageManager();
+        iconSizePx = Math.round(ICON_SIZE_DP * context.getResources().getDisplayMetrics().density);
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        // At most 1/16 of the app's heap
+        int heapBytes = activityManager.getMemoryClass() * 1024 * 1024;
+        cache = new LruCache<String, Bitmap>(Math.min(heapBytes / 16, MAX_CACHE_BYTES)) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    static AppIconCache getInstance(Context context) {
+        if (instance == null) {
+            synchronized (AppIconCache.class) {
+                if (instance == null) {
+                    instance = new AppIconCache(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    @Nullable
+    Bitmap get(@NonNull String packageId) {
+        return cache.get(packageId);
+    }
+
+    /**
+     * @return the cached icon or a load of the icon on the loader pool which stores it in the cache.
+     */
+    Single<Bitmap> load(@NonNull String packageId) {
+        return Single.fromCallable(() -> {
+            Bitmap bitmap = cache.get(packageId);
+            if (bitmap == null) {
+                bitmap = loadBitmap(packageId);
+                cache.put(packageId, bitmap);
+            }
+            return bitmap;
+        })
+                .subscribeOn(scheduler);
+    }
+
+    private Bitmap loadBitmap(String packageId) {
+        Drawable icon;
+        try {
+            icon = packageManager.getApplicationIcon(packageId);
+        } catch (PackageManager.NameNotFoundException e) {
+            // uninstalled since the app list was read
+            icon = packageManager.getDefaultActivityIcon();
+        }
+        Bitmap bitmap = Bitmap.createBitmap(iconSizePx, iconSizePx, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, iconSizePx, iconSizePx);
+        icon.draw(canvas);
+        return bitmap;
+    }
+}
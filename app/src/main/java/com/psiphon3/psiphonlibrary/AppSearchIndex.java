@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Precomputed search data of the apps shown by the app picker. Labels are lowercased and folded
+ * to their base letters so that "cafe" finds "Caf&eacute;", and labels and package ids are split into
+ * tokens.
+ * <p>
+ * Every term of a query has to match an app, either as prefix of a token or as substring of the
+ * label or package id. Apps matching all terms by token prefix are listed before the others,
+ * both groups keep the order of the entries.
+ */
+final class AppSearchIndex {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[\\s._\\-]+");
+
+    private final List<AppEntry> entries;
+    private final String[] labels;
+    private final String[] packageIds;
+    private final String[][] tokens;
+
+    AppSearchIndex(List<AppEntry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+        int size = entries.size();
+        labels = new String[size];
+        packageIds = new String[size];
+        tokens = new String[size][];
+        for (int i = 0; i < size; i++) {
+            AppEntry entry = entries.get(i);
+            labels[i] = normalize(entry.getName());
+            packageIds[i] = entry.getPackageId().toLowerCase(Locale.ROOT);
+            List<String> entryTokens = new ArrayList<>();
+            addTokens(entryTokens, labels[i]);
+            addTokens(entryTokens, packageIds[i]);
+            tokens[i] = entryTokens.toArray(new String[0]);
+        }
+    }
+
+    List<AppEntry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the matching entries, all entries for an empty query.
+     */
+    List<AppEntry> search(String query) {
+        List<String> terms = new ArrayList<>();
+        addTokens(terms, normalize(query));
+        if (terms.isEmpty()) {
+            return entries;
+        }
+        List<AppEntry> prefixMatches = new ArrayList<>();
+        List<AppEntry> substringMatches = new ArrayList<>();
+        for (int i = 0; i < labels.length; i++) {
+            boolean allPrefixes = true;
+            boolean matches = true;
+            for (String term : terms) {
+                if (hasTokenWithPrefix(i, term)) {
+                    continue;
+                }
+                if (labels[i].contains(term) || packageIds[i].contains(term)) {
+                    allPrefixes = false;
+                    continue;
+                }
+                matches = false;
+                break;
+            }
+            if (matches) {
+                (allPrefixes ? prefixMatches : substringMatches).add(entries.get(i));
+            }
+        }
+        prefixMatches.addAll(substringMatches);
+        return prefixMatches;
+    }
+
+    private boolean hasTokenWithPrefix(int index, String prefix) {
+        for (String token : tokens[index]) {
+            if (token.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    private static void addTokens(List<String> tokens, String text) {
+        for (String token : SEPARATORS.split(text)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+    }
+}
@@ -21,10 +21,11 @@ package com.psiphon3.psiphonlibrary;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FilterOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
@@ -35,11 +36,11 @@ import java.security.Signature;
 import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.util.Base64;
-import android.util.Base64OutputStream;
 
-import com.fasterxml.jackson.core.Base64Variants;
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
@@ -73,6 +74,66 @@ public class AuthenticatedDataPackage
             super(cause);
         }
     }
+
+    /**
+     * A parsed signature public key along with the digest packages carry to identify the key
+     * they were signed with.
+     */
+    private static class VerificationKey
+    {
+        final PublicKey publicKey;
+        final String digest;
+
+        VerificationKey(String signaturePublicKey)
+            throws NoSuchAlgorithmException, InvalidKeySpecException
+        {
+            byte[] publicKeyBytes = Base64.decode(signaturePublicKey, Base64.NO_WRAP);
+            X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            this.publicKey = keyFactory.generatePublic(spec);
+
+            MessageDigest sha2 = MessageDigest.getInstance("SHA256");
+            this.digest = Base64.encodeToString(sha2.digest(signaturePublicKey.getBytes()), Base64.NO_WRAP);
+        }
+    }
+
+    // Only a few embedded keys are ever used, the limit is a safeguard
+    private static final int MAX_CACHED_KEYS = 8;
+    private static final ConcurrentHashMap<String, VerificationKey> verificationKeys =
+            new ConcurrentHashMap<String, VerificationKey>();
+
+    // Signature instances are not thread safe, each thread reuses its own
+    private static final ThreadLocal<Signature> verifiers = new ThreadLocal<Signature>();
+
+    private static VerificationKey getVerificationKey(String signaturePublicKey)
+        throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        VerificationKey key = verificationKeys.get(signaturePublicKey);
+        if (key == null)
+        {
+            key = new VerificationKey(signaturePublicKey);
+            if (verificationKeys.size() >= MAX_CACHED_KEYS)
+            {
+                verificationKeys.clear();
+            }
+            verificationKeys.put(signaturePublicKey, key);
+        }
+        return key;
+    }
+
+    private static Signature getVerifier(PublicKey publicKey)
+        throws NoSuchAlgorithmException, InvalidKeyException
+    {
+        Signature verifier = verifiers.get();
+        if (verifier == null)
+        {
+            verifier = Signature.getInstance("SHA256withRSA");
+            verifiers.set(verifier);
+        }
+        // Also resets any state left by a previous, failed, verification
+        verifier.initVerify(publicKey);
+        return verifier;
+    }
     
     static public String extractAndVerifyData(
             String signaturePublicKey,
@@ -99,88 +160,316 @@ public class AuthenticatedDataPackage
         }
     }
     
-    private static class VerifyingOutputStream extends FilterOutputStream
+    /**
+     * Streams a Base64 "data" value straight from the package bytes, decoding it to the data
+     * destination and feeding the signature verifier in the same pass.
+     * The signature is on the Base64 encoding of the data without line breaks (a pre-existing
+     * design), which is the raw value once JSON escapes and whitespace are dropped, so the raw
+     * characters are fed to the verifier as they are decoded instead of re-encoding the decoded
+     * data. Only the final, padded, quantum is re-encoded so that non-zero trailing bits are
+     * verified the same way as before.
+     */
+    private static class Base64ValueReader
     {
-        private static class SignatureOutputStream extends OutputStream
-        {
-            private Signature signature;
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final byte[] ALPHABET =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+        // -1 for bytes that are not part of the alphabet
+        private static final int[] DECODE = new int[256];
 
-            public SignatureOutputStream(Signature signature)
+        static
+        {
+            Arrays.fill(DECODE, -1);
+            for (int i = 0; i < ALPHABET.length; i++)
             {
-                this.signature = signature;
-            }            
-            public void write(byte[] b) throws IOException
+                DECODE[ALPHABET[i]] = i;
+            }
+        }
+
+        private final InputStream input;
+        private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+        private int inputPosition;
+        private int inputEnd;
+
+        // Decoded bytes and raw Base64 characters not yet written to the destination and verifier
+        private final byte[] decoded = new byte[BUFFER_SIZE / 4 * 3];
+        private int decodedLength;
+        private final byte[] encoded = new byte[BUFFER_SIZE];
+        private int encodedLength;
+
+        /**
+         * @param buffered bytes following the opening quote of the value which were already read
+         *                 from the input, see JsonParser.releaseBuffered()
+         * @param input    the rest of the package
+         */
+        Base64ValueReader(byte[] buffered, InputStream input)
+        {
+            this.input = input;
+            // The JSON parser buffer is much smaller than ours
+            System.arraycopy(buffered, 0, this.inputBuffer, 0, buffered.length);
+            this.inputEnd = buffered.length;
+        }
+
+        /**
+         * Reads the value up to and including its closing quote.
+         */
+        void read(OutputStream dataDestination, Signature verifier)
+            throws IOException, SignatureException, AuthenticatedDataPackageException
+        {
+            int bits = 0;
+            int count = 0;
+            int padding = 0;
+
+            while (true)
             {
-                try
+                if (count == 0 && padding == 0)
+                {
+                    decodeQuanta(dataDestination, verifier);
+                }
+
+                // One character at a time, when the fast path stopped on a quote, escape,
+                // whitespace, padding or the end of the buffered input
+
+                if (this.inputPosition == this.inputEnd)
+                {
+                    fill();
+                }
+                int c = this.inputBuffer[this.inputPosition++] & 0xFF;
+
+                if (c == '"')
+                {
+                    break;
+                }
+                if (c == '\\')
                 {
-                    this.signature.update(b);
-                } catch (SignatureException e) {}
+                    c = readEscaped();
+                }
+                if (c <= ' ')
+                {
+                    // Line breaks and whitespace are skipped, as with Base64Variants.MIME
+                    continue;
+                }
+                if (c == '=')
+                {
+                    if (count < 2 || count + padding == 4)
+                    {
+                        throw new AuthenticatedDataPackageException("Invalid Base64 padding");
+                    }
+                    padding++;
+                    continue;
+                }
+                // Escaped characters can be beyond the table, none of them is in the alphabet
+                int value = c < DECODE.length ? DECODE[c] : -1;
+                if (value < 0 || padding > 0)
+                {
+                    throw new AuthenticatedDataPackageException("Invalid Base64 character");
+                }
+
+                bits = (bits << 6) | value;
+                if (++count == 4)
+                {
+                    // A full quantum is its own canonical encoding
+                    if (this.encodedLength + 4 > this.encoded.length)
+                    {
+                        flush(dataDestination, verifier);
+                    }
+                    this.decoded[this.decodedLength++] = (byte) (bits >> 16);
+                    this.decoded[this.decodedLength++] = (byte) (bits >> 8);
+                    this.decoded[this.decodedLength++] = (byte) bits;
+                    this.encoded[this.encodedLength++] = ALPHABET[(bits >> 18) & 0x3F];
+                    this.encoded[this.encodedLength++] = ALPHABET[(bits >> 12) & 0x3F];
+                    this.encoded[this.encodedLength++] = ALPHABET[(bits >> 6) & 0x3F];
+                    this.encoded[this.encodedLength++] = ALPHABET[bits & 0x3F];
+                    bits = 0;
+                    count = 0;
+                }
             }
 
-            public void write(byte[] b, int off, int len) throws IOException
+            if (count == 1)
             {
-                try
-                {
-                    this.signature.update(b, off, len);
-                } catch (SignatureException e) {}
-                
+                throw new AuthenticatedDataPackageException("Truncated Base64 value");
+            }
+            if (this.encodedLength + 4 > this.encoded.length)
+            {
+                flush(dataDestination, verifier);
+            }
+            if (count == 2)
+            {
+                int data = bits >> 4;
+                this.decoded[this.decodedLength++] = (byte) data;
+                this.encoded[this.encodedLength++] = ALPHABET[(data >> 2) & 0x3F];
+                this.encoded[this.encodedLength++] = ALPHABET[(data << 4) & 0x3F];
+                this.encoded[this.encodedLength++] = '=';
+                this.encoded[this.encodedLength++] = '=';
+            }
+            else if (count == 3)
+            {
+                int data = bits >> 2;
+                this.decoded[this.decodedLength++] = (byte) (data >> 8);
+                this.decoded[this.decodedLength++] = (byte) data;
+                this.encoded[this.encodedLength++] = ALPHABET[(data >> 10) & 0x3F];
+                this.encoded[this.encodedLength++] = ALPHABET[(data >> 4) & 0x3F];
+                this.encoded[this.encodedLength++] = ALPHABET[(data << 2) & 0x3F];
+                this.encoded[this.encodedLength++] = '=';
             }
+            flush(dataDestination, verifier);
+        }
 
-            public void write(int b) throws IOException
+        /**
+         * Fast path decoding whole quanta of alphabet characters from the buffered input.
+         * A full quantum is its own canonical encoding, so the raw characters are fed to the
+         * verifier unchanged.
+         */
+        private void decodeQuanta(OutputStream dataDestination, Signature verifier)
+            throws IOException, SignatureException
+        {
+            byte[] input = this.inputBuffer;
+            int position = this.inputPosition;
+            while (true)
             {
-                try
+                if (this.encodedLength == this.encoded.length)
                 {
-                    // NOTE: write(int oneByte): "Writes a single byte to this stream. 
-                    // Only the least significant byte of the integer oneByte is written to the stream."
-                    this.signature.update((byte)b);
-                } catch (SignatureException e) {}
+                    flush(dataDestination, verifier);
+                }
+                int quanta = Math.min(
+                        (this.inputEnd - position) / 4, (this.encoded.length - this.encodedLength) / 4);
+                if (quanta == 0)
+                {
+                    break;
+                }
+                int decodedLength = this.decodedLength;
+                int start = position;
+                int end = position + quanta * 4;
+                while (position < end)
+                {
+                    int bits = (DECODE[input[position] & 0xFF] << 18)
+                            | (DECODE[input[position + 1] & 0xFF] << 12)
+                            | (DECODE[input[position + 2] & 0xFF] << 6)
+                            | DECODE[input[position + 3] & 0xFF];
+                    if (bits < 0)
+                    {
+                        // Not an alphabet character
+                        break;
+                    }
+                    this.decoded[decodedLength++] = (byte) (bits >> 16);
+                    this.decoded[decodedLength++] = (byte) (bits >> 8);
+                    this.decoded[decodedLength++] = (byte) bits;
+                    position += 4;
+                }
+                System.arraycopy(input, start, this.encoded, this.encodedLength, position - start);
+                this.decodedLength = decodedLength;
+                this.encodedLength += position - start;
+                if (position < end)
+                {
+                    break;
+                }
             }
-        };
-        
-        private boolean dataIsBase64;
-        private OutputStream verifyOutputStream;
+            this.inputPosition = position;
+        }
 
-        public VerifyingOutputStream(boolean dataIsBase64, OutputStream out, Signature signature)
+        /**
+         * @return the package bytes following the closing quote of the value.
+         */
+        InputStream remaining()
         {
-            super(out);
-            this.dataIsBase64 = dataIsBase64;
-            this.verifyOutputStream = new SignatureOutputStream(signature);
+            return new SequenceInputStream(
+                    new ByteArrayInputStream(this.inputBuffer, this.inputPosition, this.inputEnd - this.inputPosition),
+                    this.input);
+        }
 
-            if (this.dataIsBase64)
+        private void flush(OutputStream dataDestination, Signature verifier)
+            throws IOException, SignatureException
+        {
+            dataDestination.write(this.decoded, 0, this.decodedLength);
+            verifier.update(this.encoded, 0, this.encodedLength);
+            this.decodedLength = 0;
+            this.encodedLength = 0;
+        }
+
+        private void fill() throws IOException
+        {
+            int read = this.input.read(this.inputBuffer);
+            if (read <= 0)
             {
-                // We re-encode the data as Base64, since the signature is on Base64-encoded
-                // data (a pre-existing design). The Jackson API forces a decode before we can
-                // stream the encoded data to the signature stream, hence the re-encode.
-                // TODO: Avoid this redundant computation.
-                
-                this.verifyOutputStream = new Base64OutputStream(this.verifyOutputStream, Base64.NO_WRAP);
+                throw new EOFException("Unterminated data value");
             }
+            this.inputPosition = 0;
+            this.inputEnd = read;
         }
 
-        public void write(byte[] b) throws IOException
+        private int readByte() throws IOException
         {
-            this.out.write(b);
-            this.verifyOutputStream.write(b);
+            if (this.inputPosition == this.inputEnd)
+            {
+                fill();
+            }
+            return this.inputBuffer[this.inputPosition++] & 0xFF;
         }
 
-        public void write(byte[] b, int off, int len) throws IOException
+        // Decodes the JSON escape following a backslash
+        private int readEscaped() throws IOException, AuthenticatedDataPackageException
         {
-            this.out.write(b, off, len);
-            this.verifyOutputStream.write(b, off, len);
-            
+            int c = readByte();
+            switch (c)
+            {
+            case '/':
+            case '"':
+            case '\\':
+                return c;
+            case 'b':
+            case 'f':
+            case 'n':
+            case 'r':
+            case 't':
+                return ' ';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++)
+                {
+                    int digit = Character.digit(readByte(), 16);
+                    if (digit < 0)
+                    {
+                        throw new AuthenticatedDataPackageException("Invalid escape in data value");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return value;
+            default:
+                throw new AuthenticatedDataPackageException("Invalid escape in data value");
+            }
         }
+    }
 
-        public void write(int b) throws IOException
+    /**
+     * Continues parsing the package object after a value that was read directly from the input.
+     * @return null if the object ended after the value.
+     */
+    private static JsonParser resumeParser(JsonFactory jsonFactory, InputStream remaining)
+        throws IOException, AuthenticatedDataPackageException
+    {
+        int c;
+        do
         {
-            this.out.write(b);            
-            this.verifyOutputStream.write(b);
+            c = remaining.read();
         }
-        
-        public void close() throws IOException
+        while (c == ' ' || c == '\t' || c == '\n' || c == '\r');
+
+        if (c == '}')
+        {
+            return null;
+        }
+        if (c != ',')
         {
-            this.out.close();            
-            this.verifyOutputStream.close();
+            throw new AuthenticatedDataPackageException();
+        }
+        // Restart the object with the remaining fields
+        JsonParser parser = jsonFactory.createParser(
+                new SequenceInputStream(new ByteArrayInputStream(new byte[] {'{'}), remaining));
+        if (parser.nextToken() != JsonToken.START_OBJECT)
+        {
+            throw new AuthenticatedDataPackageException();
         }
+        return parser;
     }
 
     static public void extractAndVerifyData(
@@ -197,7 +486,6 @@ public class AuthenticatedDataPackage
         // and dataDestination output stream.
 
         JsonParser parser = null;
-        VerifyingOutputStream verifyingOutputStream = null;
         
         try
         {
@@ -207,27 +495,25 @@ public class AuthenticatedDataPackage
 
             // Initialize a verifier using the expected public key; this will
             // be used while streaming the "data" value when parsing the JSON.
+            // The parsed key and the verifier are cached across calls.
             
-            byte[] publicKeyBytes = Base64.decode(signaturePublicKey, Base64.NO_WRAP);
-            java.security.spec.X509EncodedKeySpec spec = new X509EncodedKeySpec(publicKeyBytes);
-            java.security.KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            PublicKey publicKey = keyFactory.generatePublic(spec);
-
-            Signature verifier = java.security.Signature.getInstance("SHA256withRSA");
-            verifier.initVerify(publicKey);
-            verifyingOutputStream = new VerifyingOutputStream(dataIsBase64, dataDestination, verifier);
+            VerificationKey verificationKey = getVerificationKey(signaturePublicKey);
+            Signature verifier = getVerifier(verificationKey.publicKey);
             
             // JSON parsing - using a streaming API as the "data" value is too large
             // to be loaded into memory.
+            // The input is closed below, parsers are replaced when resuming after the data value.
             
-            parser = new JsonFactory().createParser(dataPackage);
+            JsonFactory jsonFactory = new JsonFactory();
+            jsonFactory.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            parser = jsonFactory.createParser(dataPackage);
 
             if (parser.nextToken() != JsonToken.START_OBJECT)
             {
                 throw new AuthenticatedDataPackageException();
             }
 
-            while (true)
+            while (parser != null)
             {
                 JsonToken token = parser.nextToken();
                 
@@ -267,27 +553,31 @@ public class AuthenticatedDataPackage
                         // whereby it writes to a temp file name, then renames (commits) the file
                         // after validateAndExtractData returns true.
                         
-                        try
-                        {
-                            parser.readBinaryValue(Base64Variants.MIME, verifyingOutputStream);
-                        }
-                        catch (IllegalArgumentException e)
+                        // The parser has not read the value yet, it is read directly from the
+                        // input starting with the bytes the parser buffered after the opening
+                        // quote. Parsing then resumes after the closing quote.
+
+                        ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+                        if (parser.releaseBuffered(buffered) < 0)
                         {
-                            // Jackson throws this unchecked exception for malformed Base64
-                            throw new AuthenticatedDataPackageException(e);
+                            throw new AuthenticatedDataPackageException("Unsupported authenticated data package encoding");
                         }
+                        Base64ValueReader valueReader = new Base64ValueReader(buffered.toByteArray(), dataPackage);
+                        valueReader.read(dataDestination, verifier);
+                        dataDestination.close();
+
+                        parser.close();
+                        parser = resumeParser(jsonFactory, valueReader.remaining());
                     }
                     else
                     {
                         // NOTE: Jackson can only stream Base64 values
-                        
-                        verifyingOutputStream.write(parser.getValueAsString().getBytes());
+
+                        byte[] data = parser.getValueAsString().getBytes();
+                        dataDestination.write(data);
+                        dataDestination.close();
+                        verifier.update(data);
                     }
-                    
-                    // This explicit close() ensures that the Base64OutputStream in 
-                    // Base64OutputStream has flushed and output final padding *before*
-                    // the verifier.verify() call.
-                    verifyingOutputStream.close();
 
                     dataValueRead = true;
                 }
@@ -315,10 +605,7 @@ public class AuthenticatedDataPackage
             
             // Check if the entry is signed with a different public key than our embedded value.
             
-            MessageDigest sha2;
-            sha2 = MessageDigest.getInstance("SHA256");
-            String publicKeyDigest = Base64.encodeToString(sha2.digest(signaturePublicKey.getBytes()), Base64.NO_WRAP);
-            if (0 != publicKeyDigest.compareTo(signingPublicKeyDigest))
+            if (0 != verificationKey.digest.compareTo(signingPublicKeyDigest))
             {
                 MyLog.e("Authenticated data package signed with different public key");
                 throw new AuthenticatedDataPackageException();
@@ -363,10 +650,8 @@ public class AuthenticatedDataPackage
             {
                 try { parser.close(); } catch (IOException e) {}
             }            
-            if (verifyingOutputStream != null)
-            {
-                try { verifyingOutputStream.close(); } catch (IOException e) {}
-            }            
+            try { dataPackage.close(); } catch (IOException e) {}
+            try { dataDestination.close(); } catch (IOException e) {}
         }
     }
 }
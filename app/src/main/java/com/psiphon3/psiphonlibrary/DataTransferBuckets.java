@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size series of sent/received byte counters, one per time period, backed by a pair of
+ * primitive ring buffers.
+ * <p>
+ * The newest bucket is at the head index; advancing time only moves the head and zeroes the
+ * buckets that fall out of the window, so the cost of a shift does not depend on how much time
+ * has elapsed, and adding bytes never allocates.
+ * <p>
+ * A running count of shifts and the start time of the newest bucket are packed into a single
+ * atomic word, the head index being derived from the shift count. Writers on any thread add bytes
+ * to the head without taking a lock. A rollover, including {@link #reset(long)} and
+ * {@link #set(long[], long[], long)}, first marks the state word as rolling with a
+ * compare-and-set, then recycles the buckets and only then publishes the new head, so bytes added
+ * to the new head can't be zeroed. Bytes added while rolling go to the previous head, which is
+ * only recycled when the whole window is, and then only by the amount it held before the claim.
+ * Readers wait for a rollover in progress to complete and take an optimistic snapshot, retrying if
+ * the state word changed while they were copying.
+ */
+final class DataTransferBuckets {
+    private static final int SHIFT_COUNT_BITS = 24;
+    private static final long SHIFT_COUNT_MASK = (1L << SHIFT_COUNT_BITS) - 1;
+    private static final long ROLLING = 1L << SHIFT_COUNT_BITS;
+    private static final int START_TIME_SHIFT = SHIFT_COUNT_BITS + 1;
+    private static final int MAX_SNAPSHOT_ATTEMPTS = 8;
+
+    private final int m_capacity;
+    private final long m_periodMillis;
+    // Shift counts wrap at a multiple of the capacity so the head index stays continuous
+    private final long m_shiftCountModulus;
+    private final AtomicLongArray m_bytesSent;
+    private final AtomicLongArray m_bytesReceived;
+    // (start time of the newest bucket / period) << START_TIME_SHIFT | ROLLING | shift count
+    private final AtomicLong m_state = new AtomicLong();
+
+    /**
+     * Consistent copy of the series ordered from the oldest to the newest bucket, along with the
+     * running shift count that allows computing which buckets changed between two snapshots.
+     */
+    static final class Snapshot {
+        long lastStartTime;
+        long shiftCount;
+        final long[] sent;
+        final long[] received;
+
+        Snapshot(int capacity) {
+            sent = new long[capacity];
+            received = new long[capacity];
+        }
+
+        // Applies a delta computed with changedIndices(), on the receiving end of the transport.
+        void applyDelta(long lastStartTime, int shift, int[] indices, long[] sentValues, long[] receivedValues) {
+            shiftLeft(sent, shift);
+            shiftLeft(received, shift);
+            for (int i = 0; i < indices.length; i++) {
+                sent[indices[i]] = sentValues[i];
+                received[indices[i]] = receivedValues[i];
+            }
+            this.lastStartTime = lastStartTime;
+        }
+
+        private static void shiftLeft(long[] series, int shift) {
+            if (shift <= 0) {
+                return;
+            }
+            int kept = Math.max(series.length - shift, 0);
+            System.arraycopy(series, series.length - kept, series, 0, kept);
+            Arrays.fill(series, kept, series.length, 0);
+        }
+    }
+
+    DataTransferBuckets(int capacity, long periodMillis) {
+        if (capacity <= 0 || capacity > SHIFT_COUNT_MASK || periodMillis <= 0) {
+            throw new IllegalArgumentException("invalid capacity or period");
+        }
+        m_capacity = capacity;
+        m_periodMillis = periodMillis;
+        m_shiftCountModulus = capacity * ((SHIFT_COUNT_MASK + 1) / capacity);
+        m_bytesSent = new AtomicLongArray(capacity);
+        m_bytesReceived = new AtomicLongArray(capacity);
+        m_state.set(packState(0, 0));
+    }
+
+    int capacity() {
+        return m_capacity;
+    }
+
+    long getLastStartTime() {
+        return lastStartTime(m_state.get());
+    }
+
+    // A reset counts as shifting every bucket out of the window.
+    void reset(long now) {
+        long[] head = new long[2];
+        long state = claim(head);
+        clearAll(head(state), head);
+        m_state.set(packState(now, addShifts(shiftCount(state), m_capacity)));
+    }
+
+    // Rolls the series forward to the bucket containing 'now'. Mirrors the legacy list based
+    // implementation which appended (elapsed periods + 1) empty buckets once at least a full
+    // period has elapsed since the current bucket started.
+    // A rollover already in progress on another thread is not waited for, the bytes added
+    // meanwhile go to the previous head.
+    void advance(long now) {
+        while (true) {
+            long state = m_state.get();
+            if (isRolling(state)) {
+                return;
+            }
+            long diff = now - lastStartTime(state);
+            if (diff < m_periodMillis) {
+                return;
+            }
+            long shifts = Math.min(diff / m_periodMillis + 1, m_capacity);
+            int head = head(state);
+            long[] headBytes = {m_bytesSent.get(head), m_bytesReceived.get(head)};
+            if (m_state.compareAndSet(state, state | ROLLING)) {
+                if (shifts >= m_capacity) {
+                    clearAll(head, headBytes);
+                } else {
+                    int index = head;
+                    for (int i = 0; i < shifts; i++) {
+                        index = index + 1 == m_capacity ? 0 : index + 1;
+                        clear(index);
+                    }
+                }
+                m_state.set(packState(now, addShifts(shiftCount(state), shifts)));
+                return;
+            }
+        }
+    }
+
+    void addBytesSent(long bytes) {
+        m_bytesSent.addAndGet(head(m_state.get()), bytes);
+    }
+
+    void addBytesReceived(long bytes) {
+        m_bytesReceived.addAndGet(head(m_state.get()), bytes);
+    }
+
+    long[] getSentArray() {
+        long[] sent = new long[m_capacity];
+        snapshot(sent, null);
+        return sent;
+    }
+
+    long[] getReceivedArray() {
+        long[] received = new long[m_capacity];
+        snapshot(null, received);
+        return received;
+    }
+
+    ArrayList<Long> getSentSeries() {
+        return toList(getSentArray());
+    }
+
+    ArrayList<Long> getReceivedSeries() {
+        return toList(getReceivedArray());
+    }
+
+    /**
+     * Copies the series ordered from the oldest to the newest bucket into the given arrays,
+     * either of which may be null, without blocking writers.
+     *
+     * @return start time of the newest bucket of the copied series.
+     */
+    long snapshot(long[] sent, long[] received) {
+        return lastStartTime(copyConsistent(sent, received));
+    }
+
+    Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot(m_capacity);
+        long state = copyConsistent(snapshot.sent, snapshot.received);
+        snapshot.lastStartTime = lastStartTime(state);
+        snapshot.shiftCount = shiftCount(state);
+        return snapshot;
+    }
+
+    /**
+     * Number of positions the ordered series moved between two snapshots of these buckets,
+     * a value of at least capacity() meaning that none of the base buckets remain.
+     */
+    int shiftsBetween(Snapshot base, Snapshot current) {
+        long shifts = current.shiftCount - base.shiftCount;
+        if (shifts < 0) {
+            shifts += m_shiftCountModulus;
+        }
+        return (int) Math.min(shifts, m_capacity);
+    }
+
+    /**
+     * Ordered indices of the buckets of 'current' that differ from 'base' once the base series
+     * is shifted by shiftsBetween(base, current).
+     */
+    static int[] changedIndices(Snapshot base, Snapshot current, int shift) {
+        int capacity = current.sent.length;
+        int[] changed = new int[capacity];
+        int count = 0;
+        for (int i = 0; i < capacity; i++) {
+            int baseIndex = i + shift;
+            long baseSent = baseIndex < capacity ? base.sent[baseIndex] : 0;
+            long baseReceived = baseIndex < capacity ? base.received[baseIndex] : 0;
+            if (current.sent[i] != baseSent || current.received[i] != baseReceived) {
+                changed[count++] = i;
+            }
+        }
+        return Arrays.copyOf(changed, count);
+    }
+
+    private long copyConsistent(long[] sent, long[] received) {
+        long state = awaitRollover();
+        for (int attempt = 0; attempt < MAX_SNAPSHOT_ATTEMPTS; attempt++) {
+            copyOrdered(state, sent, received);
+            long current = awaitRollover();
+            if (current == state) {
+                break;
+            }
+            // A rollover happened while copying, try again
+            state = current;
+        }
+        return state;
+    }
+
+    // Replaces the contents with series ordered from the oldest to the newest bucket, as returned
+    // by getSentArray()/getReceivedArray(). Mismatching or missing series reset the buckets.
+    void set(long[] sent, long[] received, long lastStartTime) {
+        if (sent == null || received == null
+                || sent.length != m_capacity || received.length != m_capacity) {
+            reset(lastStartTime);
+            return;
+        }
+        long[] headBytes = new long[2];
+        long claimed = claim(headBytes);
+        // Shifting by the capacity keeps the head index, which receives the newest bucket
+        int head = head(claimed);
+        int index = head + 1 == m_capacity ? 0 : head + 1;
+        for (int i = 0; i < m_capacity - 1; i++) {
+            m_bytesSent.set(index, sent[i]);
+            m_bytesReceived.set(index, received[i]);
+            index = index + 1 == m_capacity ? 0 : index + 1;
+        }
+        m_bytesSent.addAndGet(head, sent[m_capacity - 1] - headBytes[0]);
+        m_bytesReceived.addAndGet(head, received[m_capacity - 1] - headBytes[1]);
+        m_state.set(packState(lastStartTime, addShifts(shiftCount(claimed), m_capacity)));
+    }
+
+    // Marks a rollover in progress once any other one has completed. The counters of the head are
+    // read before claiming, so that bytes added to it afterwards can be kept.
+    private long claim(long[] headBytes) {
+        while (true) {
+            long state = m_state.get();
+            if (isRolling(state)) {
+                Thread.yield();
+                continue;
+            }
+            int head = head(state);
+            headBytes[0] = m_bytesSent.get(head);
+            headBytes[1] = m_bytesReceived.get(head);
+            if (m_state.compareAndSet(state, state | ROLLING)) {
+                return state;
+            }
+        }
+    }
+
+    // Rollovers only zero up to capacity buckets, so readers simply yield until it is published.
+    private long awaitRollover() {
+        long state;
+        while (isRolling(state = m_state.get())) {
+            Thread.yield();
+        }
+        return state;
+    }
+
+    private void copyOrdered(long state, long[] sent, long[] received) {
+        int index = head(state) + 1 == m_capacity ? 0 : head(state) + 1;
+        for (int i = 0; i < m_capacity; i++) {
+            if (sent != null) {
+                sent[i] = m_bytesSent.get(index);
+            }
+            if (received != null) {
+                received[i] = m_bytesReceived.get(index);
+            }
+            index = index + 1 == m_capacity ? 0 : index + 1;
+        }
+    }
+
+    // Subtracts what the bucket holds instead of storing 0, so that a writer still adding to
+    // this index with an outdated head doesn't lose its bytes.
+    private void clear(int index) {
+        m_bytesSent.addAndGet(index, -m_bytesSent.get(index));
+        m_bytesReceived.addAndGet(index, -m_bytesReceived.get(index));
+    }
+
+    // Clears every bucket, the head only of the bytes it held before the rollover was claimed.
+    private void clearAll(int head, long[] headBytes) {
+        for (int i = 0; i < m_capacity; i++) {
+            if (i != head) {
+                clear(i);
+            }
+        }
+        m_bytesSent.addAndGet(head, -headBytes[0]);
+        m_bytesReceived.addAndGet(head, -headBytes[1]);
+    }
+
+    private long packState(long now, long shiftCount) {
+        return ((now / m_periodMillis) << START_TIME_SHIFT) | shiftCount;
+    }
+
+    private long addShifts(long shiftCount, long shifts) {
+        return (shiftCount + shifts) % m_shiftCountModulus;
+    }
+
+    private long lastStartTime(long state) {
+        return (state >>> START_TIME_SHIFT) * m_periodMillis;
+    }
+
+    private static boolean isRolling(long state) {
+        return (state & ROLLING) != 0;
+    }
+
+    private static long shiftCount(long state) {
+        return state & SHIFT_COUNT_MASK;
+    }
+
+    private int head(long state) {
+        return (int) (shiftCount(state) % m_capacity);
+    }
+
+    private static ArrayList<Long> toList(long[] values) {
+        ArrayList<Long> series = new ArrayList<>(values.length);
+        for (long value : values) {
+            series.add(value);
+        }
+        return series;
+    }
+}
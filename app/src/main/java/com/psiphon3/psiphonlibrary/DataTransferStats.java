@@ -19,10 +19,9 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.os.Parcel;
-import android.os.Parcelable;
 import android.os.SystemClock;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DataTransferStats {
     // Singleton pattern
@@ -51,57 +50,17 @@ public class DataTransferStats {
     public static abstract class DataTransferStatsBase {
         private static final long SLOW_BUCKET_PERIOD_MILLISECONDS = 5 * 60 * 1000;
         private static final long FAST_BUCKET_PERIOD_MILLISECONDS = 1000;
-        private static final int MAX_BUCKETS = 24 * 60 / 5;
+        static final int MAX_BUCKETS = 24 * 60 / 5;
 
-        protected static class Bucket implements Parcelable {
-            public long m_bytesSent = 0;
-            public long m_bytesReceived = 0;
-
-            protected Bucket() {
-
-            }
-
-            protected Bucket(Parcel in) {
-                m_bytesSent = in.readLong();
-                m_bytesReceived = in.readLong();
-            }
-
-            @Override
-            public int describeContents() {
-                return 0;
-            }
-
-            @Override
-            public void writeToParcel(Parcel dest, int flags) {
-                dest.writeLong(m_bytesSent);
-                dest.writeLong(m_bytesReceived);
-            }
-
-            public static final Creator<Bucket> CREATOR = new Creator<Bucket>() {
-                @Override
-                public Bucket createFromParcel(Parcel in) {
-                    return new Bucket(in);
-                }
-
-                @Override
-                public Bucket[] newArray(int size) {
-                    return new Bucket[size];
-                }
-            };
-        }
-
-        protected long m_connectedTime;
-        protected long m_totalBytesSent;
-        protected long m_totalBytesReceived;
-        protected ArrayList<Bucket> m_slowBuckets;
-        protected long m_slowBucketsLastStartTime;
-        protected ArrayList<Bucket> m_fastBuckets;
-        protected long m_fastBucketsLastStartTime;
+        protected volatile long m_connectedTime;
+        protected final AtomicLong m_totalBytesSent = new AtomicLong();
+        protected final AtomicLong m_totalBytesReceived = new AtomicLong();
+        protected final DataTransferBuckets m_slowBuckets =
+                new DataTransferBuckets(MAX_BUCKETS, SLOW_BUCKET_PERIOD_MILLISECONDS);
+        protected final DataTransferBuckets m_fastBuckets =
+                new DataTransferBuckets(MAX_BUCKETS, FAST_BUCKET_PERIOD_MILLISECONDS);
 
         private DataTransferStatsBase() {
-            m_totalBytesSent = 0;
-            m_totalBytesReceived = 0;
-
             stop();
         }
 
@@ -112,47 +71,14 @@ public class DataTransferStats {
 
         protected void resetBytesTransferred() {
             long now = SystemClock.elapsedRealtime();
-            m_slowBucketsLastStartTime = bucketStartTime(now, SLOW_BUCKET_PERIOD_MILLISECONDS);
-            m_slowBuckets = newBuckets();
-            m_fastBucketsLastStartTime = bucketStartTime(now, FAST_BUCKET_PERIOD_MILLISECONDS);
-            m_fastBuckets = newBuckets();
-        }
-
-        private long bucketStartTime(long now, long period) {
-            return period * (now / period);
-        }
-
-        private ArrayList<Bucket> newBuckets() {
-            ArrayList<Bucket> buckets = new ArrayList<>();
-            for (int i = 0; i < MAX_BUCKETS; i++) {
-                buckets.add(new Bucket());
-            }
-            return buckets;
-        }
-
-        private void shiftBuckets(long diff, long period, ArrayList<Bucket> buckets) {
-            for (int i = 0; i < diff / period + 1; i++) {
-                buckets.add(buckets.size(), new Bucket());
-                if (buckets.size() >= MAX_BUCKETS) {
-                    buckets.remove(0);
-                }
-            }
+            m_slowBuckets.reset(now);
+            m_fastBuckets.reset(now);
         }
 
         protected void manageBuckets() {
             long now = SystemClock.elapsedRealtime();
-
-            long diff = now - m_slowBucketsLastStartTime;
-            if (diff >= SLOW_BUCKET_PERIOD_MILLISECONDS) {
-                shiftBuckets(diff, SLOW_BUCKET_PERIOD_MILLISECONDS, m_slowBuckets);
-                m_slowBucketsLastStartTime = bucketStartTime(now, SLOW_BUCKET_PERIOD_MILLISECONDS);
-            }
-
-            diff = now - m_fastBucketsLastStartTime;
-            if (diff >= FAST_BUCKET_PERIOD_MILLISECONDS) {
-                shiftBuckets(diff, FAST_BUCKET_PERIOD_MILLISECONDS, m_fastBuckets);
-                m_fastBucketsLastStartTime = bucketStartTime(now, FAST_BUCKET_PERIOD_MILLISECONDS);
-            }
+            m_slowBuckets.advance(now);
+            m_fastBuckets.advance(now);
         }
     }
 
@@ -169,28 +95,17 @@ public class DataTransferStats {
             m_connectedTime = SystemClock.elapsedRealtime();
         }
 
-        public synchronized void addBytesSent(long bytes) {
-            m_totalBytesSent += bytes;
-
-            manageBuckets();
-            addSentToBuckets(bytes);
-        }
-
-        public synchronized void addBytesReceived(long bytes) {
-            m_totalBytesReceived += bytes;
+        // The byte counters are lock free, so these may be called directly from tunnel-core
+        // threads without synchronizing with the snapshot readers.
+        public void addBytesTransferred(long sent, long received) {
+            m_totalBytesSent.addAndGet(sent);
+            m_totalBytesReceived.addAndGet(received);
 
             manageBuckets();
-            addReceivedToBuckets(bytes);
-        }
-
-        private void addSentToBuckets(long bytes) {
-            m_slowBuckets.get(m_slowBuckets.size() - 1).m_bytesSent += bytes;
-            m_fastBuckets.get(m_fastBuckets.size() - 1).m_bytesSent += bytes;
-        }
-
-        private void addReceivedToBuckets(long bytes) {
-            m_slowBuckets.get(m_slowBuckets.size() - 1).m_bytesReceived += bytes;
-            m_fastBuckets.get(m_fastBuckets.size() - 1).m_bytesReceived += bytes;
+            m_slowBuckets.addBytesSent(sent);
+            m_fastBuckets.addBytesSent(sent);
+            m_slowBuckets.addBytesReceived(received);
+            m_fastBuckets.addBytesReceived(received);
         }
     }
 
@@ -199,22 +114,6 @@ public class DataTransferStats {
 
         }
 
-        private ArrayList<Long> getSentSeries(ArrayList<Bucket> buckets) {
-            ArrayList<Long> series = new ArrayList<>();
-            for (int i = 0; i < buckets.size(); i++) {
-                series.add(buckets.get(i).m_bytesSent);
-            }
-            return series;
-        }
-
-        private ArrayList<Long> getReceivedSeries(ArrayList<Bucket> buckets) {
-            ArrayList<Long> series = new ArrayList<>();
-            for (int i = 0; i < buckets.size(); i++) {
-                series.add(buckets.get(i).m_bytesReceived);
-            }
-            return series;
-        }
-
         public synchronized long getElapsedTime() {
             long now = SystemClock.elapsedRealtime();
 
@@ -222,31 +121,31 @@ public class DataTransferStats {
         }
 
         public synchronized long getTotalBytesSent() {
-            return this.m_totalBytesSent;
+            return this.m_totalBytesSent.get();
         }
 
         public synchronized long getTotalBytesReceived() {
-            return this.m_totalBytesReceived;
+            return this.m_totalBytesReceived.get();
         }
 
         public synchronized ArrayList<Long> getSlowSentSeries() {
             manageBuckets();
-            return getSentSeries(this.m_slowBuckets);
+            return this.m_slowBuckets.getSentSeries();
         }
 
         public synchronized ArrayList<Long> getSlowReceivedSeries() {
             manageBuckets();
-            return getReceivedSeries(this.m_slowBuckets);
+            return this.m_slowBuckets.getReceivedSeries();
         }
 
         public synchronized ArrayList<Long> getFastSentSeries() {
             manageBuckets();
-            return getSentSeries(this.m_fastBuckets);
+            return this.m_fastBuckets.getSentSeries();
         }
 
         public synchronized ArrayList<Long> getFastReceivedSeries() {
             manageBuckets();
-            return getReceivedSeries(this.m_fastBuckets);
+            return this.m_fastBuckets.getReceivedSeries();
         }
     }
 }
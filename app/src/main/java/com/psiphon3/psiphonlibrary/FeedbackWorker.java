@@ -33,20 +33,27 @@ import androidx.work.WorkerParameters;
 import com.psiphon3.PsiphonCrashService;
 import com.psiphon3.R;
 import com.psiphon3.log.LogEntry;
+import com.psiphon3.log.LogRecord;
 import com.psiphon3.log.LoggingContentProvider;
 import com.psiphon3.log.MyLog;
+import com.psiphon3.log.ResourceNameCache;
 
-import net.grandcentrix.tray.AppPreferences;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import net.grandcentrix.tray.AppPreferences;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.SecureRandom;
 import java.util.Date;
 import java.util.Locale;
@@ -67,7 +74,7 @@ import io.reactivex.schedulers.Schedulers;
  * rescheduled.
  */
 public class FeedbackWorker extends RxWorker {
-    // log JSON max size to read from logs DB
+    // max UTF-8 size of the log history written to the feedback payload
     private final static int MAX_LOG_SOURCE_JSON_SIZE_BYTES = 1 << 20; // 1MB
 
     private final TunnelServiceInteractor tunnelServiceInteractor;
@@ -301,7 +308,7 @@ public class FeedbackWorker extends RxWorker {
 
                         // Build a temporary tunnel config to use
                         TunnelManager.Config tunnelManagerConfig = new TunnelManager.Config();
-                        final AppPreferences multiProcessPreferences = new AppPreferences(context);
+                        final AppPreferences multiProcessPreferences = AppPreferences.getInstance(context);
                         tunnelManagerConfig.disableTimeouts = multiProcessPreferences.getBoolean(
                                 context.getString(R.string.disableTimeoutsPreference), false);
 
@@ -344,149 +351,301 @@ public class FeedbackWorker extends RxWorker {
                               String feedbackText,
                               String surveyResponsesJson,
                               String feedbackId,
-                              long beforeTimeMillis) throws JSONException {
-        // Top level json object
-        JSONObject feedbackJsonObject = new JSONObject();
-
-        // Add metadata
-        JSONObject metadata = new JSONObject();
+                              long beforeTimeMillis) throws IOException {
+        // The payload is streamed as UTF-8 to a file in the cache directory so that its size is
+        // known exactly while writing and it is never buffered in memory while being built. The
+        // tunnel library only accepts the payload as a string, which is read back once at the end.
+        File payloadFile = File.createTempFile("feedback", ".json", context.getCacheDir());
+        try {
+            try (CountingOutputStream out = new CountingOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(payloadFile)))) {
+                writeFeedbackData(context, out, shouldIncludeDiagnostics, email, feedbackText,
+                        surveyResponsesJson, feedbackId, beforeTimeMillis);
+            }
+            byte[] payload = new byte[(int) payloadFile.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(payloadFile))) {
+                in.readFully(payload);
+            }
+            return new String(payload, "UTF-8");
+        } finally {
+            payloadFile.delete();
+        }
+    }
 
-        metadata.put("platform", "android");
-        metadata.put("version", 4);
-        metadata.put("id", feedbackId);
+    private static void writeFeedbackData(Context context,
+                                          CountingOutputStream out,
+                                          boolean shouldIncludeDiagnostics,
+                                          String email,
+                                          String feedbackText,
+                                          String surveyResponsesJson,
+                                          String feedbackId,
+                                          long beforeTimeMillis) throws IOException {
+        JsonGenerator generator = new JsonFactory().createGenerator(out, JsonEncoding.UTF8);
+        // Flushing the generator only hands its buffer to the counting stream, not to the file
+        generator.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
 
-        feedbackJsonObject.put("Metadata", metadata);
+        // Top level json object
+        generator.writeStartObject();
 
+        // Add metadata
+        generator.writeObjectFieldStart("Metadata");
+        generator.writeStringField("platform", "android");
+        generator.writeNumberField("version", 4);
+        generator.writeStringField("id", feedbackId);
+        generator.writeEndObject();
 
         // Add feedback text and / or surveyResponses
         if (feedbackText.length() > 0 || surveyResponsesJson.length() > 0) {
-            JSONObject feedbackInfo = new JSONObject();
-            feedbackInfo.put("email", email);
+            generator.writeObjectFieldStart("Feedback");
+            generator.writeStringField("email", email);
 
-            JSONObject feedbackMessageInfo = new JSONObject();
-            feedbackMessageInfo.put("text", feedbackText);
-            feedbackInfo.put("Message", feedbackMessageInfo);
+            generator.writeObjectFieldStart("Message");
+            generator.writeStringField("text", feedbackText);
+            generator.writeEndObject();
 
-            JSONObject feedbackSurveyInfo = new JSONObject();
-            feedbackSurveyInfo.put("json", surveyResponsesJson);
-            feedbackInfo.put("Survey", feedbackSurveyInfo);
+            generator.writeObjectFieldStart("Survey");
+            generator.writeStringField("json", surveyResponsesJson);
+            generator.writeEndObject();
 
-            feedbackJsonObject.put("Feedback", feedbackInfo);
+            generator.writeEndObject();
         }
 
         if (shouldIncludeDiagnostics) {
-            JSONObject diagnosticInfo = new JSONObject();
-
-            JSONObject sysInfo = new JSONObject();
-            sysInfo.put("isRooted", Utils.isRooted());
-            sysInfo.put("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
-            sysInfo.put("language", Locale.getDefault().getLanguage());
-            sysInfo.put("networkTypeName", Utils.getNetworkTypeName(context));
-
-            JSONObject sysInfo_Build = new JSONObject();
-            sysInfo_Build.put("BRAND", Build.BRAND);
-            sysInfo_Build.put("CPU_ABI", Build.CPU_ABI);
-            sysInfo_Build.put("MANUFACTURER", Build.MANUFACTURER);
-            sysInfo_Build.put("MODEL", Build.MODEL);
-            sysInfo_Build.put("DISPLAY", Build.DISPLAY);
-            sysInfo_Build.put("TAGS", Build.TAGS);
-            sysInfo_Build.put("VERSION__CODENAME", Build.VERSION.CODENAME);
-            sysInfo_Build.put("VERSION__RELEASE", Build.VERSION.RELEASE);
-            sysInfo_Build.put("VERSION__SDK_INT", Build.VERSION.SDK_INT);
-
-            sysInfo.put("Build", sysInfo_Build);
-
-            JSONObject sysInfo_psiphonEmbeddedValues = new JSONObject();
-            sysInfo_psiphonEmbeddedValues.put("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
-            sysInfo_psiphonEmbeddedValues.put("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
-            sysInfo_psiphonEmbeddedValues.put("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
-
-            sysInfo.put("PsiphonInfo", sysInfo_psiphonEmbeddedValues);
-
-            diagnosticInfo.put("SystemInformation", sysInfo);
-
-
-            JSONArray diagnosticHistory = new JSONArray();
-            JSONArray statusHistory = new JSONArray();
-
-            int totalBytesRead = 0;
-
-            // Read up to MAX_LOG_SOURCE_JSON_SIZE_BYTES from the logs database
-            // and add to diagnostic / status info
-            Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
-                    .appendPath("all")
-                    .appendPath(String.valueOf(beforeTimeMillis))
-                    .build();
-            ContentResolver contentResolver = context.getContentResolver();
-            try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
-                while (totalBytesRead < MAX_LOG_SOURCE_JSON_SIZE_BYTES && cursor.moveToNext()) {
-                    final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
-                    totalBytesRead += logEntry.getLogJson().length();
-
-                    JSONObject entry = new JSONObject();
-                    entry.put("timestamp!!timestamp", Utils.getISO8601String(new Date(logEntry.getTimestamp())));
+            generator.writeObjectFieldStart("DiagnosticInfo");
+
+            generator.writeObjectFieldStart("SystemInformation");
+            generator.writeBooleanField("isRooted", Utils.isRooted());
+            generator.writeBooleanField("isPlayStoreBuild", EmbeddedValues.IS_PLAY_STORE_BUILD);
+            generator.writeStringField("language", Locale.getDefault().getLanguage());
+            generator.writeStringField("networkTypeName", Utils.getNetworkTypeName(context));
+
+            generator.writeObjectFieldStart("Build");
+            generator.writeStringField("BRAND", Build.BRAND);
+            generator.writeStringField("CPU_ABI", Build.CPU_ABI);
+            generator.writeStringField("MANUFACTURER", Build.MANUFACTURER);
+            generator.writeStringField("MODEL", Build.MODEL);
+            generator.writeStringField("DISPLAY", Build.DISPLAY);
+            generator.writeStringField("TAGS", Build.TAGS);
+            generator.writeStringField("VERSION__CODENAME", Build.VERSION.CODENAME);
+            generator.writeStringField("VERSION__RELEASE", Build.VERSION.RELEASE);
+            generator.writeNumberField("VERSION__SDK_INT", Build.VERSION.SDK_INT);
+            generator.writeEndObject();
+
+            generator.writeObjectFieldStart("PsiphonInfo");
+            generator.writeStringField("PROPAGATION_CHANNEL_ID", EmbeddedValues.PROPAGATION_CHANNEL_ID);
+            generator.writeStringField("SPONSOR_ID", EmbeddedValues.SPONSOR_ID);
+            generator.writeStringField("CLIENT_VERSION", EmbeddedValues.CLIENT_VERSION);
+            generator.writeEndObject();
+
+            generator.writeEndObject();
+
+            writeLogHistory(context, generator, out, beforeTimeMillis);
 
-                    JSONObject logJsonObject = new JSONObject(logEntry.getLogJson());
-
-                    if (logEntry.isDiagnostic()) {
-                        Object msg = logJsonObject.opt("msg");
-                        Object data = logJsonObject.opt("data");
-                        entry.put("msg", msg == null ? JSONObject.NULL : msg);
-                        entry.put("data", data == null ? JSONObject.NULL : data);
-
-                        diagnosticHistory.put(entry);
-                    } else {
-                        int sensitivity = logJsonObject.optInt("sensitivity", 0);
-                        if (sensitivity == MyLog.Sensitivity.SENSITIVE_LOG) {
-                            // Skip sensitive logs
-                            continue;
-                        }
-                        int resourceID = context.getResources().getIdentifier(logJsonObject
-                                .getString("stringResourceName"), null, null);
-                        entry.put("id", resourceID == 0 ?
-                                "" : context.getResources().getResourceEntryName(resourceID));
-
-                        entry.put("priority", logEntry.getPriority());
-                        entry.put("formatArgs", JSONObject.NULL);
-                        entry.put("throwable", JSONObject.NULL);
-
-                        if (sensitivity != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS) {
-                            JSONArray formatArgsJsonArray = logJsonObject.optJSONArray("formatArgs");
-                            if (formatArgsJsonArray != null && formatArgsJsonArray.length() > 0) {
-                                entry.put("formatArgs", formatArgsJsonArray);
-                            }
-                        }
-
-                        statusHistory.put(entry);
-                    }
-                }
-                diagnosticInfo.put("DiagnosticHistory", diagnosticHistory);
-                diagnosticInfo.put("StatusHistory", statusHistory);
-            }
             // Check if we have native crash data to include
             File crashReportFile = new File(PsiphonCrashService.getFinalCrashReportPath(context));
             if (crashReportFile.exists()) {
-                JSONArray crashHistory = new JSONArray();
+                boolean hasCrashHistory = false;
                 try {
                     BufferedReader in;
                     String str;
                     in = new BufferedReader(new FileReader(crashReportFile));
                     while ((str = in.readLine()) != null) {
-                        crashHistory.put(str);
+                        if (!hasCrashHistory) {
+                            generator.writeArrayFieldStart("CrashHistory");
+                            hasCrashHistory = true;
+                        }
+                        generator.writeString(str);
                     }
                     in.close();
 
                 } catch (IOException ignored) {
                 }
+                if (hasCrashHistory) {
+                    generator.writeEndArray();
+                }
 
                 crashReportFile.delete();
-                if (crashHistory.length() > 0) {
-                    diagnosticInfo.put("CrashHistory", crashHistory);
+            }
+            generator.writeEndObject();
+        }
+
+        generator.writeEndObject();
+        generator.close();
+    }
+
+    // Writes the DiagnosticHistory and StatusHistory arrays, newest entries first, until
+    // MAX_LOG_SOURCE_JSON_SIZE_BYTES bytes of UTF-8 log history have been written.
+    private static void writeLogHistory(Context context, JsonGenerator generator,
+                                        CountingOutputStream out,
+                                        long beforeTimeMillis) throws IOException {
+        // Both arrays count toward the same budget but the status entries go in the second one.
+        // The first pass writes diagnostic entries to the payload and only measures status
+        // entries, the second pass writes the status entries of the rows read by the first.
+        CountingOutputStream statusCounter = new CountingOutputStream(null);
+        JsonGenerator statusGenerator = new JsonFactory().createGenerator(statusCounter, JsonEncoding.UTF8);
+        statusGenerator.writeStartArray();
+
+        generator.writeArrayFieldStart("DiagnosticHistory");
+        generator.flush();
+        long diagnosticHistoryStart = out.getCount();
+        long totalBytesWritten = 0;
+
+        Uri uri = LoggingContentProvider.CONTENT_URI.buildUpon()
+                .appendPath("all")
+                .appendPath(String.valueOf(beforeTimeMillis))
+                .build();
+        ContentResolver contentResolver = context.getContentResolver();
+        try (Cursor cursor = contentResolver.query(uri, null, null, null, null)) {
+            int rowsRead = 0;
+            while (cursor != null && totalBytesWritten < MAX_LOG_SOURCE_JSON_SIZE_BYTES && cursor.moveToNext()) {
+                rowsRead++;
+                final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
+                LogRecord logRecord = LogRecord.decode(logEntry.getRecord());
+                if (logRecord == null) {
+                    continue;
+                }
+                if (logEntry.isDiagnostic()) {
+                    writeDiagnosticEntry(generator, logEntry, logRecord);
+                } else if (!writeStatusEntry(context, statusGenerator, logEntry, logRecord)) {
+                    continue;
+                }
+
+                generator.flush();
+                statusGenerator.flush();
+                totalBytesWritten = out.getCount() - diagnosticHistoryStart + statusCounter.getCount();
+            }
+            generator.writeEndArray();
+
+            generator.writeArrayFieldStart("StatusHistory");
+            if (cursor != null) {
+                cursor.moveToPosition(-1);
+                for (int i = 0; i < rowsRead && cursor.moveToNext(); i++) {
+                    final LogEntry logEntry = LoggingContentProvider.convertRows(cursor);
+                    if (logEntry.isDiagnostic()) {
+                        continue;
+                    }
+                    LogRecord logRecord = LogRecord.decode(logEntry.getRecord());
+                    if (logRecord != null) {
+                        writeStatusEntry(context, generator, logEntry, logRecord);
+                    }
                 }
             }
-            feedbackJsonObject.put("DiagnosticInfo", diagnosticInfo);
+            generator.writeEndArray();
         }
+        statusGenerator.close();
+    }
+
+    private static void writeDiagnosticEntry(JsonGenerator generator, LogEntry logEntry,
+                                             LogRecord logRecord) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("timestamp!!timestamp",
+                Utils.getISO8601String(new Date(logEntry.getTimestamp())));
+        generator.writeStringField("msg", logRecord.getMsg());
+        generator.writeObjectFieldStart("data");
+        String[] dataNames = logRecord.getDataNames();
+        Object[] dataValues = logRecord.getDataValues();
+        for (int i = 0; i < dataNames.length; i++) {
+            generator.writeFieldName(dataNames[i]);
+            writeValue(generator, dataValues[i]);
+        }
+        generator.writeEndObject();
+        generator.writeEndObject();
+    }
+
+    // Returns false if the entry was skipped because it is sensitive.
+    private static boolean writeStatusEntry(Context context, JsonGenerator generator,
+                                            LogEntry logEntry, LogRecord logRecord) throws IOException {
+        int sensitivity = logRecord.getSensitivity();
+        if (sensitivity == MyLog.Sensitivity.SENSITIVE_LOG) {
+            // Skip sensitive logs
+            return false;
+        }
+        generator.writeStartObject();
+        generator.writeStringField("timestamp!!timestamp",
+                Utils.getISO8601String(new Date(logEntry.getTimestamp())));
+        int resourceID = logRecord.getResourceId(context);
+        generator.writeStringField("id", resourceID == 0 ?
+                "" : ResourceNameCache.getEntryName(context, resourceID));
+        generator.writeNumberField("priority", logEntry.getPriority());
+
+        Object[] formatArgs = logRecord.getFormatArgs();
+        generator.writeFieldName("formatArgs");
+        if (sensitivity != MyLog.Sensitivity.SENSITIVE_FORMAT_ARGS &&
+                formatArgs != null && formatArgs.length > 0) {
+            generator.writeStartArray();
+            for (Object arg : formatArgs) {
+                writeValue(generator, arg);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeNull();
+        }
+        generator.writeNullField("throwable");
+        generator.writeEndObject();
+        return true;
+    }
+
+    private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            generator.writeNumber((Integer) value);
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (LogRecord.isJsonText(value)) {
+            generator.writeRawValue(value.toString());
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
 
-        return feedbackJsonObject.toString();
+    // Counts the bytes written through it, discarding them if there is no target stream.
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (out != null) {
+                out.write(b);
+            }
+            count++;
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            if (out != null) {
+                out.write(b, off, len);
+            }
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
     }
 }
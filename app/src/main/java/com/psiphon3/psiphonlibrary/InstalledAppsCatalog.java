@@ -0,0 +1,377 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ChangedPackages;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.net.Uri;
+import android.os.Build;
+import android.provider.Settings;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.psiphon3.log.MyLog;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent catalog of the installed packages used by the VPN app picker, so opening the picker
+ * doesn't have to fetch the permissions and load the label of every package.
+ * <p>
+ * Entries are keyed by the lastUpdateTime of their package. While the process is running, a
+ * receiver for package added/removed/replaced broadcasts records the changed packages and only
+ * those are read again. When the process starts, changes that happened in the meantime are
+ * fetched with PackageManager.getChangedPackages() on API 26+ within the same boot. Otherwise the
+ * catalog compares its entries against getInstalledPackages() without GET_PERMISSIONS. That call
+ * is far smaller than the GET_PERMISSIONS variant, and only new or updated packages are read in
+ * full.
+ * <p>
+ * Labels are only loaded for packages requesting the INTERNET permission because the picker
+ * doesn't show other packages. All labels are reloaded when the locale changes.
+ */
+class InstalledAppsCatalog {
+    private static final String FILE_NAME = "installed_apps_catalog.json";
+    private static final int FORMAT_VERSION = 1;
+
+    private static volatile InstalledAppsCatalog instance;
+
+    static final class Entry {
+        final String packageId;
+        // Only loaded for packages requesting internet access
+        @Nullable
+        final String label;
+        final long versionCode;
+        final boolean hasInternet;
+        final long lastUpdateTime;
+
+        Entry(String packageId, @Nullable String label, long versionCode, boolean hasInternet, long lastUpdateTime) {
+            this.packageId = packageId;
+            this.label = label;
+            this.versionCode = versionCode;
+            this.hasInternet = hasInternet;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+    }
+
+    private final Context context;
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    // Packages reported by broadcasts since the last refresh, written on the main thread
+    private final Set<String> changedPackages = Collections.synchronizedSet(new HashSet<>());
+    private boolean isReceiverRegistered = false;
+    private boolean isLoaded = false;
+    // True once the entries were checked against the package manager in this process, further
+    // changes are then reported by the receiver
+    private boolean isSynced = false;
+    private String locale;
+    private int bootCount = -1;
+    private int sequenceNumber = 0;
+
+    private final BroadcastReceiver packageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data != null) {
+                changedPackages.add(data.getSchemeSpecificPart());
+            }
+        }
+    };
+
+    @VisibleForTesting
+    InstalledAppsCatalog(Context context, File file) {
+        this.context = context;
+        this.file = file;
+    }
+
+    static InstalledAppsCatalog getInstance(Context context) {
+        if (instance == null) {
+            synchronized (InstalledAppsCatalog.class) {
+                if (instance == null) {
+                    Context appContext = context.getApplicationContext();
+                    instance = new InstalledAppsCatalog(appContext, new File(appContext.getFilesDir(), FILE_NAME));
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Brings the catalog up to date and returns all entries. Does disk and binder I/O, don't call
+     * on the main thread.
+     */
+    @NonNull
+    synchronized List<Entry> getEntries() {
+        // Register first so that no change gets lost between the sync and the registration
+        registerReceiver();
+        if (!isLoaded) {
+            load();
+            isLoaded = true;
+        }
+
+        PackageManager pm = context.getPackageManager();
+        String currentLocale = Locale.getDefault().toString();
+        boolean isChanged = false;
+        if (!isSynced) {
+            boolean relabel = !currentLocale.equals(locale);
+            Set<String> changed = relabel || entries.isEmpty() ? null : getChangedPackagesSinceLastSync(pm);
+            if (changed != null) {
+                changedPackages.addAll(changed);
+            } else {
+                syncByUpdateTime(pm, relabel);
+                // Persist the new sync state even if no package changed
+                isChanged = true;
+            }
+            locale = currentLocale;
+            isSynced = true;
+        }
+
+        List<String> pending;
+        synchronized (changedPackages) {
+            pending = new ArrayList<>(changedPackages);
+            changedPackages.clear();
+        }
+        for (String packageId : pending) {
+            isChanged |= refresh(pm, packageId);
+        }
+
+        if (isChanged || pending.size() > 0) {
+            save();
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private void registerReceiver() {
+        if (isReceiverRegistered) {
+            return;
+        }
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        context.registerReceiver(packageReceiver, filter);
+        isReceiverRegistered = true;
+    }
+
+    /**
+     * @return packages changed since the last sync, or null if they are unknown and the entries
+     * have to be compared against the installed packages.
+     */
+    @Nullable
+    private Set<String> getChangedPackagesSinceLastSync(PackageManager pm) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return null;
+        }
+        // Sequence numbers restart with every boot
+        if (bootCount == -1 || bootCount != getBootCount()) {
+            return null;
+        }
+        ChangedPackages changed = pm.getChangedPackages(sequenceNumber);
+        if (changed == null) {
+            return Collections.emptySet();
+        }
+        sequenceNumber = changed.getSequenceNumber();
+        return new HashSet<>(changed.getPackageNames());
+    }
+
+    /**
+     * Remembers the current boot and change sequence number of the package manager, before a full
+     * sync so that changes during the sync are fetched next time.
+     */
+    private void updateSequenceNumber(PackageManager pm) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            return;
+        }
+        int currentBootCount = getBootCount();
+        ChangedPackages changed = pm.getChangedPackages(currentBootCount == bootCount ? sequenceNumber : 0);
+        if (currentBootCount != bootCount) {
+            sequenceNumber = 0;
+        }
+        if (changed != null) {
+            sequenceNumber = changed.getSequenceNumber();
+        }
+        bootCount = currentBootCount;
+    }
+
+    private int getBootCount() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return -1;
+        }
+        return Settings.Global.getInt(context.getContentResolver(), Settings.Global.BOOT_COUNT, -1);
+    }
+
+    /**
+     * Compares the entries against the installed packages and reads new and updated packages.
+     */
+    private void syncByUpdateTime(PackageManager pm, boolean relabel) {
+        updateSequenceNumber(pm);
+        // Without GET_PERMISSIONS the result stays far below the binder transaction limit
+        List<PackageInfo> packages = pm.getInstalledPackages(0);
+        Set<String> installed = new HashSet<>();
+        for (PackageInfo packageInfo : packages) {
+            installed.add(packageInfo.packageName);
+            Entry entry = entries.get(packageInfo.packageName);
+            if (entry == null || entry.lastUpdateTime != packageInfo.lastUpdateTime
+                    || (relabel && entry.hasInternet)) {
+                refresh(pm, packageInfo.packageName);
+            }
+        }
+        entries.keySet().retainAll(installed);
+    }
+
+    /**
+     * Reads a single package again, removes its entry if it isn't installed anymore.
+     *
+     * @return true if the entries changed.
+     */
+    private boolean refresh(PackageManager pm, String packageId) {
+        PackageInfo packageInfo;
+        try {
+            packageInfo = pm.getPackageInfo(packageId, PackageManager.GET_PERMISSIONS);
+        } catch (PackageManager.NameNotFoundException e) {
+            return entries.remove(packageId) != null;
+        }
+        boolean hasInternet = requestsInternet(packageInfo);
+        String label = null;
+        if (hasInternet && packageInfo.applicationInfo != null) {
+            label = packageInfo.applicationInfo.loadLabel(pm).toString();
+        }
+        entries.put(packageId, new Entry(packageId, label, getVersionCode(packageInfo), hasInternet,
+                packageInfo.lastUpdateTime));
+        return true;
+    }
+
+    private static boolean requestsInternet(PackageInfo packageInfo) {
+        if (packageInfo.requestedPermissions != null) {
+            for (String permission : packageInfo.requestedPermissions) {
+                if (Manifest.permission.INTERNET.equals(permission)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getVersionCode(PackageInfo packageInfo) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            return packageInfo.getLongVersionCode();
+        }
+        return packageInfo.versionCode;
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            JSONObject json = new JSONObject(new String(bytes, 0, read, "UTF-8"));
+            if (json.getInt("formatVersion") != FORMAT_VERSION) {
+                return;
+            }
+            locale = json.optString("locale", null);
+            bootCount = json.optInt("bootCount", -1);
+            sequenceNumber = json.optInt("sequenceNumber", 0);
+            JSONArray packages = json.getJSONArray("packages");
+            for (int i = 0; i < packages.length(); i++) {
+                JSONObject p = packages.getJSONObject(i);
+                String packageId = p.getString("packageId");
+                entries.put(packageId, new Entry(
+                        packageId,
+                        p.has("label") ? p.getString("label") : null,
+                        p.getLong("versionCode"),
+                        p.getBoolean("hasInternet"),
+                        p.getLong("lastUpdateTime")));
+            }
+        } catch (IOException | JSONException e) {
+            MyLog.w("InstalledAppsCatalog: failed to load catalog: " + e);
+            entries.clear();
+            locale = null;
+            bootCount = -1;
+            sequenceNumber = 0;
+        }
+    }
+
+    private void save() {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tempFile)) {
+            JSONArray packages = new JSONArray();
+            for (Entry entry : entries.values()) {
+                JSONObject p = new JSONObject();
+                p.put("packageId", entry.packageId);
+                if (entry.label != null) {
+                    p.put("label", entry.label);
+                }
+                p.put("versionCode", entry.versionCode);
+                p.put("hasInternet", entry.hasInternet);
+                p.put("lastUpdateTime", entry.lastUpdateTime);
+                packages.put(p);
+            }
+            JSONObject json = new JSONObject();
+            json.put("formatVersion", FORMAT_VERSION);
+            json.put("locale", locale);
+            json.put("bootCount", bootCount);
+            json.put("sequenceNumber", sequenceNumber);
+            json.put("packages", packages);
+            out.write(json.toString().getBytes("UTF-8"));
+        } catch (IOException | JSONException e) {
+            MyLog.w("InstalledAppsCatalog: failed to save catalog: " + e);
+            return;
+        }
+        if (!tempFile.renameTo(file)) {
+            MyLog.w("InstalledAppsCatalog: failed to replace " + file);
+        }
+    }
+}
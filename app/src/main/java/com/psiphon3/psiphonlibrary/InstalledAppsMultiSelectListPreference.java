@@ -19,13 +19,8 @@
 
 package com.psiphon3.psiphonlibrary;
 
-import android.Manifest;
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
@@ -38,7 +33,6 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.psiphon3.R;
-import com.psiphon3.log.MyLog;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -92,22 +86,22 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder impleme
     }
 
     private void loadInstalledAppsView(Context context) {
-        Single.<List<AppEntry>>create(emitter -> {
+        Single.<AppSearchIndex>create(emitter -> {
             if (!emitter.isDisposed()) {
-                emitter.onSuccess(getInstalledApps(context));
+                emitter.onSuccess(new AppSearchIndex(getInstalledApps(context)));
             }
 
         })
                 .subscribeOn(Schedulers.io())
                 .observeOn(AndroidSchedulers.mainThread())
-                .doOnSuccess(dataSet -> {
+                .doOnSuccess(searchIndex -> {
                     final Set<String> selectedApps = whitelist ?
                             VpnAppsUtils.getPendingAppsIncludedInVpn(context) :
                             VpnAppsUtils.getPendingAppsExcludedFromVpn(context);
 
                     adapter = new InstalledAppsRecyclerViewAdapter(
                             context,
-                            dataSet,
+                            searchIndex,
                             selectedApps);
 
 
@@ -141,70 +135,23 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder impleme
     }
 
     private List<AppEntry> getInstalledApps(Context context) {
-        PackageManager pm = context.getPackageManager();
-
-        List<AppEntry> apps = new ArrayList<>();
-        List<PackageInfo> packages = pm.getInstalledPackages(PackageManager.GET_PERMISSIONS);
-
-
         String selfPackageName = context.getPackageName();
-        boolean checkSelf = true;
-
-        for (int i = 0; i < packages.size(); i++) {
-            PackageInfo p = packages.get(i);
 
+        List<AppEntry> apps = new ArrayList<>();
+        for (InstalledAppsCatalog.Entry entry : InstalledAppsCatalog.getInstance(context).getEntries()) {
             // The returned app list excludes:
             //  - Apps that don't require internet access
             //  - Psiphon itself
-            if (checkSelf && p.packageName.equals(selfPackageName)) {
-                // Skip the check next time once we got a match.
-                checkSelf = false;
+            if (!entry.hasInternet || entry.packageId.equals(selfPackageName)) {
                 continue;
             }
-            if (isInternetPermissionGranted(p)) {
-                // This takes a bit of time, but since we want the apps sorted by displayed name
-                // its best to do synchronously
-                String appName = p.applicationInfo.loadLabel(pm).toString();
-                String packageId = p.packageName;
-                Single<Drawable> iconLoader = getIconLoader(p.applicationInfo, pm);
-                apps.add(new AppEntry(appName, packageId, iconLoader));
-            }
+            apps.add(new AppEntry(entry.label, entry.packageId));
         }
 
         Collections.sort(apps);
         return apps;
     }
 
-    private boolean isSystemPackage(PackageInfo pkgInfo) {
-        return ((pkgInfo.applicationInfo.flags & ApplicationInfo.FLAG_SYSTEM) != 0);
-    }
-
-    private boolean isInternetPermissionGranted(PackageInfo pkgInfo) {
-        if (pkgInfo.requestedPermissions != null) {
-            for (String permission : pkgInfo.requestedPermissions) {
-                if (Manifest.permission.INTERNET.equals(permission)) {
-                    return true;
-                }
-            }
-        }
-        return false;
-    }
-
-    private Single<Drawable> getIconLoader(final ApplicationInfo applicationInfo, final PackageManager packageManager) {
-        return Single.<Drawable>create(emitter -> {
-            Drawable icon = applicationInfo.loadIcon(packageManager);
-            if (!emitter.isDisposed()) {
-                emitter.onSuccess(icon);
-            }
-        })
-                // shouldn't ever get an error but handle it just in case
-                .doOnError(e -> MyLog.w("failed to load icon for " + applicationInfo.packageName + ": " + e))
-                // run on io as we're reading off disk
-                .subscribeOn(Schedulers.io())
-                // observe on ui
-                .observeOn(AndroidSchedulers.mainThread());
-    }
-
     public boolean isLoaded() {
         return adapter != null;
     }
@@ -216,7 +163,7 @@ class InstalledAppsMultiSelectListPreference extends AlertDialog.Builder impleme
 
     @Override
     public boolean onQueryTextChange(String searchString) {
-        adapter.getFilter().filter(searchString);
+        adapter.filter(searchString);
         return true;
     }
 }
@@ -20,45 +20,84 @@
 package com.psiphon3.psiphonlibrary;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CheckBox;
-import android.widget.Filter;
-import android.widget.Filterable;
 import android.widget.ImageView;
 import android.widget.TextView;
 
+import com.jakewharton.rxrelay2.PublishRelay;
 import com.psiphon3.R;
+import com.psiphon3.log.MyLog;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.Observable;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+
+public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<InstalledAppsRecyclerViewAdapter.ViewHolder> {
+    private static final long SEARCH_DEBOUNCE_MILLIS = 150;
+
+    private static final DiffUtil.ItemCallback<AppEntry> DIFF_CALLBACK = new DiffUtil.ItemCallback<AppEntry>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull AppEntry oldItem, @NonNull AppEntry newItem) {
+            return oldItem.getPackageId().equals(newItem.getPackageId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull AppEntry oldItem, @NonNull AppEntry newItem) {
+            return oldItem.getName().equals(newItem.getName());
+        }
+    };
 
-public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<InstalledAppsRecyclerViewAdapter.ViewHolder>
-        implements Filterable {
     private final LayoutInflater inflater;
-    private final List<AppEntry> data;
-    private List<AppEntry> dataFiltered;
+    private final AppIconCache iconCache;
+    // Icon loads of the page after the visible items, started when scrolling stops
+    private final Map<String, Disposable> prefetches = new HashMap<>();
+    private final AppSearchIndex searchIndex;
+    // Shown entries, diffs of search results are computed in the background
+    private final AsyncListDiffer<AppEntry> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private final PublishRelay<String> searchQueryRelay = PublishRelay.create();
+    private Disposable searchDisposable;
 
     public Set<String> getSelectedApps() {
         return selectedApps;
     }
 
     public int getUnfilteredItemsCount() {
-        return data.size();
+        return searchIndex.getEntries().size();
     }
 
     private final Set<String> selectedApps;
 
     private ItemClickListener clickListener;
 
-    InstalledAppsRecyclerViewAdapter(Context context, List<AppEntry> data, Set<String> selectedApps) {
+    InstalledAppsRecyclerViewAdapter(Context context, AppSearchIndex searchIndex, Set<String> selectedApps) {
         this.inflater = LayoutInflater.from(context);
-        this.data = data;
-        this.dataFiltered = data;
+        this.iconCache = AppIconCache.getInstance(context);
+        this.searchIndex = searchIndex;
         this.selectedApps = selectedApps;
+        differ.submitList(searchIndex.getEntries());
+    }
+
+    /**
+     * Shows the apps matching the query. Queries typed in quick succession are debounced and
+     * searched off the main thread.
+     */
+    void filter(String query) {
+        searchQueryRelay.accept(query);
     }
 
     @Override
@@ -69,66 +108,116 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
 
     @Override
     public void onBindViewHolder(final ViewHolder holder, final int position) {
-        final AppEntry appEntry = dataFiltered.get(position);
-
-        appEntry.getIconLoader()
-                .doOnSuccess(icon -> {
-                    // check to see if the adapter position matches the position of the holder
-                    // if it does then set the picture
-                    if (position == holder.getAdapterPosition()) {
-                        holder.appIcon.setImageDrawable(icon);
-                    }
-                })
-                .subscribe();
+        final AppEntry appEntry = getItem(position);
+        final String packageId = appEntry.getPackageId();
+
+        holder.cancelIconLoad();
+        holder.packageId = packageId;
+        Bitmap icon = iconCache.get(packageId);
+        if (icon != null) {
+            holder.appIcon.setImageBitmap(icon);
+        } else {
+            holder.appIcon.setImageDrawable(null);
+            holder.iconLoad = iconCache.load(packageId)
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(bitmap -> {
+                                // the holder may have been rebound while loading
+                                if (packageId.equals(holder.packageId)) {
+                                    holder.appIcon.setImageBitmap(bitmap);
+                                }
+                            },
+                            e -> MyLog.w("failed to load icon for " + packageId + ": " + e));
+        }
         holder.appName.setText(appEntry.getName());
         holder.isSelected.setChecked(selectedApps.contains(appEntry.getPackageId()));
     }
 
     @Override
-    public int getItemCount() {
-        return dataFiltered.size();
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        holder.cancelIconLoad();
+        holder.packageId = null;
     }
 
-    AppEntry getItem(int id) {
-        return dataFiltered.get(id);
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.addOnScrollListener(scrollListener);
+        searchDisposable = searchQueryRelay
+                // clearing the search shows all apps right away
+                .debounce(query -> query.isEmpty() ?
+                        Observable.empty() :
+                        Observable.timer(SEARCH_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS))
+                .distinctUntilChanged()
+                .switchMap(query -> Observable.fromCallable(() -> searchIndex.search(query))
+                        .subscribeOn(Schedulers.computation()))
+                .observeOn(AndroidSchedulers.mainThread())
+                .subscribe(differ::submitList,
+                        e -> MyLog.w("app search failed: " + e));
     }
 
-    void setClickListener(ItemClickListener itemClickListener) {
-        this.clickListener = itemClickListener;
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        recyclerView.removeOnScrollListener(scrollListener);
+        cancelPrefetches();
+        if (searchDisposable != null) {
+            searchDisposable.dispose();
+            searchDisposable = null;
+        }
     }
 
-    @Override
-    public Filter getFilter() {
-        return new Filter() {
-            @Override
-            protected FilterResults performFiltering(CharSequence charSequence) {
-                final String charString = charSequence.toString().toLowerCase();
-                if (charString.isEmpty()) {
-                    dataFiltered = data;
-                } else {
-                    List<AppEntry> filteredList = new ArrayList<>();
-                    for (AppEntry row : data) {
-                        if (row.getName().toLowerCase().contains(charString)) {
-                                // TODO: also filter by package name too?
-                                // row.getPackageId().contains(charString)
-                            filteredList.add(row);
-                        }
-                    }
-
-                    dataFiltered = filteredList;
-                }
-
-                FilterResults filterResults = new FilterResults();
-                filterResults.values = dataFiltered;
-                return filterResults;
+    private final RecyclerView.OnScrollListener scrollListener = new RecyclerView.OnScrollListener() {
+        @Override
+        public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+            if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                prefetchNextPage(recyclerView);
+            } else {
+                // don't let prefetches delay the icons of the items scrolled into view
+                cancelPrefetches();
             }
+        }
+    };
 
-            @Override
-            protected void publishResults(CharSequence charSequence, FilterResults filterResults) {
-                dataFiltered = (ArrayList<AppEntry>) filterResults.values;
-                notifyDataSetChanged();
+    // Loads the icons of the page following the visible items into the cache.
+    private void prefetchNextPage(RecyclerView recyclerView) {
+        if (!(recyclerView.getLayoutManager() instanceof LinearLayoutManager)) {
+            return;
+        }
+        LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+        int first = layoutManager.findFirstVisibleItemPosition();
+        int last = layoutManager.findLastVisibleItemPosition();
+        if (first == RecyclerView.NO_POSITION || last == RecyclerView.NO_POSITION) {
+            return;
+        }
+        int end = Math.min(last + 1 + (last - first + 1), getItemCount());
+        for (int position = last + 1; position < end; position++) {
+            String packageId = getItem(position).getPackageId();
+            if (iconCache.get(packageId) != null || prefetches.containsKey(packageId)) {
+                continue;
             }
-        };
+            prefetches.put(packageId, iconCache.load(packageId)
+                    .observeOn(AndroidSchedulers.mainThread())
+                    .subscribe(bitmap -> prefetches.remove(packageId),
+                            e -> prefetches.remove(packageId)));
+        }
+    }
+
+    private void cancelPrefetches() {
+        for (Disposable prefetch : prefetches.values()) {
+            prefetch.dispose();
+        }
+        prefetches.clear();
+    }
+
+    @Override
+    public int getItemCount() {
+        return differ.getCurrentList().size();
+    }
+
+    AppEntry getItem(int id) {
+        return differ.getCurrentList().get(id);
+    }
+
+    void setClickListener(ItemClickListener itemClickListener) {
+        this.clickListener = itemClickListener;
     }
 
     public interface ItemClickListener {
@@ -139,6 +228,9 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
         final ImageView appIcon;
         final TextView appName;
         final CheckBox isSelected;
+        // package of the bound item and its pending icon load
+        String packageId;
+        Disposable iconLoad;
 
         ViewHolder(View itemView) {
             super(itemView);
@@ -153,6 +245,13 @@ public class InstalledAppsRecyclerViewAdapter extends RecyclerView.Adapter<Insta
             isSelected.setOnClickListener(this);
         }
 
+        void cancelIconLoad() {
+            if (iconLoad != null) {
+                iconLoad.dispose();
+                iconLoad = null;
+            }
+        }
+
         @Override
         public void onClick(View view) {
             if (clickListener != null) {
@@ -11,6 +11,8 @@ import android.preference.PreferenceManager;
 
 import androidx.core.os.ConfigurationCompat;
 
+import com.psiphon3.log.ResourceNameCache;
+
 import net.grandcentrix.tray.AppPreferences;
 
 import java.util.Locale;
@@ -54,7 +56,7 @@ public class LocaleManager {
 
     private LocaleManager(Context context) {
         Context wrappedCtx = new ApplicationContextWrapper(context);
-        m_preferences = new AppPreferences(wrappedCtx);
+        m_preferences = AppPreferences.getInstance(wrappedCtx);
 
         // Migrate old shared preference language pref to multi-process preferences
         SharedPreferences sharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
@@ -122,6 +124,7 @@ public class LocaleManager {
         }
 
         Locale.setDefault(locale);
+        ResourceNameCache.invalidate();
 
         Resources resources = context.getResources();
         Configuration config = new Configuration(resources.getConfiguration());
@@ -44,7 +44,7 @@ public abstract class PsiphonPreferenceFragmentCompat extends PreferenceFragment
         if (savedInstanceState != null && savedInstanceState.getBoolean("onSaveInstanceState", false)) {
             preferenceGetter = new SharedPreferencesWrapper(prefMgr.getSharedPreferences());
         } else {
-            preferenceGetter = new AppPreferencesWrapper(new AppPreferences(getContext()));
+            preferenceGetter = new AppPreferencesWrapper(AppPreferences.getInstance(getContext()));
         }
     }
 
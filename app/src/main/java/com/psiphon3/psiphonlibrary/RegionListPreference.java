@@ -53,7 +53,7 @@ public class RegionListPreference extends Preference {
 
     public RegionListPreference(Context context, AttributeSet attrs) {
         super(context, attrs);
-        multiProcessPreferences = new AppPreferences(context);
+        multiProcessPreferences = AppPreferences.getInstance(context);
         setWidgetLayoutResource(R.layout.region_selector_pref_widget_layout);
 
         setCurrentRegionFromPreferences();
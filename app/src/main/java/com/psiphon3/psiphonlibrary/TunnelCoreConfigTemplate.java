@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2022, Psiphon Inc.
+ * All rights reserved.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package com.psiphon3.psiphonlibrary;
+
+import android.content.Context;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The tunnel-core config fields that are the same for every config built by this process: the
+ * embedded values, with their JSON arrays parsed once, and fixed settings. Built once per process
+ * and never modified afterwards; TunnelManager.buildTunnelCoreConfig copies it and overlays the
+ * fields that depend on the tunnel and the current preferences.
+ */
+final class TunnelCoreConfigTemplate {
+    private static volatile TunnelCoreConfigTemplate instance;
+
+    private final JSONObject fields;
+    private final String[] names;
+    // Added only when tunnel-core should download upgrades
+    private final JSONArray upgradeDownloadUrls;
+
+    private TunnelCoreConfigTemplate(Context context) throws JSONException {
+        fields = new JSONObject();
+
+        fields.put("ClientVersion", EmbeddedValues.CLIENT_VERSION);
+
+        fields.put("MigrateUpgradeDownloadFilename",
+                new UpgradeManager.OldDownloadedUpgradeFile(context).getFullPath());
+
+        fields.put("PropagationChannelId", EmbeddedValues.PROPAGATION_CHANNEL_ID);
+
+        fields.put("RemoteServerListURLs", new JSONArray(EmbeddedValues.REMOTE_SERVER_LIST_URLS_JSON));
+
+        fields.put("ObfuscatedServerListRootURLs", new JSONArray(EmbeddedValues.OBFUSCATED_SERVER_LIST_ROOT_URLS_JSON));
+
+        fields.put("RemoteServerListSignaturePublicKey", EmbeddedValues.REMOTE_SERVER_LIST_SIGNATURE_PUBLIC_KEY);
+
+        fields.put("ServerEntrySignaturePublicKey", EmbeddedValues.SERVER_ENTRY_SIGNATURE_PUBLIC_KEY);
+
+        fields.put("ExchangeObfuscationKey", EmbeddedValues.SERVER_ENTRY_EXCHANGE_OBFUSCATION_KEY);
+
+        fields.put("EmitDiagnosticNotices", true);
+
+        fields.put("EmitDiagnosticNetworkParameters", true);
+
+        fields.put("FeedbackUploadURLs", new JSONArray(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_URLS_JSON));
+        fields.put("FeedbackEncryptionPublicKey", EmbeddedValues.FEEDBACK_ENCRYPTION_PUBLIC_KEY);
+
+        fields.put("EmitServerAlerts", true);
+
+        fields.put("DNSResolverAlternateServers", new JSONArray("[\"1.1.1.1\", \"1.0.0.1\", \"8.8.8.8\", \"8.8.4.4\"]"));
+
+        List<String> fieldNames = new ArrayList<>();
+        for (Iterator<String> it = fields.keys(); it.hasNext(); ) {
+            fieldNames.add(it.next());
+        }
+        names = fieldNames.toArray(new String[0]);
+
+        upgradeDownloadUrls = new JSONArray(EmbeddedValues.UPGRADE_URLS_JSON);
+    }
+
+    /**
+     * @throws JSONException if one of the embedded JSON values is invalid, the next call tries
+     *                       again.
+     */
+    static TunnelCoreConfigTemplate get(Context context) throws JSONException {
+        TunnelCoreConfigTemplate template = instance;
+        if (template == null) {
+            synchronized (TunnelCoreConfigTemplate.class) {
+                template = instance;
+                if (template == null) {
+                    template = new TunnelCoreConfigTemplate(context.getApplicationContext());
+                    instance = template;
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * @return a new config holding the template fields. The JSON arrays are shared with the
+     * template and must not be modified.
+     */
+    JSONObject newConfig() throws JSONException {
+        return new JSONObject(fields, names);
+    }
+
+    void putUpgradeDownloadFields(JSONObject config) throws JSONException {
+        config.put("UpgradeDownloadURLs", upgradeDownloadUrls);
+
+        config.put("UpgradeDownloadClientVersionHeader", "x-amz-meta-psiphon-client-version");
+    }
+}
@@ -39,6 +39,7 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -89,6 +90,8 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         STOP_SERVICE,
         RESTART_TUNNEL,
         CHANGED_LOCALE,
+        REQUEST_DATA_TRANSFER_STATS,
+        SET_DATA_TRANSFER_STATS_INTERVAL,
     }
 
     // Service -> Client
@@ -104,6 +107,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
     public static final String INTENT_ACTION_VPN_REVOKED = "com.psiphon3.psiphonlibrary.TunnelManager.INTENT_ACTION_VPN_REVOKED";
     public static final String INTENT_ACTION_STOP_TUNNEL = "com.psiphon3.psiphonlibrary.TunnelManager.ACTION_STOP_TUNNEL";
     public static final String IS_CLIENT_AN_ACTIVITY = "com.psiphon3.psiphonlibrary.TunnelManager.IS_CLIENT_AN_ACTIVITY";
+    static final String DATA_TRANSFER_STATS_INTERVAL_MS = "com.psiphon3.psiphonlibrary.TunnelManager.DATA_TRANSFER_STATS_INTERVAL_MS";
     public static final String INTENT_ACTION_UNSAFE_TRAFFIC = "com.psiphon3.psiphonlibrary.TunnelManager.INTENT_ACTION_UNSAFE_TRAFFIC";
     public static final String INTENT_ACTION_UPSTREAM_PROXY_ERROR = "com.psiphon3.psiphonlibrary.TunnelManager.UPSTREAM_PROXY_ERROR";
 
@@ -115,13 +119,21 @@ public class TunnelManager implements PsiphonTunnel.HostService {
     static final String DATA_TUNNEL_STATE_CLIENT_REGION = "clientRegion";
     static final String DATA_TUNNEL_STATE_SPONSOR_ID = "sponsorId";
     public static final String DATA_TUNNEL_STATE_HOME_PAGES = "homePages";
+    static final String DATA_TRANSFER_STATS_SEQUENCE_NUMBER = "dataTransferStatsSequenceNumber";
+    static final String DATA_TRANSFER_STATS_BASE_SEQUENCE_NUMBER = "dataTransferStatsBaseSequenceNumber";
     static final String DATA_TRANSFER_STATS_CONNECTED_TIME = "dataTransferStatsConnectedTime";
     static final String DATA_TRANSFER_STATS_TOTAL_BYTES_SENT = "dataTransferStatsTotalBytesSent";
     static final String DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED = "dataTransferStatsTotalBytesReceived";
-    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS = "dataTransferStatsSlowBuckets";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT = "dataTransferStatsSlowBucketsSent";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED = "dataTransferStatsSlowBucketsReceived";
     static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME = "dataTransferStatsSlowBucketsLastStartTime";
-    static final String DATA_TRANSFER_STATS_FAST_BUCKETS = "dataTransferStatsFastBuckets";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_SHIFT = "dataTransferStatsSlowBucketsShift";
+    static final String DATA_TRANSFER_STATS_SLOW_BUCKETS_CHANGED_INDICES = "dataTransferStatsSlowBucketsChangedIndices";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_SENT = "dataTransferStatsFastBucketsSent";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED = "dataTransferStatsFastBucketsReceived";
     static final String DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME = "dataTransferStatsFastBucketsLastStartTime";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_SHIFT = "dataTransferStatsFastBucketsShift";
+    static final String DATA_TRANSFER_STATS_FAST_BUCKETS_CHANGED_INDICES = "dataTransferStatsFastBucketsChangedIndices";
     public static final String DATA_UNSAFE_TRAFFIC_SUBJECTS_LIST = "dataUnsafeTrafficSubjects";
     public static final String DATA_UNSAFE_TRAFFIC_ACTION_URLS_LIST = "dataUnsafeTrafficActionUrls";
 
@@ -461,7 +473,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
 
     private Single<Config> getTunnelConfigSingle() {
         Single<Config> configSingle = Single.fromCallable(() -> {
-            final AppPreferences multiProcessPreferences = new AppPreferences(getContext());
+            final AppPreferences multiProcessPreferences = AppPreferences.getInstance(getContext());
             Config tunnelConfig = new Config();
             tunnelConfig.egressRegion = multiProcessPreferences
                     .getString(getContext().getString(R.string.egressRegionPreference),
@@ -514,7 +526,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         // Only add notification vibration and sound defaults from preferences
         // when user has access to Sound and Vibration in the app's settings.
         if (alert && Utils.supportsNotificationSound()) {
-            final AppPreferences multiProcessPreferences = new AppPreferences(getContext());
+            final AppPreferences multiProcessPreferences = AppPreferences.getInstance(getContext());
 
             if (multiProcessPreferences.getBoolean(
                     getContext().getString(R.string.preferenceNotificationsWithSound), false)) {
@@ -599,11 +611,26 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         @NonNull
         Messenger messenger;
         boolean isActivity;
+        // Requested data stats push interval, 0 if the client is not subscribed to the stats
+        long dataTransferStatsIntervalMs;
+        long dataTransferStatsNextSendTime;
+        // Data stats last sent to this client, deltas are computed against them
+        PublishedDataTransferStats dataTransferStats;
 
         MessengerWrapper(@NonNull Messenger messenger, Bundle data) {
             this.messenger = messenger;
             if (data != null) {
                 isActivity = data.getBoolean(IS_CLIENT_AN_ACTIVITY, false);
+                setDataTransferStatsInterval(data.getLong(DATA_TRANSFER_STATS_INTERVAL_MS, 0));
+            }
+        }
+
+        void setDataTransferStatsInterval(long intervalMs) {
+            long newIntervalMs = intervalMs <= 0 ? 0 : Math.max(intervalMs, MIN_DATA_TRANSFER_STATS_INTERVAL_MS);
+            if (newIntervalMs != dataTransferStatsIntervalMs) {
+                dataTransferStatsIntervalMs = newIntervalMs;
+                // Send the stats right away when the client subscribes or changes its rate
+                dataTransferStatsNextSendTime = SystemClock.elapsedRealtime();
             }
         }
 
@@ -636,6 +663,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                             return;
                         }
                         MessengerWrapper client = new MessengerWrapper(msg.replyTo, msg.getData());
+                        PublishedDataTransferStats dataTransferStats = manager.takeDataTransferStats();
                         // Respond immediately to the new client with current connection state and
                         // data stats. All following distinct tunnel connection updates will be provided
                         // by an Rx connectionStatusUpdaterDisposable() subscription to all clients.
@@ -643,7 +671,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                         messageList.add(manager.composeClientMessage(ServiceToClientMessage.TUNNEL_CONNECTION_STATE.ordinal(),
                                 manager.getTunnelStateBundle()));
                         messageList.add(manager.composeClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
-                                manager.getDataTransferStatsBundle()));
+                                getDataTransferStatsBundle(null, dataTransferStats)));
                         for (Message message : messageList) {
                             try {
                                 client.send(message);
@@ -652,7 +680,10 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                                 return;
                             }
                         }
+                        client.dataTransferStats = dataTransferStats;
+                        client.dataTransferStatsNextSendTime = SystemClock.elapsedRealtime() + client.dataTransferStatsIntervalMs;
                         manager.mClients.put(msg.replyTo.hashCode(), client);
+                        manager.scheduleDataTransferStats();
                         manager.m_newClientPublishRelay.accept(new Object());
                     }
                     break;
@@ -660,6 +691,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                 case UNREGISTER:
                     if (manager != null) {
                         manager.mClients.remove(msg.replyTo.hashCode());
+                        manager.scheduleDataTransferStats();
                     }
                     break;
 
@@ -673,6 +705,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                         // Client side will receive a ServiceConnection.onServiceDisconnected callback
                         // when the service finally stops.
                         manager.mClients.clear();
+                        manager.scheduleDataTransferStats();
                         manager.signalStopService();
                     }
                     break;
@@ -709,6 +742,36 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                     }
                     break;
 
+                case REQUEST_DATA_TRANSFER_STATS:
+                    if (manager != null) {
+                        // Client could not apply a data stats delta, resend full stats
+                        MessengerWrapper client = manager.mClients.get(msg.replyTo.hashCode());
+                        if (client == null) {
+                            return;
+                        }
+                        PublishedDataTransferStats dataTransferStats = manager.takeDataTransferStats();
+                        try {
+                            client.send(manager.composeClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
+                                    getDataTransferStatsBundle(null, dataTransferStats)));
+                            client.dataTransferStats = dataTransferStats;
+                        } catch (RemoteException e) {
+                            // The client is dead.  Remove it from the list;
+                            manager.mClients.remove(msg.replyTo.hashCode());
+                        }
+                    }
+                    break;
+
+                case SET_DATA_TRANSFER_STATS_INTERVAL:
+                    if (manager != null) {
+                        MessengerWrapper client = manager.mClients.get(msg.replyTo.hashCode());
+                        if (client == null || msg.getData() == null) {
+                            return;
+                        }
+                        client.setDataTransferStatsInterval(msg.getData().getLong(DATA_TRANSFER_STATS_INTERVAL_MS, 0));
+                        manager.scheduleDataTransferStats();
+                    }
+                    break;
+
                 default:
                     super.handleMessage(msg);
             }
@@ -789,18 +852,93 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         return data;
     }
 
-    private Bundle getDataTransferStatsBundle() {
+    // Data transfer stats as sent to a client, which allows sending that client only the
+    // buckets that changed since.
+    private static class PublishedDataTransferStats {
+        final long sequenceNumber;
+        final long connectedTime;
+        final long totalBytesSent;
+        final long totalBytesReceived;
+        final DataTransferBuckets.Snapshot slowBuckets;
+        final DataTransferBuckets.Snapshot fastBuckets;
+
+        PublishedDataTransferStats(long sequenceNumber, DataTransferStats.DataTransferStatsForService stats) {
+            this.sequenceNumber = sequenceNumber;
+            // Snapshots do not block the tunnel-core threads updating the stats
+            this.connectedTime = stats.m_connectedTime;
+            this.totalBytesSent = stats.m_totalBytesSent.get();
+            this.totalBytesReceived = stats.m_totalBytesReceived.get();
+            this.slowBuckets = stats.m_slowBuckets.snapshot();
+            this.fastBuckets = stats.m_fastBuckets.snapshot();
+        }
+    }
+
+    private long m_dataTransferStatsSequenceNumber = 0;
+
+    private PublishedDataTransferStats takeDataTransferStats() {
+        return new PublishedDataTransferStats(++m_dataTransferStatsSequenceNumber,
+                DataTransferStats.getDataTransferStatsForService());
+    }
+
+    // Returns the buckets of 'current' that changed since 'base', or a full copy of 'current'
+    // if 'base' is null, which is used to (re)synchronize a client.
+    private static Bundle getDataTransferStatsBundle(PublishedDataTransferStats base,
+                                                     PublishedDataTransferStats current) {
         Bundle data = new Bundle();
-        data.putLong(DATA_TRANSFER_STATS_CONNECTED_TIME, DataTransferStats.getDataTransferStatsForService().m_connectedTime);
-        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_SENT, DataTransferStats.getDataTransferStatsForService().m_totalBytesSent);
-        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED, DataTransferStats.getDataTransferStatsForService().m_totalBytesReceived);
-        data.putParcelableArrayList(DATA_TRANSFER_STATS_SLOW_BUCKETS, DataTransferStats.getDataTransferStatsForService().m_slowBuckets);
-        data.putLong(DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME, DataTransferStats.getDataTransferStatsForService().m_slowBucketsLastStartTime);
-        data.putParcelableArrayList(DATA_TRANSFER_STATS_FAST_BUCKETS, DataTransferStats.getDataTransferStatsForService().m_fastBuckets);
-        data.putLong(DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME, DataTransferStats.getDataTransferStatsForService().m_fastBucketsLastStartTime);
+        putDataTransferStatsTotals(data, current);
+        if (base == null) {
+            data.putLongArray(DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT, current.slowBuckets.sent);
+            data.putLongArray(DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED, current.slowBuckets.received);
+            data.putLong(DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME, current.slowBuckets.lastStartTime);
+            data.putLongArray(DATA_TRANSFER_STATS_FAST_BUCKETS_SENT, current.fastBuckets.sent);
+            data.putLongArray(DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED, current.fastBuckets.received);
+            data.putLong(DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME, current.fastBuckets.lastStartTime);
+            return data;
+        }
+        DataTransferStats.DataTransferStatsForService stats = DataTransferStats.getDataTransferStatsForService();
+        data.putLong(DATA_TRANSFER_STATS_BASE_SEQUENCE_NUMBER, base.sequenceNumber);
+        putBucketsDelta(data, stats.m_slowBuckets, base.slowBuckets, current.slowBuckets,
+                DATA_TRANSFER_STATS_SLOW_BUCKETS_SHIFT,
+                DATA_TRANSFER_STATS_SLOW_BUCKETS_CHANGED_INDICES,
+                DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT,
+                DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED,
+                DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME);
+        putBucketsDelta(data, stats.m_fastBuckets, base.fastBuckets, current.fastBuckets,
+                DATA_TRANSFER_STATS_FAST_BUCKETS_SHIFT,
+                DATA_TRANSFER_STATS_FAST_BUCKETS_CHANGED_INDICES,
+                DATA_TRANSFER_STATS_FAST_BUCKETS_SENT,
+                DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED,
+                DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME);
         return data;
     }
 
+    private static void putDataTransferStatsTotals(Bundle data, PublishedDataTransferStats published) {
+        data.putLong(DATA_TRANSFER_STATS_SEQUENCE_NUMBER, published.sequenceNumber);
+        data.putLong(DATA_TRANSFER_STATS_CONNECTED_TIME, published.connectedTime);
+        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_SENT, published.totalBytesSent);
+        data.putLong(DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED, published.totalBytesReceived);
+    }
+
+    private static void putBucketsDelta(Bundle data, DataTransferBuckets buckets,
+                                        DataTransferBuckets.Snapshot base,
+                                        DataTransferBuckets.Snapshot current,
+                                        String shiftKey, String indicesKey, String sentKey,
+                                        String receivedKey, String lastStartTimeKey) {
+        int shift = buckets.shiftsBetween(base, current);
+        int[] indices = DataTransferBuckets.changedIndices(base, current, shift);
+        long[] sent = new long[indices.length];
+        long[] received = new long[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            sent[i] = current.sent[indices[i]];
+            received[i] = current.received[indices[i]];
+        }
+        data.putInt(shiftKey, shift);
+        data.putIntArray(indicesKey, indices);
+        data.putLongArray(sentKey, sent);
+        data.putLongArray(receivedKey, received);
+        data.putLong(lastStartTimeKey, current.lastStartTime);
+    }
+
     private final static String LEGACY_SERVER_ENTRY_FILENAME = "psiphon_server_entries.json";
 
     static String getServerEntries(Context context) {
@@ -817,16 +955,65 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         return list.toString();
     }
 
+    // Data stats are only pushed while the tunnel is running and only to the clients that
+    // subscribed to them, each at its own requested rate.
+    private static final long MIN_DATA_TRANSFER_STATS_INTERVAL_MS = 1000;
     private Handler sendDataTransferStatsHandler = new Handler();
-    private final long sendDataTransferStatsIntervalMs = 1000;
+    private boolean m_isSendingDataTransferStats = false;
     private Runnable sendDataTransferStats = new Runnable() {
         @Override
         public void run() {
-            sendClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(), getDataTransferStatsBundle());
-            sendDataTransferStatsHandler.postDelayed(this, sendDataTransferStatsIntervalMs);
+            long now = SystemClock.elapsedRealtime();
+            PublishedDataTransferStats dataTransferStats = null;
+            for (Iterator<MessengerWrapper> i = mClients.values().iterator(); i.hasNext(); ) {
+                MessengerWrapper client = i.next();
+                if (client.dataTransferStatsIntervalMs <= 0 || client.dataTransferStatsNextSendTime > now) {
+                    continue;
+                }
+                if (dataTransferStats == null) {
+                    dataTransferStats = takeDataTransferStats();
+                }
+                try {
+                    client.send(composeClientMessage(ServiceToClientMessage.DATA_TRANSFER_STATS.ordinal(),
+                            getDataTransferStatsBundle(client.dataTransferStats, dataTransferStats)));
+                    client.dataTransferStats = dataTransferStats;
+                    client.dataTransferStatsNextSendTime = now + client.dataTransferStatsIntervalMs;
+                } catch (RemoteException e) {
+                    // The client is dead.  Remove it from the list;
+                    i.remove();
+                }
+            }
+            scheduleDataTransferStats();
         }
     };
 
+    // Must be called on the main thread whenever the clients or their subscriptions change.
+    private void scheduleDataTransferStats() {
+        sendDataTransferStatsHandler.removeCallbacks(sendDataTransferStats);
+        if (!m_isSendingDataTransferStats) {
+            return;
+        }
+        long nextSendTime = Long.MAX_VALUE;
+        for (MessengerWrapper client : mClients.values()) {
+            if (client.dataTransferStatsIntervalMs > 0) {
+                nextSendTime = Math.min(nextSendTime, client.dataTransferStatsNextSendTime);
+            }
+        }
+        if (nextSendTime == Long.MAX_VALUE) {
+            // No subscribers, no need to wake up
+            return;
+        }
+        sendDataTransferStatsHandler.postDelayed(sendDataTransferStats,
+                Math.max(0, nextSendTime - SystemClock.elapsedRealtime()));
+    }
+
+    private void setSendingDataTransferStats(boolean isSending) {
+        sendDataTransferStatsHandler.post(() -> {
+            m_isSendingDataTransferStats = isSending;
+            scheduleDataTransferStats();
+        });
+    }
+
     private void runTunnel() {
         Utils.initializeSecureRandom();
         // Also set locale
@@ -839,7 +1026,10 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         m_networkConnectionStatePublishRelay.accept(TunnelState.ConnectionData.NetworkConnectionState.CONNECTING);
         m_isRoutingThroughTunnelPublishRelay.accept(Boolean.FALSE);
 
-        // Notify if an upgrade has already been downloaded and is waiting for install
+        // Make sure the upgrade check alarm exists and notify if an upgrade has already been
+        // downloaded and is waiting for install. This also checks the upgrade files before the
+        // tunnel-core config is built.
+        UpgradeChecker.createAlarm(getContext().getApplicationContext());
         UpgradeManager.UpgradeInstaller.notifyUpgrade(getContext(), PsiphonTunnel.getDefaultUpgradeDownloadFilePath(getContext()));
 
         MyLog.i(R.string.starting_tunnel, MyLog.Sensitivity.NOT_SENSITIVE);
@@ -847,7 +1037,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
         m_tunnelState.homePages.clear();
 
         DataTransferStats.getDataTransferStatsForService().startSession();
-        sendDataTransferStatsHandler.postDelayed(sendDataTransferStats, sendDataTransferStatsIntervalMs);
+        setSendingDataTransferStats(true);
 
         try {
             if (!m_tunnel.startRouting()) {
@@ -875,7 +1065,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
             m_networkConnectionStatePublishRelay.accept(TunnelState.ConnectionData.NetworkConnectionState.CONNECTING);
             m_tunnel.stop();
 
-            sendDataTransferStatsHandler.removeCallbacks(sendDataTransferStats);
+            setSendingDataTransferStats(false);
             DataTransferStats.getDataTransferStatsForService().stop();
 
             MyLog.i(R.string.stopped_tunnel, MyLog.Sensitivity.NOT_SENSITIVE);
@@ -1017,6 +1207,8 @@ public class TunnelManager implements PsiphonTunnel.HostService {
     /**
      * Create a tunnel-core config suitable for different tasks (i.e., the main Psiphon app
      * tunnel, the UpgradeChecker temp tunnel and the FeedbackWorker upload operation).
+     * The fixed fields come from the per process TunnelCoreConfigTemplate. Building a config has
+     * no side effects and doesn't check upgrade files, see UpgradeChecker.upgradeDownloadNeeded.
      *
      * @param context
      * @param tunnelConfig     Config values to be set in the tunnel core config.
@@ -1034,36 +1226,16 @@ public class TunnelManager implements PsiphonTunnel.HostService {
             String tempTunnelName) {
         boolean temporaryTunnel = tempTunnelName != null && !tempTunnelName.isEmpty();
 
-        JSONObject json = new JSONObject();
-
         try {
+            TunnelCoreConfigTemplate template = TunnelCoreConfigTemplate.get(context);
+            JSONObject json = template.newConfig();
 
-            json.put("ClientVersion", EmbeddedValues.CLIENT_VERSION);
-
-            if (UpgradeChecker.upgradeCheckNeeded(context)) {
-
-                json.put("UpgradeDownloadURLs", new JSONArray(EmbeddedValues.UPGRADE_URLS_JSON));
-
-                json.put("UpgradeDownloadClientVersionHeader", "x-amz-meta-psiphon-client-version");
+            if (UpgradeChecker.upgradeDownloadNeeded(context)) {
+                template.putUpgradeDownloadFields(json);
             }
 
-            json.put("MigrateUpgradeDownloadFilename",
-                    new UpgradeManager.OldDownloadedUpgradeFile(context).getFullPath());
-
-            json.put("PropagationChannelId", EmbeddedValues.PROPAGATION_CHANNEL_ID);
-
             json.put("SponsorId", tunnelConfig.sponsorId);
 
-            json.put("RemoteServerListURLs", new JSONArray(EmbeddedValues.REMOTE_SERVER_LIST_URLS_JSON));
-
-            json.put("ObfuscatedServerListRootURLs", new JSONArray(EmbeddedValues.OBFUSCATED_SERVER_LIST_ROOT_URLS_JSON));
-
-            json.put("RemoteServerListSignaturePublicKey", EmbeddedValues.REMOTE_SERVER_LIST_SIGNATURE_PUBLIC_KEY);
-
-            json.put("ServerEntrySignaturePublicKey", EmbeddedValues.SERVER_ENTRY_SIGNATURE_PUBLIC_KEY);
-
-            json.put("ExchangeObfuscationKey", EmbeddedValues.SERVER_ENTRY_EXCHANGE_OBFUSCATION_KEY);
-
             if (useUpstreamProxy) {
                 if (UpstreamProxySettings.getUseHTTPProxy(context)) {
                     if (UpstreamProxySettings.getProxySettings(context) != null) {
@@ -1072,13 +1244,6 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                 }
             }
 
-            json.put("EmitDiagnosticNotices", true);
-
-            json.put("EmitDiagnosticNetworkParameters", true);
-
-            json.put("FeedbackUploadURLs", new JSONArray(EmbeddedValues.FEEDBACK_DIAGNOSTIC_INFO_UPLOAD_URLS_JSON));
-            json.put("FeedbackEncryptionPublicKey", EmbeddedValues.FEEDBACK_ENCRYPTION_PUBLIC_KEY);
-
             // If this is a temporary tunnel (like for UpgradeChecker) we need to override some of
             // the implicit config values.
             if (temporaryTunnel) {
@@ -1124,14 +1289,10 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                 json.put("NetworkLatencyMultiplierLambda", 0.1);
             }
 
-            json.put("EmitServerAlerts", true);
-
             if (Utils.getUnsafeTrafficAlertsOptInState(context)) {
-                json.put("ClientFeatures", new JSONArray("[\"unsafe-traffic-alerts\"]"));
+                json.put("ClientFeatures", new JSONArray().put("unsafe-traffic-alerts"));
             }
 
-            json.put("DNSResolverAlternateServers", new JSONArray("[\"1.1.1.1\", \"1.0.0.1\", \"8.8.8.8\", \"8.8.4.4\"]"));
-
             return json.toString();
         } catch (JSONException e) {
             return null;
@@ -1195,7 +1356,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
             @Override
             public void run() {
                 // regions are already sorted alphabetically by tunnel core
-                AppPreferences mp = new AppPreferences(getContext());
+                AppPreferences mp = AppPreferences.getInstance(getContext());
                 mp.put(RegionListPreference.KNOWN_REGIONS_PREFERENCE, TextUtils.join(",", regions));
 
                 if (!isSelectedEgressRegionAvailable(regions)) {
@@ -1285,7 +1446,7 @@ public class TunnelManager implements PsiphonTunnel.HostService {
                 MyLog.i(R.string.http_proxy_running, MyLog.Sensitivity.NOT_SENSITIVE, port);
                 m_tunnelState.listeningLocalHttpProxyPort = port;
 
-                final AppPreferences multiProcessPreferences = new AppPreferences(getContext());
+                final AppPreferences multiProcessPreferences = AppPreferences.getInstance(getContext());
                 multiProcessPreferences.put(
                         m_parentService.getString(R.string.current_local_http_proxy_port),
                         port);
@@ -1421,14 +1582,9 @@ public class TunnelManager implements PsiphonTunnel.HostService {
 
     @Override
     public void onBytesTransferred(final long sent, final long received) {
-        m_Handler.post(new Runnable() {
-            @Override
-            public void run() {
-                DataTransferStats.DataTransferStatsForService stats = DataTransferStats.getDataTransferStatsForService();
-                stats.addBytesSent(sent);
-                stats.addBytesReceived(received);
-            }
-        });
+        // Update the counters directly on the calling thread, the stats are lock free and
+        // there is no need to hop to the main thread for every callback.
+        DataTransferStats.getDataTransferStatsForService().addBytesTransferred(sent, received);
     }
 
     @Override
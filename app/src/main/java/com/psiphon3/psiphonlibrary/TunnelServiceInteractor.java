@@ -48,6 +48,8 @@ import com.psiphon3.log.MyLog;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import io.reactivex.BackpressureStrategy;
 import io.reactivex.Completable;
@@ -59,6 +61,7 @@ import io.reactivex.disposables.Disposable;
 
 public class TunnelServiceInteractor {
     private static final String SERVICE_STARTING_BROADCAST_INTENT = "SERVICE_STARTING_BROADCAST_INTENT";
+    private static final long DEFAULT_DATA_STATS_INTERVAL_MS = 1000;
     private final BroadcastReceiver broadcastReceiver;
     private Relay<TunnelState> tunnelStateRelay = BehaviorRelay.<TunnelState>create().toSerialized();
     private Relay<Boolean> dataStatsRelay = PublishRelay.<Boolean>create().toSerialized();
@@ -70,6 +73,13 @@ public class TunnelServiceInteractor {
     private boolean shouldRegisterAsActivity = false;
     private Disposable serviceMessengerDisposable;
     private Disposable restartServiceDisposable;
+    // Local copies of the service's last published data stats buckets that deltas apply to.
+    private DataTransferBuckets.Snapshot slowBucketsMirror;
+    private DataTransferBuckets.Snapshot fastBucketsMirror;
+    private long dataTransferStatsSequenceNumber = -1;
+    private boolean isDataTransferStatsResyncRequested = false;
+    private final List<Long> dataStatsRequestedIntervals = Collections.synchronizedList(new ArrayList<>());
+    private volatile long dataStatsIntervalMs = 0;
 
     public TunnelServiceInteractor(Context context, boolean registerAsActivity) {
         this.shouldRegisterAsActivity = registerAsActivity;
@@ -176,8 +186,44 @@ public class TunnelServiceInteractor {
     }
 
     public Flowable<Boolean> dataStatsFlowable() {
+        return dataStatsFlowable(DEFAULT_DATA_STATS_INTERVAL_MS);
+    }
+
+    // The service only pushes data stats while there are subscribers, at the shortest of the
+    // intervals requested by them.
+    public Flowable<Boolean> dataStatsFlowable(long intervalMs) {
         return dataStatsRelay
-                .toFlowable(BackpressureStrategy.LATEST);
+                .toFlowable(BackpressureStrategy.LATEST)
+                .doOnSubscribe(__ -> {
+                    dataStatsRequestedIntervals.add(intervalMs);
+                    updateDataStatsInterval();
+                })
+                .doFinally(() -> {
+                    dataStatsRequestedIntervals.remove(Long.valueOf(intervalMs));
+                    updateDataStatsInterval();
+                });
+    }
+
+    private long getDataStatsInterval() {
+        long intervalMs = 0;
+        synchronized (dataStatsRequestedIntervals) {
+            for (long requestedMs : dataStatsRequestedIntervals) {
+                intervalMs = intervalMs == 0 ? requestedMs : Math.min(intervalMs, requestedMs);
+            }
+        }
+        return intervalMs;
+    }
+
+    private void updateDataStatsInterval() {
+        long intervalMs = getDataStatsInterval();
+        if (intervalMs == dataStatsIntervalMs) {
+            return;
+        }
+        dataStatsIntervalMs = intervalMs;
+        Bundle data = new Bundle();
+        data.putLong(TunnelManager.DATA_TRANSFER_STATS_INTERVAL_MS, intervalMs);
+        sendServiceMessageCompletable(TunnelManager.ClientToServiceMessage.SET_DATA_TRANSFER_STATS_INTERVAL.ordinal(), data)
+                .subscribe();
     }
 
     public boolean isServiceRunning(Context context) {
@@ -207,8 +253,13 @@ public class TunnelServiceInteractor {
                 .doOnComplete(() -> tunnelStateRelay.accept(TunnelState.stopped()))
                 .doOnComplete(() -> dataStatsRelay.accept(Boolean.FALSE))
                 .subscribe();
+        // The service responds to the registration with full data stats
+        dataTransferStatsSequenceNumber = -1;
+        isDataTransferStatsResyncRequested = false;
         Bundle data = new Bundle();
         data.putBoolean(TunnelManager.IS_CLIENT_AN_ACTIVITY, shouldRegisterAsActivity);
+        dataStatsIntervalMs = getDataStatsInterval();
+        data.putLong(TunnelManager.DATA_TRANSFER_STATS_INTERVAL_MS, dataStatsIntervalMs);
         sendServiceMessageCompletable(TunnelManager.ClientToServiceMessage.REGISTER.ordinal(), data)
                 .subscribe();
     }
@@ -254,18 +305,97 @@ public class TunnelServiceInteractor {
         return tunnelState;
     }
 
-    private static void getDataTransferStatsFromBundle(Bundle data) {
+    // Updates the UI data stats from either a full copy or a delta of the service's published
+    // stats. Returns false if a delta could not be applied and a full copy is needed.
+    private boolean updateDataTransferStatsFromBundle(Bundle data) {
         if (data == null) {
+            return true;
+        }
+        long baseSequenceNumber = data.getLong(TunnelManager.DATA_TRANSFER_STATS_BASE_SEQUENCE_NUMBER, -1);
+        if (baseSequenceNumber == -1) {
+            slowBucketsMirror = new DataTransferBuckets.Snapshot(DataTransferStats.DataTransferStatsBase.MAX_BUCKETS);
+            fastBucketsMirror = new DataTransferBuckets.Snapshot(DataTransferStats.DataTransferStatsBase.MAX_BUCKETS);
+            setBucketsFromBundle(slowBucketsMirror, data,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME);
+            setBucketsFromBundle(fastBucketsMirror, data,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_SENT,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME);
+            isDataTransferStatsResyncRequested = false;
+        } else {
+            if (baseSequenceNumber != dataTransferStatsSequenceNumber
+                    || !applyBucketsDeltaFromBundle(slowBucketsMirror, data,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_SHIFT,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_CHANGED_INDICES,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_SENT,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_RECEIVED,
+                    TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME)
+                    || !applyBucketsDeltaFromBundle(fastBucketsMirror, data,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_SHIFT,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_CHANGED_INDICES,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_SENT,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_RECEIVED,
+                    TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME)) {
+                dataTransferStatsSequenceNumber = -1;
+                return false;
+            }
+        }
+        dataTransferStatsSequenceNumber = data.getLong(TunnelManager.DATA_TRANSFER_STATS_SEQUENCE_NUMBER, -1);
+
+        DataTransferStats.DataTransferStatsForUI stats = DataTransferStats.getDataTransferStatsForUI();
+        synchronized (stats) {
+            stats.m_connectedTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_CONNECTED_TIME);
+            stats.m_totalBytesSent.set(data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_SENT));
+            stats.m_totalBytesReceived.set(data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED));
+            stats.m_slowBuckets.set(slowBucketsMirror.sent, slowBucketsMirror.received, slowBucketsMirror.lastStartTime);
+            stats.m_fastBuckets.set(fastBucketsMirror.sent, fastBucketsMirror.received, fastBucketsMirror.lastStartTime);
+        }
+        return true;
+    }
+
+    private static void setBucketsFromBundle(DataTransferBuckets.Snapshot buckets, Bundle data,
+                                             String sentKey, String receivedKey, String lastStartTimeKey) {
+        long[] sent = data.getLongArray(sentKey);
+        long[] received = data.getLongArray(receivedKey);
+        if (sent != null && received != null
+                && sent.length == buckets.sent.length && received.length == buckets.received.length) {
+            System.arraycopy(sent, 0, buckets.sent, 0, sent.length);
+            System.arraycopy(received, 0, buckets.received, 0, received.length);
+        }
+        buckets.lastStartTime = data.getLong(lastStartTimeKey);
+    }
+
+    private static boolean applyBucketsDeltaFromBundle(DataTransferBuckets.Snapshot buckets, Bundle data,
+                                                       String shiftKey, String indicesKey, String sentKey,
+                                                       String receivedKey, String lastStartTimeKey) {
+        if (buckets == null) {
+            return false;
+        }
+        int[] indices = data.getIntArray(indicesKey);
+        long[] sent = data.getLongArray(sentKey);
+        long[] received = data.getLongArray(receivedKey);
+        if (indices == null || sent == null || received == null
+                || sent.length != indices.length || received.length != indices.length) {
+            return false;
+        }
+        for (int index : indices) {
+            if (index < 0 || index >= buckets.sent.length) {
+                return false;
+            }
+        }
+        buckets.applyDelta(data.getLong(lastStartTimeKey), data.getInt(shiftKey), indices, sent, received);
+        return true;
+    }
+
+    private void requestDataTransferStatsResync() {
+        if (isDataTransferStatsResyncRequested) {
             return;
         }
-        data.setClassLoader(DataTransferStats.DataTransferStatsBase.Bucket.class.getClassLoader());
-        DataTransferStats.getDataTransferStatsForUI().m_connectedTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_CONNECTED_TIME);
-        DataTransferStats.getDataTransferStatsForUI().m_totalBytesSent = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_SENT);
-        DataTransferStats.getDataTransferStatsForUI().m_totalBytesReceived = data.getLong(TunnelManager.DATA_TRANSFER_STATS_TOTAL_BYTES_RECEIVED);
-        DataTransferStats.getDataTransferStatsForUI().m_slowBuckets = data.getParcelableArrayList(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS);
-        DataTransferStats.getDataTransferStatsForUI().m_slowBucketsLastStartTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_SLOW_BUCKETS_LAST_START_TIME);
-        DataTransferStats.getDataTransferStatsForUI().m_fastBuckets = data.getParcelableArrayList(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS);
-        DataTransferStats.getDataTransferStatsForUI().m_fastBucketsLastStartTime = data.getLong(TunnelManager.DATA_TRANSFER_STATS_FAST_BUCKETS_LAST_START_TIME);
+        isDataTransferStatsResyncRequested = true;
+        sendServiceMessageCompletable(TunnelManager.ClientToServiceMessage.REQUEST_DATA_TRANSFER_STATS.ordinal(), null)
+                .subscribe();
     }
 
     private static class IncomingMessageHandler extends Handler {
@@ -311,7 +441,10 @@ public class TunnelServiceInteractor {
                     tunnelServiceInteractor.tunnelStateRelay.accept(tunnelState);
                     break;
                 case DATA_TRANSFER_STATS:
-                    getDataTransferStatsFromBundle(data);
+                    if (!tunnelServiceInteractor.updateDataTransferStatsFromBundle(data)) {
+                        tunnelServiceInteractor.requestDataTransferStatsResync();
+                        break;
+                    }
                     tunnelServiceInteractor.dataStatsRelay.accept(state.isConnected());
                     break;
                 default:
@@ -85,8 +85,7 @@ public class UpgradeChecker extends BroadcastReceiver {
     public static boolean upgradeCheckNeeded(Context context) {
         Context appContext = context.getApplicationContext();
 
-        // The main process will call this when it tries to connect, so we will use this opportunity
-        // to make sure our alarm is created.
+        // Make sure our alarm is created. The main process does the same when it starts the tunnel.
         createAlarm(appContext);
 
         // Don't re-download the upgrade package when a verified upgrade file is
@@ -122,12 +121,7 @@ public class UpgradeChecker extends BroadcastReceiver {
             return false;
         }
 
-        // Verify if 'Download upgrades on WiFi only' user preference is on
-        // but current network is not WiFi
-        final AppPreferences multiProcessPreferences = new AppPreferences(appContext);
-        if (multiProcessPreferences.getBoolean(
-                context.getString(R.string.downloadWifiOnlyPreference), PsiphonConstants.DOWNLOAD_WIFI_ONLY_PREFERENCE_DEFAULT) &&
-                !Utils.isOnWiFi(appContext)) {
+        if (wifiOnlyPreventsDownload(appContext)) {
             MyLog.i("UpgradeChecker.upgradeCheckNeeded: not checking due to WiFi only user preference");
             return false;
         }
@@ -137,6 +131,39 @@ public class UpgradeChecker extends BroadcastReceiver {
         return true;
     }
 
+    /**
+     * Side-effect free variant of upgradeCheckNeeded used when building tunnel-core configs.
+     * Doesn't check upgrade files which were not checked yet by this process, these count as a
+     * pending upgrade. The main app tunnel checks them when it starts, the UpgradeChecker
+     * alarm when it runs.
+     * May be called from any process or thread.
+     * @param context the context
+     * @return true if tunnel-core should download upgrades.
+     */
+    static boolean upgradeDownloadNeeded(Context context) {
+        Context appContext = context.getApplicationContext();
+
+        if (!allowedToSelfUpgrade(appContext)) {
+            return false;
+        }
+
+        File downloadedUpgradeFile = new File(PsiphonTunnel.getDefaultUpgradeDownloadFilePath(appContext));
+        if (UpgradeManager.PendingUpgrade.peek(appContext, downloadedUpgradeFile).isAvailable()) {
+            return false;
+        }
+
+        return !wifiOnlyPreventsDownload(appContext);
+    }
+
+    // Verify if 'Download upgrades on WiFi only' user preference is on
+    // but current network is not WiFi
+    private static boolean wifiOnlyPreventsDownload(Context appContext) {
+        final AppPreferences multiProcessPreferences = AppPreferences.getInstance(appContext);
+        return multiProcessPreferences.getBoolean(
+                appContext.getString(R.string.downloadWifiOnlyPreference), PsiphonConstants.DOWNLOAD_WIFI_ONLY_PREFERENCE_DEFAULT) &&
+                !Utils.isOnWiFi(appContext);
+    }
+
     /**
      * Checks if the current app installation is allowed to upgrade itself.
      * @param appContext The application context.
@@ -193,7 +220,7 @@ public class UpgradeChecker extends BroadcastReceiver {
      * handles cases when the alarm is already created.
      * @param appContext The application context.
      */
-    private static void createAlarm(Context appContext) {
+    static void createAlarm(Context appContext) {
         if (!allowedToSelfUpgrade(appContext)) {
             // Don't waste resources with an alarm if we can't possibly self-upgrade.
             MyLog.i("UpgradeChecker.createAlarm: build does not allow self-upgrading; not creating alarm");
@@ -329,7 +356,7 @@ public class UpgradeChecker extends BroadcastReceiver {
         public String getPsiphonConfig() {
             // Build a temporary tunnel config to use
             TunnelManager.Config tunnelManagerConfig = new TunnelManager.Config();
-            final AppPreferences multiProcessPreferences = new AppPreferences(this);
+            final AppPreferences multiProcessPreferences = AppPreferences.getInstance(this);
             tunnelManagerConfig.disableTimeouts = multiProcessPreferences.getBoolean(
                     this.getString(R.string.disableTimeoutsPreference), false);
 
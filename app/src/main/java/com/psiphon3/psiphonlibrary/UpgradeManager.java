@@ -20,6 +20,7 @@
 package com.psiphon3.psiphonlibrary;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -30,7 +31,11 @@ import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.net.Uri;
 import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.text.method.MultiTapKeyListener;
+import android.util.Base64;
 
 import androidx.core.app.NotificationCompat;
 import androidx.core.content.FileProvider;
@@ -39,14 +44,25 @@ import com.psiphon3.R;
 import com.psiphon3.log.MyLog;
 import com.psiphon3.psiphonlibrary.AuthenticatedDataPackage.AuthenticatedDataPackageException;
 
-import java.io.BufferedInputStream;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 
 /**
@@ -122,11 +138,17 @@ public interface UpgradeManager
 
         public abstract boolean isWorldReadable();
 
-        @SuppressLint("WorldReadableFiles")
         public FileOutputStream createForWriting() throws FileNotFoundException
+        {
+            return createForWriting(false);
+        }
+
+        @SuppressLint("WorldReadableFiles")
+        public FileOutputStream createForWriting(boolean append) throws FileNotFoundException
         {
             int mode = 0;
             if (isWorldReadable() && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) mode |= Context.MODE_WORLD_READABLE;
+            if (append) mode |= Context.MODE_APPEND;
 
             return this.context.openFileOutput(getFilename(), mode);
         }
@@ -230,15 +252,468 @@ public interface UpgradeManager
         }
     }
 
+    /**
+     * Receives the progress of extracting a downloaded upgrade, on the extracting thread.
+     */
+    interface ExtractionProgressListener
+    {
+        /**
+         * @param bytesRead  bytes of the downloaded file read so far
+         * @param bytesTotal size of the downloaded file
+         */
+        void onExtractionProgress(long bytesRead, long bytesTotal);
+    }
+
+    /**
+     * How far the extraction of a downloaded upgrade got, persisted so that an extraction
+     * interrupted by a lack of disk space can resume once space is available. Only valid for the
+     * downloaded file of the same path, size and modification time. Also counts the
+     * interruptions, so that the download is given up when space never becomes available.
+     */
+    class ExtractionCheckpoint
+    {
+        static final int MAX_INTERRUPTIONS = 5;
+
+        private final File checkpointFile;
+        private final String downloadedFileStamp;
+        private long committedBytes;
+        private int interruptions;
+
+        public ExtractionCheckpoint(Context context, File downloadedFile)
+        {
+            this.checkpointFile = context.getFileStreamPath("PsiphonAndroid.apk.unverified.checkpoint");
+            this.downloadedFileStamp = downloadedFile.getAbsolutePath() + "\n"
+                    + downloadedFile.length() + "\n" + downloadedFile.lastModified();
+        }
+
+        /**
+         * @return the number of extracted bytes that were synced to disk, 0 if there's no
+         * checkpoint for the downloaded file.
+         */
+        public long load()
+        {
+            BufferedReader reader = null;
+            try
+            {
+                reader = new BufferedReader(new FileReader(this.checkpointFile));
+                StringBuilder stamp = new StringBuilder();
+                for (int i = 0; i < 3; i++)
+                {
+                    String line = reader.readLine();
+                    if (line == null)
+                    {
+                        return 0;
+                    }
+                    stamp.append(i == 0 ? "" : "\n").append(line);
+                }
+                String committed = reader.readLine();
+                if (committed == null || !stamp.toString().equals(this.downloadedFileStamp))
+                {
+                    return 0;
+                }
+                String interruptions = reader.readLine();
+                this.committedBytes = Math.max(0, Long.parseLong(committed));
+                this.interruptions = interruptions == null ? 0 : Integer.parseInt(interruptions);
+                return this.committedBytes;
+            }
+            catch (IOException | NumberFormatException e)
+            {
+                return 0;
+            }
+            finally
+            {
+                if (reader != null)
+                {
+                    try { reader.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        /**
+         * @return the number of interruptions loaded or saved, 0 if there's no checkpoint for
+         * the downloaded file.
+         */
+        public int getInterruptions()
+        {
+            return this.interruptions;
+        }
+
+        public void save(long committedBytes) throws IOException
+        {
+            // Small enough to be written atomically
+            FileOutputStream fos = new FileOutputStream(this.checkpointFile);
+            try
+            {
+                fos.write((this.downloadedFileStamp + "\n" + committedBytes + "\n"
+                        + this.interruptions + "\n").getBytes());
+                fos.getFD().sync();
+            }
+            finally
+            {
+                fos.close();
+            }
+            this.committedBytes = committedBytes;
+        }
+
+        /**
+         * Counts another interrupted extraction.
+         * @return false if the extraction shouldn't be resumed anymore, because it was
+         * interrupted too often or the checkpoint can't be saved.
+         */
+        public boolean saveInterruption()
+        {
+            this.interruptions++;
+            if (this.interruptions > MAX_INTERRUPTIONS)
+            {
+                return false;
+            }
+            try
+            {
+                save(this.committedBytes);
+            }
+            catch (IOException e)
+            {
+                MyLog.e("Failed to save upgrade extraction checkpoint: " + e);
+                return false;
+            }
+            return true;
+        }
+
+        public void delete()
+        {
+            this.checkpointFile.delete();
+        }
+    }
+
+    /**
+     * Thrown by CheckpointedOutputStream when the device ran out of space for the extracted
+     * upgrade. Other errors of the output file are not worth resuming.
+     */
+    class OutOfSpaceException extends IOException
+    {
+        public OutOfSpaceException(IOException cause)
+        {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Writes the extracted upgrade through a FileChannel in large chunks. The data is synced and
+     * a checkpoint saved at regular intervals. When resuming, the bytes up to the checkpoint are
+     * already on disk: they are compared with the extracted data instead of being written, and the
+     * file is rewritten from the first difference. Closing the stream syncs the file.
+     */
+    class CheckpointedOutputStream extends OutputStream
+    {
+        private static final int BUFFER_SIZE = 256 * 1024;
+        private static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final File file;
+        private final ExtractionCheckpoint checkpoint;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private long resumeOffset;
+        private FileChannel existingData;
+        private ByteBuffer existingBuffer;
+        private long position;
+        private long lastCheckpoint;
+        private boolean closed;
+        private IOException closeFailure;
+
+        /**
+         * @param channel      the output file, truncated to resumeOffset
+         * @param file         the output file, read to compare the data before resumeOffset
+         * @param resumeOffset number of bytes of the data which are already written
+         */
+        public CheckpointedOutputStream(FileChannel channel, File file, ExtractionCheckpoint checkpoint, long resumeOffset)
+        {
+            this.channel = channel;
+            this.file = file;
+            this.checkpoint = checkpoint;
+            this.resumeOffset = resumeOffset;
+            this.lastCheckpoint = resumeOffset;
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            if (this.position < this.resumeOffset)
+            {
+                int count = (int) Math.min(len, this.resumeOffset - this.position);
+                int matching = compareExisting(b, off, count);
+                this.position += matching;
+                off += matching;
+                len -= matching;
+                if (matching < count)
+                {
+                    // Not what was checkpointed, e.g. the file was modified or the download
+                    // replaced without changing its stamp
+                    MyLog.w("Extracted upgrade differs at " + this.position + " bytes, rewriting from there");
+                    this.resumeOffset = this.position;
+                    try
+                    {
+                        this.channel.truncate(this.position);
+                        this.checkpoint.save(this.position);
+                    }
+                    catch (IOException e)
+                    {
+                        throw checkOutOfSpace(e);
+                    }
+                    this.lastCheckpoint = this.position;
+                }
+                if (this.position == this.resumeOffset)
+                {
+                    closeExistingData();
+                }
+            }
+            while (len > 0)
+            {
+                int chunk = Math.min(len, this.buffer.remaining());
+                this.buffer.put(b, off, chunk);
+                this.position += chunk;
+                off += chunk;
+                len -= chunk;
+                if (!this.buffer.hasRemaining())
+                {
+                    drain();
+                }
+            }
+            if (this.position - this.lastCheckpoint >= CHECKPOINT_INTERVAL)
+            {
+                drain();
+                try
+                {
+                    this.channel.force(false);
+                    this.checkpoint.save(this.position);
+                }
+                catch (IOException e)
+                {
+                    throw checkOutOfSpace(e);
+                }
+                this.lastCheckpoint = this.position;
+            }
+        }
+
+        /**
+         * Throws the error of the first close again, the caller of extractAndVerifyData() has
+         * to see it since the data package closes the destination quietly.
+         */
+        @Override
+        public void close() throws IOException
+        {
+            if (this.closed)
+            {
+                if (this.closeFailure != null)
+                {
+                    throw this.closeFailure;
+                }
+                return;
+            }
+            this.closed = true;
+            try
+            {
+                closeExistingData();
+                if (this.position < this.resumeOffset)
+                {
+                    // Less data than checkpointed, the rest of the file must not be kept
+                    this.channel.truncate(this.position);
+                }
+                drain();
+                // Sync before the file gets renamed, so the rename can't commit a partial file
+                this.channel.force(true);
+            }
+            catch (IOException e)
+            {
+                this.closeFailure = checkOutOfSpace(e);
+                throw this.closeFailure;
+            }
+            finally
+            {
+                this.channel.close();
+            }
+        }
+
+        /**
+         * @return the number of bytes at the start of b which are the same in the file
+         */
+        private int compareExisting(byte[] b, int off, int len) throws IOException
+        {
+            if (this.existingData == null)
+            {
+                this.existingData = new FileInputStream(this.file).getChannel();
+                this.existingBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+            }
+            int compared = 0;
+            while (compared < len)
+            {
+                this.existingBuffer.clear();
+                this.existingBuffer.limit(Math.min(len - compared, BUFFER_SIZE));
+                int read = this.existingData.read(this.existingBuffer, this.position + compared);
+                if (read <= 0)
+                {
+                    return compared;
+                }
+                byte[] existing = this.existingBuffer.array();
+                for (int i = 0; i < read; i++)
+                {
+                    if (existing[i] != b[off + compared + i])
+                    {
+                        return compared + i;
+                    }
+                }
+                compared += read;
+            }
+            return compared;
+        }
+
+        private void closeExistingData()
+        {
+            if (this.existingData != null)
+            {
+                try { this.existingData.close(); } catch (IOException e) {}
+                this.existingData = null;
+                this.existingBuffer = null;
+            }
+        }
+
+        private void drain() throws IOException
+        {
+            this.buffer.flip();
+            try
+            {
+                while (this.buffer.hasRemaining())
+                {
+                    this.channel.write(this.buffer);
+                }
+            }
+            catch (IOException e)
+            {
+                throw checkOutOfSpace(e);
+            }
+            finally
+            {
+                this.buffer.clear();
+            }
+        }
+
+        private IOException checkOutOfSpace(IOException e)
+        {
+            boolean outOfSpace;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+            {
+                outOfSpace = isErrno(e, OsConstants.ENOSPC);
+            }
+            else
+            {
+                // The errno is only available in the message before Lollipop
+                String message = e.getMessage();
+                outOfSpace = message != null && (message.contains("ENOSPC") || message.contains("No space left"));
+            }
+            return outOfSpace ? new OutOfSpaceException(e) : e;
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        private static boolean isErrno(IOException e, int errno)
+        {
+            return e.getCause() instanceof ErrnoException && ((ErrnoException) e.getCause()).errno == errno;
+        }
+    }
+
+    /**
+     * Reports the bytes read from the downloaded file, at most once per REPORT_INTERVAL_MILLIS.
+     * Nothing is reported when reading takes less than that.
+     */
+    class ProgressInputStream extends FilterInputStream
+    {
+        static final long REPORT_INTERVAL_MILLIS = 1000;
+
+        private final ExtractionProgressListener listener;
+        private final long total;
+        private long read;
+        private long lastReport;
+
+        public ProgressInputStream(InputStream in, long total, ExtractionProgressListener listener)
+        {
+            super(in);
+            this.listener = listener;
+            this.total = total;
+            this.lastReport = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int b = super.read();
+            if (b >= 0)
+            {
+                progress(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int count = super.read(b, off, len);
+            if (count > 0)
+            {
+                progress(count);
+            }
+            return count;
+        }
+
+        private void progress(int count)
+        {
+            this.read += count;
+            if (this.listener == null)
+            {
+                return;
+            }
+            long now = SystemClock.elapsedRealtime();
+            if (now - this.lastReport >= REPORT_INTERVAL_MILLIS)
+            {
+                this.lastReport = now;
+                this.listener.onExtractionProgress(this.read, this.total);
+            }
+        }
+    }
+
+    enum ExtractionResult
+    {
+        VERIFIED,
+        // The download is invalid and has to be downloaded again
+        INVALID,
+        // Ran out of disk space, the extraction resumes on the next attempt
+        INTERRUPTED
+    }
+
     class DownloadedUpgradeFile
     {
+        private static final int EXTRACTION_BUFFER_SIZE = 64 * 1024;
+
         private File file;
         private Context context;
+        private String signaturePublicKey;
 
         public DownloadedUpgradeFile(Context context, File file)
+        {
+            this(context, file, EmbeddedValues.UPGRADE_SIGNATURE_PUBLIC_KEY);
+        }
+
+        /**
+         * @param signaturePublicKey the key the upgrade package must be signed with
+         */
+        DownloadedUpgradeFile(Context context, File file, String signaturePublicKey)
         {
             this.context = context;
             this.file = file;
+            this.signaturePublicKey = signaturePublicKey;
         }
 
         public String getFullPath() {
@@ -255,14 +730,54 @@ public interface UpgradeManager
             return this.file.delete();
         }
 
-        private InputStream openUnzipStream() throws IOException, FileNotFoundException
+        private InputStream openUnzipStream(ExtractionProgressListener listener) throws IOException, FileNotFoundException
         {
-            return new GZIPInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+            InputStream fileStream = new ProgressInputStream(
+                    new FileInputStream(this.file), this.file.length(), listener);
+            return new GZIPInputStream(fileStream, EXTRACTION_BUFFER_SIZE);
         }
 
         public boolean extractAndVerify()
+        {
+            return extractAndVerify(null) == ExtractionResult.VERIFIED;
+        }
+
+        /**
+         * Extracts the upgrade to the VerifiedUpgradeFile, resuming a previous extraction that
+         * ran out of disk space.
+         * @param listener receives the progress, may be null
+         */
+        public ExtractionResult extractAndVerify(ExtractionProgressListener listener)
+        {
+            ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(this.context, this.file);
+            ExtractionResult result = extractAndVerify(checkpoint, listener);
+            if (result == ExtractionResult.INTERRUPTED && !checkpoint.saveInterruption())
+            {
+                // Start over with a new download, which frees the space of this one
+                MyLog.e("Giving up upgrade extraction after " + checkpoint.getInterruptions() + " interruptions");
+                new UnverifiedUpgradeFile(this.context).delete();
+                result = ExtractionResult.INVALID;
+            }
+            if (result != ExtractionResult.INTERRUPTED)
+            {
+                checkpoint.delete();
+            }
+            return result;
+        }
+
+        /**
+         * @param channel the unverified upgrade file, opened for appending and truncated to
+         *                resumeOffset
+         */
+        OutputStream createDestination(FileChannel channel, File file, ExtractionCheckpoint checkpoint, long resumeOffset)
+        {
+            return new CheckpointedOutputStream(channel, file, checkpoint, resumeOffset);
+        }
+
+        private ExtractionResult extractAndVerify(ExtractionCheckpoint checkpoint, ExtractionProgressListener listener)
         {
             InputStream unzipStream = null;
+            UnverifiedUpgradeFile unverifiedFile = new UnverifiedUpgradeFile(this.context);
 
             try
             {
@@ -271,33 +786,67 @@ public interface UpgradeManager
                 // additional signature check mitigates against a malicious MiM which supplies
                 // a malicious, unsigned, upgrade payload which our intent would start to install.
 
-                unzipStream = openUnzipStream();
+                unzipStream = openUnzipStream(listener);
 
-                UnverifiedUpgradeFile unverifiedFile = new UnverifiedUpgradeFile(this.context);
-                OutputStream dataDestination = unverifiedFile.createForWriting();
+                // The whole package is always read since the signature is on all of the data,
+                // only writing the synced part of the extracted data is skipped.
+                long resumeOffset = checkpoint.load();
+                if (resumeOffset > unverifiedFile.getSize())
+                {
+                    resumeOffset = 0;
+                }
+                FileChannel channel = unverifiedFile.createForWriting(resumeOffset > 0).getChannel();
+                try
+                {
+                    channel.truncate(resumeOffset);
+                }
+                catch (IOException e)
+                {
+                    channel.close();
+                    throw e;
+                }
+                if (resumeOffset > 0)
+                {
+                    MyLog.i("Resuming upgrade extraction at " + resumeOffset + " bytes");
+                }
+                OutputStream dataDestination = createDestination(
+                        channel, unverifiedFile.getFile(), checkpoint, resumeOffset);
 
                 AuthenticatedDataPackage.extractAndVerifyData(
-                        EmbeddedValues.UPGRADE_SIGNATURE_PUBLIC_KEY,
+                        this.signaturePublicKey,
                         unzipStream,
                         true, // "data" is Base64 (and is a large value to be streamed)
                         dataDestination);
+                // Fails if the data couldn't be synced when the data package closed it
+                dataDestination.close();
 
-                return unverifiedFile.rename(new VerifiedUpgradeFile(this.context).getFilename());
+                return unverifiedFile.rename(new VerifiedUpgradeFile(this.context).getFilename()) ?
+                        ExtractionResult.VERIFIED : ExtractionResult.INVALID;
             }
             catch (FileNotFoundException e)
             {
                 MyLog.e("Upgrade file not found: " + e);
-                return false;
+                return ExtractionResult.INVALID;
             }
             catch (IOException e)
             {
+                if (e instanceof OutOfSpaceException)
+                {
+                    MyLog.e("Not enough space to extract upgrade file: " + e);
+                    return ExtractionResult.INTERRUPTED;
+                }
                 MyLog.e("Failed to read upgrade file: " + e);
-                return false;
+                return ExtractionResult.INVALID;
             }
             catch (AuthenticatedDataPackageException e)
             {
+                if (e.getCause() instanceof OutOfSpaceException)
+                {
+                    MyLog.e("Not enough space to extract upgrade file: " + e);
+                    return ExtractionResult.INTERRUPTED;
+                }
                 MyLog.e("Failed to authenticate upgrade file: " + e);
-                return false;
+                return ExtractionResult.INVALID;
             }
             finally
             {
@@ -309,39 +858,346 @@ public interface UpgradeManager
         }
     }
 
+    /**
+     * Identifies the VerifiedUpgradeFile that was last parsed and its version, so that checking
+     * for an upgrade doesn't parse the same APK again. Saved in the app files directory, so it
+     * outlives the process unlike PendingUpgrade.
+     */
+    class VerifiedUpgradeManifest
+    {
+        private static final String FILENAME = "PsiphonAndroid.apk.manifest";
+
+        private final String path;
+        private final long size;
+        private final long lastModified;
+        private final String sha256;
+        private final int versionCode;
+
+        private VerifiedUpgradeManifest(String path, long size, long lastModified, String sha256, int versionCode)
+        {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.sha256 = sha256;
+            this.versionCode = versionCode;
+        }
+
+        /**
+         * @return the saved manifest, null if there is none or it can't be read.
+         */
+        public static VerifiedUpgradeManifest read(Context context)
+        {
+            File file = context.getFileStreamPath(FILENAME);
+            if (!file.exists())
+            {
+                return null;
+            }
+            FileInputStream fis = null;
+            try
+            {
+                fis = new FileInputStream(file);
+                ByteArrayOutputStream contents = new ByteArrayOutputStream();
+                byte[] buffer = new byte[1024];
+                int count;
+                while ((count = fis.read(buffer)) != -1)
+                {
+                    contents.write(buffer, 0, count);
+                }
+                JSONObject json = new JSONObject(contents.toString("UTF-8"));
+                return new VerifiedUpgradeManifest(
+                        json.getString("path"),
+                        json.getLong("size"),
+                        json.getLong("lastModified"),
+                        json.getString("sha256"),
+                        json.getInt("versionCode"));
+            }
+            catch (IOException | JSONException e)
+            {
+                MyLog.w("Failed to read upgrade manifest: " + e);
+                return null;
+            }
+            finally
+            {
+                if (fis != null)
+                {
+                    try { fis.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        /**
+         * Saves the manifest of the APK, failures are only logged as the APK is then parsed
+         * again on the next check.
+         */
+        public static void save(Context context, File apk, int versionCode)
+        {
+            File file = context.getFileStreamPath(FILENAME);
+            File tempFile = context.getFileStreamPath(FILENAME + ".tmp");
+            FileOutputStream fos = null;
+            try
+            {
+                JSONObject json = new JSONObject();
+                json.put("path", apk.getAbsolutePath());
+                json.put("size", apk.length());
+                json.put("lastModified", apk.lastModified());
+                json.put("sha256", sha256(apk));
+                json.put("versionCode", versionCode);
+
+                fos = new FileOutputStream(tempFile);
+                fos.write(json.toString().getBytes("UTF-8"));
+                fos.getFD().sync();
+                fos.close();
+                fos = null;
+                if (!tempFile.renameTo(file))
+                {
+                    throw new IOException("rename failed");
+                }
+            }
+            catch (IOException | JSONException | NoSuchAlgorithmException e)
+            {
+                MyLog.w("Failed to save upgrade manifest: " + e);
+                tempFile.delete();
+            }
+            finally
+            {
+                if (fos != null)
+                {
+                    try { fos.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        public static void delete(Context context)
+        {
+            context.deleteFile(FILENAME);
+        }
+
+        /**
+         * @return true if the APK is the same file as when the manifest was saved, only reads
+         * the file attributes.
+         */
+        public boolean matches(File apk)
+        {
+            return this.path.equals(apk.getAbsolutePath())
+                    && this.size == apk.length()
+                    && this.lastModified == apk.lastModified();
+        }
+
+        /**
+         * @return true if the APK has the content it had when the manifest was saved, reads the
+         * whole file.
+         */
+        public boolean matchesContent(File apk)
+        {
+            if (!this.path.equals(apk.getAbsolutePath()) || this.size != apk.length())
+            {
+                return false;
+            }
+            try
+            {
+                return this.sha256.equals(sha256(apk));
+            }
+            catch (IOException | NoSuchAlgorithmException e)
+            {
+                return false;
+            }
+        }
+
+        public int getVersionCode()
+        {
+            return this.versionCode;
+        }
+
+        private static String sha256(File file) throws IOException, NoSuchAlgorithmException
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            FileInputStream fis = new FileInputStream(file);
+            try
+            {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = fis.read(buffer)) != -1)
+                {
+                    digest.update(buffer, 0, count);
+                }
+            }
+            finally
+            {
+                fis.close();
+            }
+            return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
+        }
+    }
+
+    /**
+     * Status of the upgrade awaiting install.
+     * Checking for an upgrade means extracting, authenticating and parsing a whole APK, so the
+     * result of the last check is kept per process along with the size and modification time of
+     * the files it was based on. It remains valid until one of these files changes, e.g. when
+     * another process downloads, extracts or deletes an upgrade.
+     */
+    final class PendingUpgrade
+    {
+        private static volatile PendingUpgrade lastChecked;
+
+        private final String downloadedPath;
+        private final long[] downloadedStamp;
+        private final long[] verifiedStamp;
+        private final boolean checked;
+        private final boolean available;
+
+        /**
+         * @param checkedAvailable result of the check, null if the files were not checked
+         */
+        private PendingUpgrade(Context context, File downloadedUpgradeFile, Boolean checkedAvailable)
+        {
+            this.downloadedPath = downloadedUpgradeFile.getAbsolutePath();
+            this.downloadedStamp = stamp(downloadedUpgradeFile);
+            this.verifiedStamp = stamp(new VerifiedUpgradeFile(context).getFile());
+            this.checked = checkedAvailable != null;
+            // Files that were not checked yet count as an upgrade awaiting install so that
+            // nothing downloads an upgrade that is about to be verified
+            this.available = this.checked ?
+                    checkedAvailable :
+                    this.downloadedStamp != null || this.verifiedStamp != null;
+        }
+
+        /**
+         * Returns the checked status, checking the upgrade files if they changed since the last
+         * check done by this process.
+         * Side-effect: See UpgradeInstaller.getAvailableCompleteUpgradeFile.
+         */
+        public static PendingUpgrade check(Context context, File downloadedUpgradeFile)
+        {
+            synchronized (PendingUpgrade.class)
+            {
+                PendingUpgrade status = peek(context, downloadedUpgradeFile);
+                if (status.isChecked())
+                {
+                    return status;
+                }
+                boolean available =
+                        UpgradeInstaller.getAvailableCompleteUpgradeFile(context, downloadedUpgradeFile) != null;
+                if (!available && downloadedUpgradeFile.exists())
+                {
+                    // The extraction was interrupted and will resume, the download still counts
+                    // as a pending upgrade
+                    return new PendingUpgrade(context, downloadedUpgradeFile, null);
+                }
+                status = new PendingUpgrade(context, downloadedUpgradeFile, available);
+                lastChecked = status;
+                return status;
+            }
+        }
+
+        /**
+         * Returns the status without doing any file I/O besides reading file attributes. If the
+         * upgrade files changed since the last check, the returned status is not checked.
+         */
+        public static PendingUpgrade peek(Context context, File downloadedUpgradeFile)
+        {
+            PendingUpgrade status = new PendingUpgrade(context, downloadedUpgradeFile, null);
+            PendingUpgrade last = lastChecked;
+            if (last != null && last.sameFiles(status))
+            {
+                return last;
+            }
+            return status;
+        }
+
+        /**
+         * @return true if isAvailable() is the result of authenticating the upgrade and comparing
+         * its version with the current app.
+         */
+        public boolean isChecked()
+        {
+            return this.checked;
+        }
+
+        /**
+         * @return true if an upgrade is awaiting install, or, when not checked, may be.
+         */
+        public boolean isAvailable()
+        {
+            return this.available;
+        }
+
+        private boolean sameFiles(PendingUpgrade other)
+        {
+            return this.downloadedPath.equals(other.downloadedPath)
+                    && Arrays.equals(this.downloadedStamp, other.downloadedStamp)
+                    && Arrays.equals(this.verifiedStamp, other.verifiedStamp);
+        }
+
+        // null if the file doesn't exist
+        private static long[] stamp(File file)
+        {
+            long lastModified = file.lastModified();
+            if (lastModified == 0 && !file.exists())
+            {
+                return null;
+            }
+            return new long[] {file.length(), lastModified};
+        }
+    }
+
     /**
      * Used for checking if an upgrade has been downloaded and installing it.
      */
     class UpgradeInstaller
     {
         private static final String UPGRADE_NOTIFICATION_CHANNEL_ID = "psiphon_upgrade_notification_channel";
+        // Extraction also runs for checks in the background, its progress must not pop up
+        private static final String UPGRADE_PROGRESS_NOTIFICATION_CHANNEL_ID = "psiphon_upgrade_progress_notification_channel";
         private static NotificationManager mNotificationManager;
         private static NotificationCompat.Builder mNotificationBuilder;
+        private static NotificationCompat.Builder mProgressNotificationBuilder;
 
         /**
          * Check if an upgrade file is available, and if it's actually a higher
          * version.
          * Side-effect: May delete existing upgrade file if it's invalid or an old version.
+         * Side-effect: Shows the progress in a notification while a downloaded file is extracted.
          * @return true if upgrade file is available to be applied.
          */
-        protected static VerifiedUpgradeFile getAvailableCompleteUpgradeFile(Context context, File downloadedUpgradeFile)
+        protected static VerifiedUpgradeFile getAvailableCompleteUpgradeFile(final Context context, File downloadedUpgradeFile)
         {
             DownloadedUpgradeFile downloadedFile = new DownloadedUpgradeFile(context, downloadedUpgradeFile);
 
             if (downloadedFile.exists())
             {
-                boolean success = downloadedFile.extractAndVerify();
+                ExtractionResult result;
+                try
+                {
+                    result = downloadedFile.extractAndVerify(new ExtractionProgressListener()
+                    {
+                        @Override
+                        public void onExtractionProgress(long bytesRead, long bytesTotal)
+                        {
+                            postProgressNotification(context, (int) (100 * bytesRead / Math.max(1, bytesTotal)));
+                        }
+                    });
+                }
+                finally
+                {
+                    cancelProgressNotification();
+                }
+
+                // If the extraction ran out of disk space, keep the downloaded file and resume
+                // the extraction next time instead of downloading again.
+                if (result == ExtractionResult.INTERRUPTED)
+                {
+                    return null;
+                }
 
                 // If the extract and verify succeeds, delete it since it's no longer
                 // required and we don't want to re-install it.
                 // If the file isn't working and we think we have the complete file,
                 // there may be corrupt bytes. So delete it and next time we'll start over.
-                // NOTE: this means if the failure was due to not enough free space
-                // to write the extracted file... we still re-download.
 
                 downloadedFile.delete();
 
-                if (!success)
+                if (result != ExtractionResult.VERIFIED)
                 {
                     return null;
                 }
@@ -357,17 +1213,38 @@ public interface UpgradeManager
 
             // Is it a higher version than the current app?
 
-            final PackageManager pm = context.getPackageManager();
+            // Parsing the APK is only needed when the file doesn't match the manifest saved
+            // when it was last parsed.
+            int upgradeVersionCode;
+            VerifiedUpgradeManifest manifest = VerifiedUpgradeManifest.read(context);
+            if (manifest != null && manifest.matches(file.getFile()))
+            {
+                upgradeVersionCode = manifest.getVersionCode();
+            }
+            else if (manifest != null && manifest.matchesContent(file.getFile()))
+            {
+                // Same file with a new modification time, e.g. restored from a backup
+                upgradeVersionCode = manifest.getVersionCode();
+                VerifiedUpgradeManifest.save(context, file.getFile(), upgradeVersionCode);
+            }
+            else
+            {
+                final PackageManager pm = context.getPackageManager();
+
+                // Info about the potential upgrade file
+                PackageInfo upgradePackageInfo = pm.getPackageArchiveInfo(file.getFullPath(), 0);
 
-            // Info about the potential upgrade file
-            PackageInfo upgradePackageInfo = pm.getPackageArchiveInfo(file.getFullPath(), 0);
+                if (upgradePackageInfo == null)
+                {
+                    // There's probably something wrong with the upgrade file.
+                    file.delete();
+                    VerifiedUpgradeManifest.delete(context);
+                    MyLog.e("Upgrade failed. Cannot extract package info from upgrade file.");
+                    return null;
+                }
 
-            if (upgradePackageInfo == null)
-            {
-                // There's probably something wrong with the upgrade file.
-                file.delete();
-                MyLog.e("Upgrade failed. Cannot extract package info from upgrade file.");
-                return null;
+                upgradeVersionCode = upgradePackageInfo.versionCode;
+                VerifiedUpgradeManifest.save(context, file.getFile(), upgradeVersionCode);
             }
 
             // Info about the current app
@@ -387,9 +1264,10 @@ public interface UpgradeManager
             }
 
             // Does the upgrade package have a higher version?
-            if (upgradePackageInfo.versionCode <= currentPackageInfo.versionCode)
+            if (upgradeVersionCode <= currentPackageInfo.versionCode)
             {
                 file.delete();
+                VerifiedUpgradeManifest.delete(context);
                 return null;
             }
 
@@ -398,12 +1276,13 @@ public interface UpgradeManager
 
         /**
          * Checks if a valid upgrade file is available for install.
-         * Note that this is not a zero-cost function call, as package verification is done.
+         * Note that this is not a zero-cost function call, as package verification is done unless
+         * the files were already checked by this process.
          * @param context
          * @return true if an upgrade file is available
          */
         public static boolean upgradeFileAvailable(Context context, File file) {
-            return getAvailableCompleteUpgradeFile(context, file) != null;
+            return PendingUpgrade.check(context, file).isAvailable();
         }
 
         /**
@@ -429,10 +1308,10 @@ public interface UpgradeManager
          * @return true if an upgrade is available and the notification was shown
          */
         public static boolean notifyUpgrade(Context context, String filename) {
-            VerifiedUpgradeFile file = getAvailableCompleteUpgradeFile(context, new File(filename));
-            if (file == null) {
+            if (!PendingUpgrade.check(context, new File(filename)).isAvailable()) {
                 return false;
             }
+            VerifiedUpgradeFile file = new VerifiedUpgradeFile(context);
 
             // This intent triggers the upgrade. It's launched if the user clicks the notification.
 
@@ -468,7 +1347,32 @@ public interface UpgradeManager
             return true;
         }
 
-        private static void postNotification(Context context) {
+        private static synchronized void postProgressNotification(Context context, int percent) {
+            if (mProgressNotificationBuilder == null) {
+                mProgressNotificationBuilder = new NotificationCompat.Builder(context, UPGRADE_PROGRESS_NOTIFICATION_CHANNEL_ID)
+                        .setSmallIcon(R.drawable.notification_icon_upgrade_available)
+                        .setGroup(context.getString(R.string.upgrade_notification_group))
+                        .setPriority(NotificationCompat.PRIORITY_LOW)
+                        .setOngoing(true)
+                        .setOnlyAlertOnce(true);
+            }
+            mProgressNotificationBuilder
+                    .setContentTitle(context.getString(R.string.UpgradeManager_UpgradePromptTitle))
+                    .setContentText(context.getString(R.string.UpgradeManager_UpgradePreparingMessage))
+                    .setProgress(100, percent, false);
+            createNotificationManager(context);
+            if (mNotificationManager != null) {
+                mNotificationManager.notify(R.string.UpgradeManager_UpgradePreparingMessage, mProgressNotificationBuilder.build());
+            }
+        }
+
+        private static synchronized void cancelProgressNotification() {
+            if (mProgressNotificationBuilder != null && mNotificationManager != null) {
+                mNotificationManager.cancel(R.string.UpgradeManager_UpgradePreparingMessage);
+            }
+        }
+
+        private static void createNotificationManager(Context context) {
             if (mNotificationManager == null) {
                 mNotificationManager = (NotificationManager)context.getSystemService(Context.NOTIFICATION_SERVICE);
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
@@ -478,8 +1382,17 @@ public interface UpgradeManager
                     notificationChannel.setSound(null, null);
                     notificationChannel.enableVibration(false);
                     mNotificationManager.createNotificationChannel(notificationChannel);
+
+                    NotificationChannel progressNotificationChannel = new NotificationChannel(
+                            UPGRADE_PROGRESS_NOTIFICATION_CHANNEL_ID, context.getText(R.string.psiphon_upgrade_progress_notification_channel_name),
+                            NotificationManager.IMPORTANCE_LOW);
+                    mNotificationManager.createNotificationChannel(progressNotificationChannel);
                 }
             }
+        }
+
+        private static void postNotification(Context context) {
+            createNotificationManager(context);
 
             if (mNotificationManager != null) {
                 mNotificationManager.notify(R.string.UpgradeManager_UpgradeAvailableNotificationId, mNotificationBuilder.build());
@@ -34,39 +34,39 @@ public class UpstreamProxySettings {
     private static ProxySettings m_savedProxySettings = null;
 
     public static synchronized boolean getUseHTTPProxy(Context context) {
-        return new AppPreferences(context).getBoolean(context.getString(R.string.useProxySettingsPreference), false);
+        return AppPreferences.getInstance(context).getBoolean(context.getString(R.string.useProxySettingsPreference), false);
     }
 
     public static synchronized boolean getUseSystemProxySettings(Context context) {
-        return new AppPreferences(context).getBoolean(context.getString(R.string.useSystemProxySettingsPreference), false);
+        return AppPreferences.getInstance(context).getBoolean(context.getString(R.string.useSystemProxySettingsPreference), false);
     }
 
     public static synchronized boolean getUseCustomProxySettings(Context context) {
-        return new AppPreferences(context).getBoolean(context.getString(R.string.useCustomProxySettingsPreference), false);
+        return AppPreferences.getInstance(context).getBoolean(context.getString(R.string.useCustomProxySettingsPreference), false);
     }
 
     public static synchronized String getCustomProxyHost(Context context) {
-        return new AppPreferences(context).getString(context.getString(R.string.useCustomProxySettingsHostPreference), "").trim();
+        return AppPreferences.getInstance(context).getString(context.getString(R.string.useCustomProxySettingsHostPreference), "").trim();
     }
 
     public static synchronized String getCustomProxyPort(Context context) {
-        return new AppPreferences(context).getString(context.getString(R.string.useCustomProxySettingsPortPreference), "");
+        return AppPreferences.getInstance(context).getString(context.getString(R.string.useCustomProxySettingsPortPreference), "");
     }
 
     public static synchronized boolean getUseProxyAuthentication(Context context) {
-        return new AppPreferences(context).getBoolean(context.getString(R.string.useProxyAuthenticationPreference), false);
+        return AppPreferences.getInstance(context).getBoolean(context.getString(R.string.useProxyAuthenticationPreference), false);
     }
 
     public static synchronized String getProxyUsername(Context context) {
-        return new AppPreferences(context).getString(context.getString(R.string.useProxyUsernamePreference), "");
+        return AppPreferences.getInstance(context).getString(context.getString(R.string.useProxyUsernamePreference), "");
     }
 
     public static synchronized String getProxyPassword(Context context) {
-        return new AppPreferences(context).getString(context.getString(R.string.useProxyPasswordPreference), "");
+        return AppPreferences.getInstance(context).getString(context.getString(R.string.useProxyPasswordPreference), "");
     }
 
     public static synchronized String getProxyDomain(Context context) {
-        return new AppPreferences(context).getString(context.getString(R.string.useProxyDomainPreference), "");
+        return AppPreferences.getInstance(context).getString(context.getString(R.string.useProxyDomainPreference), "");
     }
 
     public static boolean isValidProxyHostName(String proxyHost) {
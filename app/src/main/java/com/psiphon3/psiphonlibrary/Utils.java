@@ -496,7 +496,7 @@ public class Utils {
     }
 
     public static boolean getUnsafeTrafficAlertsOptInState(Context context) {
-        return new AppPreferences(context)
+        return AppPreferences.getInstance(context)
                 .getBoolean(context.getString(R.string.unsafeTrafficAlertsPreference),
                         false);
     }
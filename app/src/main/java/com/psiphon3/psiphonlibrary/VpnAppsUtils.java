@@ -42,7 +42,7 @@ public class VpnAppsUtils {
 
     public static VpnAppsExclusionSetting getVpnAppsExclusionMode(Context context) {
         if (Utils.supportsVpnExclusions()) {
-            AppPreferences prefs = new AppPreferences(context);
+            AppPreferences prefs = AppPreferences.getInstance(context);
             if (prefs.getBoolean(context.getString(R.string.preferenceExcludeAppsFromVpn), false)) {
                 return VpnAppsExclusionSetting.EXCLUDE_APPS;
             }
@@ -54,7 +54,7 @@ public class VpnAppsUtils {
     }
 
     static void migrate(Context context) {
-        AppPreferences prefs = new AppPreferences(context);
+        AppPreferences prefs = AppPreferences.getInstance(context);
         try {
             prefs.getBoolean(context.getString(R.string.preferenceIncludeAllAppsInVpn));
         } catch (ItemNotFoundException e) {
@@ -77,13 +77,13 @@ public class VpnAppsUtils {
     }
 
     public static Set<String> getCurrentAppsIncludedInVpn(Context context) {
-        AppPreferences prefs = new AppPreferences(context);
+        AppPreferences prefs = AppPreferences.getInstance(context);
         String serializedSet = prefs.getString(context.getString(R.string.preferenceIncludeAppsInVpnString), "");
         return SharedPreferenceUtils.deserializeSet(serializedSet);
     }
 
     public static Set<String> getCurrentAppsExcludedFromVpn(Context context) {
-        AppPreferences prefs = new AppPreferences(context);
+        AppPreferences prefs = AppPreferences.getInstance(context);
         String serializedSet = prefs.getString(context.getString(R.string.preferenceExcludeAppsFromVpnString), "");
         return SharedPreferenceUtils.deserializeSet(serializedSet);
     }
@@ -105,13 +105,13 @@ public class VpnAppsUtils {
     }
 
     static void setCurrentAppsToIncludeInVpn(Context context, Set<String> includeApps) {
-        AppPreferences prefs = new AppPreferences(context);
+        AppPreferences prefs = AppPreferences.getInstance(context);
         String serializedSet = SharedPreferenceUtils.serializeSet(includeApps);
         prefs.put(context.getString(R.string.preferenceIncludeAppsInVpnString), serializedSet);
     }
 
     static void setCurrentAppsToExcludeFromVpn(Context context, Set<String> excludeApps) {
-        AppPreferences prefs = new AppPreferences(context);
+        AppPreferences prefs = AppPreferences.getInstance(context);
         String serializedSet = SharedPreferenceUtils.serializeSet(excludeApps);
         prefs.put(context.getString(R.string.preferenceExcludeAppsFromVpnString), serializedSet);
     }
@@ -133,7 +133,7 @@ public class VpnAppsUtils {
     }
 
     public static boolean isTunneledAppId(Context context, String appId) {
-        AppPreferences prefs = new AppPreferences(context);
+        AppPreferences prefs = AppPreferences.getInstance(context);
 
         if(prefs.getBoolean(context.getString(R.string.preferenceExcludeAppsFromVpn), false)) {
             Set<String> untunneledApps = getCurrentAppsExcludedFromVpn(context);
@@ -0,0 +1,60 @@
+package com.psiphon3.psiphonlibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AppSearchIndexTest {
+
+    private static final AppSearchIndex INDEX = new AppSearchIndex(Arrays.asList(
+            new AppEntry("Caf\u00e9 Finder", "com.example.cafe"),
+            new AppEntry("Chrome", "com.android.chrome"),
+            new AppEntry("Maps", "com.google.android.apps.maps"),
+            new AppEntry("Firefox", "org.mozilla.firefox"),
+            new AppEntry("Email", "com.example.email"),
+            new AppEntry("Mail Client", "net.mail.client")));
+
+    private static List<String> search(String query) {
+        List<String> packageIds = new ArrayList<>();
+        for (AppEntry entry : INDEX.search(query)) {
+            packageIds.add(entry.getPackageId());
+        }
+        return packageIds;
+    }
+
+    @Test
+    public void emptyQuery_ReturnsAllEntries() {
+        assertEquals(6, INDEX.search("").size());
+        assertEquals(6, INDEX.search("  ").size());
+    }
+
+    @Test
+    public void search_IgnoresCaseAndDiacritics() {
+        assertEquals(Arrays.asList("com.example.cafe"), search("CAFE"));
+        assertEquals(Arrays.asList("com.example.cafe"), search("caf\u00e9"));
+    }
+
+    @Test
+    public void search_MatchesPackageIdTokens() {
+        assertEquals(Arrays.asList("org.mozilla.firefox"), search("mozilla"));
+        assertEquals(Arrays.asList("com.google.android.apps.maps"), search("google.apps"));
+    }
+
+    @Test
+    public void search_AllTermsMustMatch() {
+        assertEquals(Arrays.asList("com.example.cafe"), search("finder cafe"));
+        assertTrue(search("finder chrome").isEmpty());
+    }
+
+    @Test
+    public void search_ListsPrefixMatchesFirst() {
+        // "Email" only contains "mail", "Mail Client" has a token starting with it
+        assertEquals(Arrays.asList("net.mail.client", "com.example.email"), search("mail"));
+        // prefix matches keep the order of the entries
+        assertEquals(Arrays.asList("com.example.cafe", "org.mozilla.firefox"), search("fi"));
+    }
+}
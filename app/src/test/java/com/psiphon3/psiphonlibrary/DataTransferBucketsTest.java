@@ -0,0 +1,334 @@
+package com.psiphon3.psiphonlibrary;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the ring buffer implementation produces the same series as the original
+ * ArrayList based bucket implementation for the same sequence of events.
+ */
+public class DataTransferBucketsTest {
+
+    private static final int MAX_BUCKETS = DataTransferStats.DataTransferStatsBase.MAX_BUCKETS;
+    private static final long SLOW_PERIOD = 5 * 60 * 1000;
+    private static final long FAST_PERIOD = 1000;
+
+    // Copy of the list based implementation the ring buffer replaces.
+    private static class LegacyBuckets {
+        private final long period;
+        private ArrayList<long[]> buckets;
+        private long lastStartTime;
+
+        LegacyBuckets(long period) {
+            this.period = period;
+        }
+
+        void reset(long now) {
+            lastStartTime = period * (now / period);
+            buckets = new ArrayList<>();
+            for (int i = 0; i < MAX_BUCKETS; i++) {
+                buckets.add(new long[2]);
+            }
+        }
+
+        void advance(long now) {
+            long diff = now - lastStartTime;
+            if (diff >= period) {
+                for (int i = 0; i < diff / period + 1; i++) {
+                    buckets.add(buckets.size(), new long[2]);
+                    if (buckets.size() >= MAX_BUCKETS) {
+                        buckets.remove(0);
+                    }
+                }
+                lastStartTime = period * (now / period);
+            }
+        }
+
+        void addBytesSent(long bytes) {
+            buckets.get(buckets.size() - 1)[0] += bytes;
+        }
+
+        void addBytesReceived(long bytes) {
+            buckets.get(buckets.size() - 1)[1] += bytes;
+        }
+
+        ArrayList<Long> getSeries(int index) {
+            ArrayList<Long> series = new ArrayList<>();
+            for (long[] bucket : buckets) {
+                series.add(bucket[index]);
+            }
+            return series;
+        }
+    }
+
+    private static void assertSameSeries(LegacyBuckets expected, DataTransferBuckets actual) {
+        assertEquals(expected.lastStartTime, actual.getLastStartTime());
+        assertEquals(expected.getSeries(0), actual.getSentSeries());
+        assertEquals(expected.getSeries(1), actual.getReceivedSeries());
+    }
+
+    private static void runRandomized(long period, long seed, int steps, long maxStepMillis) {
+        Random random = new Random(seed);
+        long now = 1234567L;
+        LegacyBuckets legacy = new LegacyBuckets(period);
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, period);
+        legacy.reset(now);
+        buckets.reset(now);
+
+        for (int i = 0; i < steps; i++) {
+            now += (long) (random.nextDouble() * maxStepMillis);
+            long sent = random.nextInt(100000);
+            long received = random.nextInt(1000000);
+
+            legacy.advance(now);
+            buckets.advance(now);
+            legacy.addBytesSent(sent);
+            buckets.addBytesSent(sent);
+            legacy.addBytesReceived(received);
+            buckets.addBytesReceived(received);
+
+            assertSameSeries(legacy, buckets);
+        }
+    }
+
+    @Test
+    public void newBuckets_AreEmpty() {
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        buckets.reset(2500);
+
+        assertEquals(2000, buckets.getLastStartTime());
+        assertEquals(MAX_BUCKETS, buckets.getSentSeries().size());
+        assertEquals(MAX_BUCKETS, buckets.getReceivedSeries().size());
+        for (long value : buckets.getSentArray()) {
+            assertEquals(0, value);
+        }
+    }
+
+    @Test
+    public void addBytes_WithinPeriod_AccumulatesInNewestBucket() {
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        buckets.reset(0);
+        buckets.advance(999);
+        buckets.addBytesSent(10);
+        buckets.addBytesSent(5);
+        buckets.addBytesReceived(7);
+
+        long[] sent = buckets.getSentArray();
+        long[] received = buckets.getReceivedArray();
+        assertEquals(15, sent[MAX_BUCKETS - 1]);
+        assertEquals(7, received[MAX_BUCKETS - 1]);
+        assertEquals(0, sent[MAX_BUCKETS - 2]);
+    }
+
+    @Test
+    public void advance_MatchesLegacy_FastBuckets() {
+        runRandomized(FAST_PERIOD, 1, 5000, 2500);
+    }
+
+    @Test
+    public void advance_MatchesLegacy_SlowBuckets() {
+        runRandomized(SLOW_PERIOD, 2, 5000, 15 * 60 * 1000);
+    }
+
+    @Test
+    public void advance_MatchesLegacy_AfterLongIdle() {
+        LegacyBuckets legacy = new LegacyBuckets(FAST_PERIOD);
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        legacy.reset(0);
+        buckets.reset(0);
+        for (long now : new long[]{100, 1500, 286 * FAST_PERIOD, 287 * FAST_PERIOD + 1,
+                3600 * FAST_PERIOD, 3600 * FAST_PERIOD + 10, 3602 * FAST_PERIOD}) {
+            legacy.advance(now);
+            buckets.advance(now);
+            legacy.addBytesSent(now);
+            buckets.addBytesSent(now);
+            legacy.addBytesReceived(now * 2);
+            buckets.addBytesReceived(now * 2);
+            assertSameSeries(legacy, buckets);
+        }
+    }
+
+    @Test
+    public void set_RoundTripsOrderedSeries() {
+        DataTransferBuckets source = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        source.reset(0);
+        for (int i = 0; i < 500; i++) {
+            source.advance(i * FAST_PERIOD * 2);
+            source.addBytesSent(i);
+            source.addBytesReceived(i * 3);
+        }
+
+        DataTransferBuckets copy = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        copy.set(source.getSentArray(), source.getReceivedArray(), source.getLastStartTime());
+
+        assertEquals(source.getLastStartTime(), copy.getLastStartTime());
+        assertEquals(source.getSentSeries(), copy.getSentSeries());
+        assertEquals(source.getReceivedSeries(), copy.getReceivedSeries());
+    }
+
+    @Test
+    public void set_InvalidSeries_ResetsBuckets() {
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        buckets.reset(0);
+        buckets.addBytesSent(42);
+        buckets.set(new long[3], null, 5500);
+
+        assertEquals(5000, buckets.getLastStartTime());
+        assertEquals(0, buckets.getSentArray()[MAX_BUCKETS - 1]);
+    }
+
+    @Test
+    public void addBytes_ConcurrentWriters_NoLostUpdates() throws InterruptedException {
+        final DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        buckets.reset(0);
+        final int threadsCount = 4;
+        final int iterations = 10000;
+        Thread[] threads = new Thread[threadsCount];
+        for (int t = 0; t < threadsCount; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < iterations; i++) {
+                    buckets.advance(500);
+                    buckets.addBytesSent(1);
+                    buckets.addBytesReceived(2);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] sent = new long[MAX_BUCKETS];
+        long[] received = new long[MAX_BUCKETS];
+        assertEquals(0, buckets.snapshot(sent, received));
+        assertEquals(threadsCount * iterations, sent[MAX_BUCKETS - 1]);
+        assertEquals(2L * threadsCount * iterations, received[MAX_BUCKETS - 1]);
+    }
+
+    @Test
+    public void addBytes_ConcurrentRollovers_NoLostUpdates() throws InterruptedException {
+        // Wide enough that no bucket leaves the window, so every byte added must remain
+        final int capacity = 100000;
+        final long tick = 100;
+        final DataTransferBuckets buckets = new DataTransferBuckets(capacity, 1);
+        buckets.reset(0);
+        final AtomicLong clock = new AtomicLong();
+        final AtomicLong added = new AtomicLong();
+        final AtomicBoolean done = new AtomicBoolean();
+        final int threadsCount = 4;
+        Thread[] threads = new Thread[threadsCount];
+        for (int t = 0; t < threadsCount; t++) {
+            threads[t] = new Thread(() -> {
+                long count = 0;
+                while (!done.get()) {
+                    buckets.advance(clock.get());
+                    buckets.addBytesSent(1);
+                    buckets.addBytesReceived(2);
+                    count++;
+                }
+                added.addAndGet(count);
+            });
+            threads[t].start();
+        }
+        // Every rollover recycles about a tick of buckets
+        Thread ticker = new Thread(() -> {
+            while (clock.get() + tick < capacity / 2) {
+                clock.addAndGet(tick);
+                long until = System.nanoTime() + 20000;
+                while (System.nanoTime() < until) {
+                    Thread.yield();
+                }
+            }
+            done.set(true);
+        });
+        ticker.start();
+
+        // No bucket is ever emptied, so lost bytes show as a total going down
+        long[] sent = new long[capacity];
+        long previous = 0;
+        while (ticker.isAlive()) {
+            buckets.snapshot(sent, null);
+            long total = sum(sent);
+            assertTrue(total >= previous);
+            previous = total;
+        }
+        ticker.join();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        long[] received = new long[capacity];
+        buckets.snapshot(sent, received);
+        assertEquals(added.get(), sum(sent));
+        assertEquals(2 * added.get(), sum(received));
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    @Test
+    public void applyDelta_ReproducesCurrentSnapshot() {
+        Random random = new Random(3);
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        long now = 0;
+        buckets.reset(now);
+        DataTransferBuckets.Snapshot base = buckets.snapshot();
+        DataTransferBuckets.Snapshot mirror = buckets.snapshot();
+
+        for (int i = 0; i < 2000; i++) {
+            // Occasionally idle for longer than the whole window or restart the session
+            now += i % 500 == 0 ? MAX_BUCKETS * FAST_PERIOD * 2 : random.nextInt(1500);
+            if (i % 700 == 0) {
+                buckets.reset(now);
+            }
+            buckets.advance(now);
+            buckets.addBytesSent(random.nextInt(1000));
+            buckets.addBytesReceived(random.nextInt(1000));
+
+            DataTransferBuckets.Snapshot current = buckets.snapshot();
+            int shift = buckets.shiftsBetween(base, current);
+            int[] indices = DataTransferBuckets.changedIndices(base, current, shift);
+            long[] sent = new long[indices.length];
+            long[] received = new long[indices.length];
+            for (int j = 0; j < indices.length; j++) {
+                sent[j] = current.sent[indices[j]];
+                received[j] = current.received[indices[j]];
+            }
+            mirror.applyDelta(current.lastStartTime, shift, indices, sent, received);
+
+            assertEquals(current.lastStartTime, mirror.lastStartTime);
+            assertArrayEquals(current.sent, mirror.sent);
+            assertArrayEquals(current.received, mirror.received);
+            base = current;
+        }
+    }
+
+    @Test
+    public void changedIndices_SteadyTraffic_IsSmall() {
+        DataTransferBuckets buckets = new DataTransferBuckets(MAX_BUCKETS, FAST_PERIOD);
+        buckets.reset(0);
+        for (int i = 0; i < MAX_BUCKETS * 2; i++) {
+            buckets.advance(i * FAST_PERIOD);
+            buckets.addBytesReceived(100 + i);
+        }
+        DataTransferBuckets.Snapshot base = buckets.snapshot();
+        buckets.advance(MAX_BUCKETS * 2 * FAST_PERIOD);
+        buckets.addBytesReceived(1);
+        DataTransferBuckets.Snapshot current = buckets.snapshot();
+
+        int shift = buckets.shiftsBetween(base, current);
+        assertTrue(shift > 0 && shift < MAX_BUCKETS);
+        assertTrue(DataTransferBuckets.changedIndices(base, current, shift).length <= shift);
+    }
+}
@@ -23,6 +23,31 @@ public class TrayPreferencesTest extends TrayProviderTestCase {
         assertEquals(0, others.getAll().size());
     }
 
+    public void testEdit() throws Exception {
+        final TrayPreferences prefs = new TrayPreferences(getProviderMockContext(), "test", 1) {
+        };
+        prefs.put("removed", "value");
+        prefs.put("overwritten", "old");
+
+        prefs.edit()
+                .put("string", "value")
+                .put("int", 1)
+                .put("boolean", true)
+                .put("overwritten", "new")
+                .remove("removed")
+                .put("readded", 1L)
+                .remove("readded")
+                .commit();
+
+        assertEquals("value", prefs.getString("string", null));
+        assertEquals(1, prefs.getInt("int", 0));
+        assertTrue(prefs.getBoolean("boolean", false));
+        assertEquals("new", prefs.getString("overwritten", null));
+        assertNull(prefs.getPref("removed"));
+        assertNull(prefs.getPref("readded"));
+        assertEquals(4, prefs.getAll().size());
+    }
+
     public void testGetContext() throws Exception {
         final TrayPreferences prefs = new TrayPreferences(
                 getProviderMockContext(), "test", 1) {
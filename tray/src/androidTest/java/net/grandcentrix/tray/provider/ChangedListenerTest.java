@@ -10,7 +10,9 @@ import android.os.Looper;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -47,6 +49,108 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         assertEquals(2, changed.size());
     }
 
+    public void testBurstOfChangesDeliveredOnce() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ArrayList<Collection<TrayItem>> batches = new ArrayList<>();
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                synchronized (batches) {
+                    batches.add(items);
+                }
+                latch.countDown();
+            }
+        };
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testBurst", TrayStorage.Type.USER);
+        storage.registerOnTrayPreferenceChangeListener(listener);
+
+        final TrayUri trayUri = new TrayUri(getProviderMockContext());
+        for (int i = 0; i < 10; i++) {
+            storage.put("key" + i, i);
+        }
+        // the notifications of the puts, the mock resolver doesn't deliver them
+        for (int i = 0; i < 10; i++) {
+            storage.mObserver.onChange(false, trayUri.builder().setType(TrayStorage.Type.USER)
+                    .setModule("testBurst").setKey("key" + i).build());
+        }
+
+        assertTrue(latch.await(3000, TimeUnit.MILLISECONDS));
+        Thread.sleep(ContentProviderStorage.CHANGE_DELIVERY_DELAY_MS * 5);
+        synchronized (batches) {
+            assertEquals(1, batches.size());
+            assertEquals(10, batches.get(0).size());
+        }
+        storage.unregisterOnTrayPreferenceChangeListener(listener);
+    }
+
+    public void testOnlyChangesSinceLastDeliveryReported() throws Exception {
+        final Semaphore delivered = new Semaphore(0);
+        final ArrayList<List<TrayItem>> batches = new ArrayList<>();
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+                synchronized (batches) {
+                    batches.add(new ArrayList<>(items));
+                }
+                delivered.release();
+            }
+        };
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), "testSince", TrayStorage.Type.USER);
+        storage.put("before", "x");
+        storage.registerOnTrayPreferenceChangeListener(listener);
+
+        storage.put("a", "1");
+        storage.put("b", "2");
+        storage.put("a", "3");
+        // the mock resolver doesn't deliver notifications
+        storage.mObserver.onChange(false, null);
+        assertTrue(delivered.tryAcquire(3000, TimeUnit.MILLISECONDS));
+
+        storage.remove("b");
+        storage.put("c", "4");
+        storage.mObserver.onChange(false, null);
+        assertTrue(delivered.tryAcquire(3000, TimeUnit.MILLISECONDS));
+
+        synchronized (batches) {
+            assertEquals(2, batches.size());
+            // ordered by the last change of every item
+            final List<TrayItem> first = batches.get(0);
+            assertEquals(2, first.size());
+            assertEquals("b", first.get(0).key());
+            assertEquals("a", first.get(1).key());
+            assertEquals("3", first.get(1).value());
+
+            // the deleted item is not reported
+            final List<TrayItem> second = batches.get(1);
+            assertEquals(1, second.size());
+            assertEquals("c", second.get(0).key());
+        }
+        storage.unregisterOnTrayPreferenceChangeListener(listener);
+    }
+
+    public void testSharedObserverThread() throws Exception {
+        final OnTrayPreferenceChangeListener listener = new OnTrayPreferenceChangeListener() {
+            @Override
+            public void onTrayPreferenceChanged(final Collection<TrayItem> items) {
+            }
+        };
+        final ContentProviderStorage storage1 = new ContentProviderStorage(
+                getProviderMockContext(), "testShared1", TrayStorage.Type.USER);
+        final ContentProviderStorage storage2 = new ContentProviderStorage(
+                getProviderMockContext(), "testShared2", TrayStorage.Type.DEVICE);
+        storage1.registerOnTrayPreferenceChangeListener(listener);
+        final HandlerThread thread = ContentProviderStorage.sObserverThread;
+        storage2.registerOnTrayPreferenceChangeListener(listener);
+        assertSame(thread, ContentProviderStorage.sObserverThread);
+
+        storage1.unregisterOnTrayPreferenceChangeListener(listener);
+        storage2.unregisterOnTrayPreferenceChangeListener(listener);
+        assertNull(storage1.mObserver);
+        assertNull(storage2.mObserver);
+    }
+
     public void testListenerRegisteredFromLooperThread() throws Exception {
         checkChangeListener(true, null);
     }
@@ -79,7 +183,8 @@ public class ChangedListenerTest extends TrayProviderTestCase {
         userStorage.unregisterOnTrayPreferenceChangeListener(listener);
         assertEquals(0, userStorage.mListeners.size());
         assertNull(userStorage.mObserver);
-        assertNull(userStorage.mObserverThread);
+        // the observer thread is shared and keeps running
+        assertTrue(ContentProviderStorage.sObserverThread.isAlive());
 
     }
 
@@ -134,7 +239,7 @@ public class ChangedListenerTest extends TrayProviderTestCase {
 
         registerLatch.await(1000, TimeUnit.MILLISECONDS);
         assertNotNull(userStorage.mObserver);
-        assertNotNull(userStorage.mObserverThread);
+        assertNotNull(ContentProviderStorage.sObserverThread);
         assertFalse(listenerCalled[0]);
 
         final TrayUri trayUri = new TrayUri(getProviderMockContext());
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+/**
+ * {@link TrayContentProvider} running in its own process (see the test manifest) so reads of
+ * the tests have to go through binder like reads of the app's other processes.
+ */
+public class RemoteTrayContentProvider extends TrayContentProvider {
+
+    public static final String AUTHORITY = "net.grandcentrix.tray.remote.test";
+
+    @Override
+    public boolean onCreate() {
+        super.onCreate();
+        setAuthority(AUTHORITY);
+        return true;
+    }
+}
@@ -18,6 +18,7 @@ package net.grandcentrix.tray.provider;
 
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.test.AndroidTestCase;
@@ -120,6 +121,50 @@ public class SqliteHelperTest extends AndroidTestCase {
         assertEquals(0, result);
     }
 
+    public void testUpsert() throws Exception {
+        final SQLiteDatabase db = new MockDatabaseHelper().getWritableDatabase();
+        db.execSQL("DROP TABLE IF EXISTS upsert");
+        db.execSQL("CREATE TABLE upsert (_id INTEGER PRIMARY KEY, name TEXT, value TEXT, "
+                + "created INT, UNIQUE (name));");
+        final String[] conflict = {"name"};
+        final String[] exclude = {"created"};
+
+        final ContentValues values = new ContentValues();
+        values.put("name", "a");
+        values.put("value", "1");
+        values.put("created", 1);
+        assertEquals(1, SqliteHelper.upsert(db, "upsert", values, conflict, exclude));
+
+        values.put("value", "2");
+        values.put("created", 2);
+        assertTrue(SqliteHelper.upsert(db, "upsert", values, conflict, exclude) >= 0);
+
+        final Cursor cursor = db.query("upsert", new String[]{"value", "created"}, null, null,
+                null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("2", cursor.getString(0));
+        assertEquals(1, cursor.getInt(1));
+        cursor.close();
+    }
+
+    public void testUpsertWithNullDb() throws Exception {
+        assertEquals(-1, SqliteHelper.upsert(null, "test", new ContentValues(),
+                new String[]{"name"}, null));
+    }
+
+    public void testIsVersionAtLeast() throws Exception {
+        final int[] min = {3, 24, 0};
+        assertTrue(SqliteHelper.isVersionAtLeast("3.24.0", min));
+        assertTrue(SqliteHelper.isVersionAtLeast("3.28.0", min));
+        assertTrue(SqliteHelper.isVersionAtLeast("3.32", min));
+        assertTrue(SqliteHelper.isVersionAtLeast("4.0.0", min));
+        assertFalse(SqliteHelper.isVersionAtLeast("3.22.0", min));
+        assertFalse(SqliteHelper.isVersionAtLeast("3.8.10.2", min));
+        assertFalse(SqliteHelper.isVersionAtLeast("invalid", min));
+        assertFalse(SqliteHelper.isVersionAtLeast(null, min));
+    }
+
     public void testUselessConstructorCall() throws Exception {
         // make sure the test coverage is at 100%
         new SqliteHelper();
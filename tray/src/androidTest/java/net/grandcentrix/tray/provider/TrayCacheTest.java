@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.content.ContentValues;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Checks the coherence of the {@link TrayCache} across writers and compares cold with warm reads
+ * across processes.
+ */
+public class TrayCacheTest extends TrayProviderTestCase {
+
+    private static final String TAG = "TrayCacheTest";
+
+    private static final String MODULE = "cached";
+
+    public void testReadsServedFromCache() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        storage.put("key", "a");
+        assertEquals("a", storage.get("key").value());
+        assertTrue(getCache(storage).contains("key"));
+        assertEquals("a", storage.get("key").value());
+    }
+
+    public void testWriteOfOtherProcessVisibleOnNextRead() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        storage.put("key", "a");
+        assertEquals("a", storage.get("key").value());
+
+        // written without going through the cache of this process, no notification needed
+        writeToProvider("key", "b");
+        assertEquals("b", storage.get("key").value());
+        assertEquals(1, storage.getAll().size());
+    }
+
+    public void testGenerationChangesWithWritesOfModule() throws Exception {
+        final TrayProviderHelper helper = new TrayProviderHelper(getProviderMockContext());
+        final long generation = helper.getGeneration(MODULE);
+        assertTrue(generation != TrayCache.GENERATION_UNKNOWN);
+
+        helper.persist("other", "key", "a");
+        assertEquals(generation, helper.getGeneration(MODULE));
+
+        writeToProvider("key", "a");
+        final long written = helper.getGeneration(MODULE);
+        assertTrue(written != generation);
+
+        helper.clear();
+        assertTrue(helper.getGeneration(MODULE) != written);
+    }
+
+    public void testOwnWriteInvalidatesOnlyKey() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        storage.put("key", "a");
+        storage.put("other", "x");
+        assertEquals(2, storage.getAll().size());
+
+        storage.put("key", "b");
+        assertTrue(getCache(storage).isLoaded());
+        assertTrue(getCache(storage).contains("other"));
+        assertFalse(getCache(storage).contains("key"));
+        assertEquals("b", storage.get("key").value());
+    }
+
+    public void testOwnWriteAfterChangeOfOtherProcessInvalidatesModule() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        storage.put("key", "a");
+        assertEquals(1, storage.getAll().size());
+
+        writeToProvider("other", "b");
+        storage.put("key", "c");
+        assertFalse(getCache(storage).isLoaded());
+        assertEquals("b", storage.get("other").value());
+        assertEquals("c", storage.get("key").value());
+    }
+
+    public void testWritesOfOtherStoragesInvalidate() throws Exception {
+        final ContentProviderStorage reader = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        final ContentProviderStorage writer = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        assertNull(reader.get("key"));
+
+        writer.put("key", "a");
+        assertEquals("a", reader.get("key").value());
+
+        writer.remove("key");
+        assertNull(reader.get("key"));
+
+        writer.put("key", "b");
+        new TrayProviderHelper(getProviderMockContext()).clear();
+        assertNull(reader.get("key"));
+    }
+
+    public void testStaleQueryResultIsDropped() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        storage.put("key", "a");
+        final TrayCache cache = getCache(storage);
+        final long generation = cache.getGeneration();
+
+        // a change while the query was running
+        cache.invalidate(null);
+        cache.put(generation, new TrayProviderHelper(getProviderMockContext()).getAll());
+        assertFalse(cache.isLoaded());
+    }
+
+    public void testVersionCachedUntilModuleChanges() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        assertEquals(0, storage.getVersion());
+        storage.setVersion(3);
+        assertEquals(3, getCache(storage).getVersion());
+        assertEquals(3, new ContentProviderStorage(getProviderMockContext(), MODULE,
+                TrayStorage.Type.USER).getVersion());
+
+        // written without going through the cache of this process
+        final Uri versionUri = new TrayUri(getProviderMockContext()).builder()
+                .setInternal(true)
+                .setType(TrayStorage.Type.USER)
+                .setModule(MODULE)
+                .setKey(ContentProviderStorage.VERSION)
+                .build();
+        final ContentValues values = new ContentValues();
+        values.put(TrayContract.Preferences.Columns.VALUE, "5");
+        getMockContentResolver().insert(versionUri, values);
+        assertEquals(5, storage.getVersion());
+
+        storage.wipe();
+        assertEquals(0, storage.getVersion());
+    }
+
+    public void testUndefinedTypeIsNotCached() throws Exception {
+        assertNull(TrayCache.get(getProviderMockContext(), MODULE, TrayStorage.Type.UNDEFINED));
+    }
+
+    public void testValidUntilCounterChanges() throws Exception {
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getProviderMockContext(), MODULE, TrayStorage.Type.USER);
+        storage.put("key", "a");
+        assertEquals("a", storage.get("key").value());
+
+        final TrayCache cache = getCache(storage);
+        cache.validate(1, 2);
+        assertTrue(cache.isValidAt(2));
+        assertFalse(cache.isValidAt(3));
+        assertFalse(cache.isValidAt(TrayChangeCounter.UNKNOWN));
+
+        // a write of this process validates again
+        storage.put("key", "b");
+        assertFalse(cache.isValidAt(2));
+    }
+
+    /**
+     * reads from a provider in another process, cold reads query the provider through binder,
+     * warm reads only check the shared {@link TrayChangeCounter}
+     */
+    public void testColdVsWarmReads() throws Exception {
+        TrayContract.setAuthority(RemoteTrayContentProvider.AUTHORITY);
+        final ContentProviderStorage storage = new ContentProviderStorage(
+                getContext(), MODULE, TrayStorage.Type.USER);
+        try {
+            final int keys = 50;
+            for (int i = 0; i < keys; i++) {
+                storage.put("key" + i, i);
+            }
+            final int rounds = 20;
+            final TrayCache cache = TrayCache.get(getContext(), MODULE, TrayStorage.Type.USER);
+
+            final long coldStart = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < keys; i++) {
+                    cache.invalidate("key" + i);
+                    assertEquals(String.valueOf(i), storage.get("key" + i).value());
+                }
+            }
+            final long cold = System.nanoTime() - coldStart;
+
+            final long warmStart = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < keys; i++) {
+                    assertEquals(String.valueOf(i), storage.get("key" + i).value());
+                }
+            }
+            final long warm = System.nanoTime() - warmStart;
+
+            Log.i(TAG, "cold reads: " + cold / (rounds * keys) + "ns/read, warm reads: "
+                    + warm / (rounds * keys) + "ns/read");
+        } finally {
+            storage.wipe();
+        }
+    }
+
+    private TrayCache getCache(final ContentProviderStorage storage) {
+        return TrayCache.get(getProviderMockContext(), storage.getModuleName(), storage.getType());
+    }
+
+    private Uri keyUri(final String key) {
+        return new TrayUri(getProviderMockContext()).builder()
+                .setType(TrayStorage.Type.USER)
+                .setModule(MODULE)
+                .setKey(key)
+                .build();
+    }
+
+    private void writeToProvider(final String key, final String value) {
+        final ContentValues values = new ContentValues();
+        values.put(TrayContract.Preferences.Columns.VALUE, value);
+        getMockContentResolver().insert(keyUri(key), values);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+public class TrayChangeTest extends AndroidTestCase {
+
+    public void testPutRoundTrip() throws Exception {
+        final Uri itemUri = new TrayUri(getContext()).builder()
+                .setType(TrayStorage.Type.DEVICE).setModule("module").setKey("key").build();
+
+        final Uri uri = TrayChange.putUri(itemUri, 42);
+        assertEquals(itemUri.getPath(), uri.getPath());
+
+        final TrayChange change = TrayChange.parse(uri);
+        assertNotNull(change);
+        assertFalse(change.isDelete());
+        assertFalse(change.isInternal());
+        assertEquals("module", change.getModule());
+        assertEquals("key", change.getKey());
+        assertEquals(42, change.getSequence());
+        assertEquals(itemUri, change.getItemUri());
+        assertTrue(change.affects(TrayStorage.Type.DEVICE));
+        assertFalse(change.affects(TrayStorage.Type.USER));
+    }
+
+    public void testPutDoesNotExposeData() throws Exception {
+        final Uri itemUri = new TrayUri(getContext()).builder()
+                .setModule("module").setKey("key").build();
+        final Uri uri = TrayChange.putUri(itemUri, 1);
+        assertEquals(2, uri.getQueryParameterNames().size());
+        assertNotNull(uri.getQueryParameter(TrayChange.PARAM_OPERATION));
+        assertNotNull(uri.getQueryParameter(TrayChange.PARAM_SEQUENCE));
+    }
+
+    public void testPutInternal() throws Exception {
+        final Uri itemUri = new TrayUri(getContext()).builder()
+                .setInternal(true).setModule("module").setKey("key").build();
+        final TrayChange change = TrayChange.parse(TrayChange.putUri(itemUri, 1));
+        assertNotNull(change);
+        assertTrue(change.isInternal());
+        // writes without backup parameter go into the user database
+        assertTrue(change.affects(TrayStorage.Type.USER));
+        assertFalse(change.affects(TrayStorage.Type.DEVICE));
+    }
+
+    public void testDelete() throws Exception {
+        final Uri itemUri = new TrayUri(getContext()).builder()
+                .setModule("module").setKey("key").build();
+        final TrayChange change = TrayChange.parse(TrayChange.deleteUri(itemUri, 7));
+        assertNotNull(change);
+        assertTrue(change.isDelete());
+        assertEquals(7, change.getSequence());
+        assertEquals(itemUri, change.getItemUri());
+        // deleted from both databases
+        assertTrue(change.affects(TrayStorage.Type.USER));
+        assertTrue(change.affects(TrayStorage.Type.DEVICE));
+    }
+
+    public void testPreviousGenerationNotPartOfItemUri() throws Exception {
+        final Uri itemUri = new TrayUri(getContext()).builder()
+                .setType(TrayStorage.Type.USER).setModule("module").setKey("key").build();
+        final TrayChange change = TrayChange.parse(
+                TrayChange.withPreviousGeneration(TrayChange.putUri(itemUri, 5), 4));
+        assertNotNull(change);
+        assertEquals(4, change.getPreviousGeneration());
+        assertEquals(itemUri, change.getItemUri());
+    }
+
+    public void testUrisWithoutChange() throws Exception {
+        final TrayUri trayUri = new TrayUri(getContext());
+        assertNull(TrayChange.parse(null));
+        assertNull(TrayChange.parse(trayUri.get()));
+        assertNull(TrayChange.parse(trayUri.builder().setModule("module").build()));
+        assertNull(TrayChange.parse(trayUri.builder().setModule("module").setKey("key").build()));
+        assertNull(TrayChange.parse(trayUri.builder().setModule("module").setKey("key").build()
+                .buildUpon()
+                .appendQueryParameter(TrayChange.PARAM_OPERATION, TrayChange.OPERATION_PUT)
+                .appendQueryParameter(TrayChange.PARAM_SEQUENCE, "1")
+                .build()));
+    }
+}
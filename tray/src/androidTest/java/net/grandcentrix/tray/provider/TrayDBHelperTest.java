@@ -38,6 +38,31 @@ public class TrayDBHelperTest extends AndroidTestCase {
         assertV2Integrity(trayDBHelper);
     }
 
+    public void testCreateVersion3() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        assertV3Integrity(trayDBHelper);
+    }
+
+    public void testSingleItemLookupUsesUniqueIndex() throws Exception {
+        final TrayDBHelper trayDBHelper = initDb(2, false);
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        for (final String table : new String[]{TrayDBHelper.TABLE_NAME,
+                TrayDBHelper.INTERNAL_TABLE_NAME}) {
+            final Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + table
+                    + " WHERE " + TrayDBHelper.MODULE + " = ? AND " + TrayDBHelper.KEY + " = ?",
+                    new String[]{"module", "key"});
+            final StringBuilder plan = new StringBuilder();
+            final int detail = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detail)).append('\n');
+            }
+            cursor.close();
+            assertTrue(plan.toString(), plan.toString().contains("USING INDEX")
+                    || plan.toString().contains("USING COVERING INDEX"));
+        }
+        db.close();
+    }
+
     public void testInstantiation() throws Exception {
         new TrayDBHelper(getContext());
     }
@@ -48,6 +73,12 @@ public class TrayDBHelperTest extends AndroidTestCase {
         assertV2Integrity(trayDBHelper);
     }
 
+    public void testUpgradeFrom2to3() throws Exception {
+        initDb(2);
+        final TrayDBHelper trayDBHelper = initDb(3, false);
+        assertV3Integrity(trayDBHelper);
+    }
+
     public void testUpgradeNotImplemented() throws Exception {
         final TrayDBHelper trayDBHelper = initDb(1, false);
         try {
@@ -131,6 +162,24 @@ public class TrayDBHelperTest extends AndroidTestCase {
         db.close();
     }
 
+    private void assertV3Integrity(final TrayDBHelper trayDBHelper) {
+        final SQLiteDatabase db = trayDBHelper.getReadableDatabase();
+        {// check added changes table
+            final Cursor cursor = db
+                    .query(TrayDBHelper.CHANGES_TABLE_NAME, null, null, null, null, null, null);
+            assertNotNull(cursor);
+            final List<String> columnNames = Arrays.asList(cursor.getColumnNames());
+            cursor.close();
+            assertEquals(4, columnNames.size());
+            assertTrue(columnNames.contains(BaseColumns._ID));
+            assertTrue(columnNames.contains(TrayDBHelper.MODULE));
+            assertTrue(columnNames.contains(TrayDBHelper.KEY));
+            assertTrue(columnNames.contains(TrayDBHelper.SEQUENCE));
+        }
+        db.close();
+        assertV2Integrity(trayDBHelper);
+    }
+
     private void initDb(final int version) {
         initDb(version, true);
     }
@@ -24,6 +24,8 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 
+import java.util.Arrays;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
@@ -136,6 +138,47 @@ public class TrayProviderTest extends TrayProviderTestCase {
         }
     }
 
+    public void testBulkInsert() throws Exception {
+        final Uri moduleUri = mTrayUri.builder()
+                .setType(TrayStorage.Type.DEVICE)
+                .setModule("module")
+                .build();
+        final ContentValues[] values = new ContentValues[10];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues();
+            values[i].put(TrayContract.Preferences.Columns.KEY, "key" + i % 5);
+            values[i].put(TrayContract.Preferences.Columns.VALUE, "value" + i);
+        }
+        assertEquals(10, getProviderMockContext().getContentResolver()
+                .bulkInsert(moduleUri, values));
+        assertDeviceDatabaseSize(5);
+        assertUserDatabaseSize(0);
+
+        final Cursor cursor = getProviderMockContext().getContentResolver().query(
+                mTrayUri.builder().setModule("module").setKey("key4").build(),
+                null, null, null, null);
+        assertNotNull(cursor);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("value9", TrayProviderHelper.cursorToTrayItem(cursor).value());
+        cursor.close();
+    }
+
+    public void testCommonUri() throws Exception {
+        final Uri a = mTrayUri.builder().setType(TrayStorage.Type.USER).setModule("module")
+                .setKey("a").build();
+        final Uri b = mTrayUri.builder().setType(TrayStorage.Type.USER).setModule("module")
+                .setKey("b").build();
+        final Uri other = mTrayUri.builder().setType(TrayStorage.Type.DEVICE).setModule("other")
+                .setKey("a").build();
+
+        assertEquals(a, TrayContentProvider.commonUri(Arrays.asList(a)));
+        assertEquals(mTrayUri.builder().setType(TrayStorage.Type.USER).setModule("module")
+                .build(), TrayContentProvider.commonUri(Arrays.asList(a, b, a)));
+        assertEquals(mTrayUri.get(), TrayContentProvider.commonUri(Arrays.asList(a, other)));
+        assertEquals(Uri.parse("content://" + MockProvider.AUTHORITY),
+                TrayContentProvider.commonUri(Arrays.asList(a, mTrayUri.getInternal())));
+    }
+
     public void testInsertFailed() throws Exception {
 
         assertInsertUriEqualsNullForUpdateOrInsertError(-1);
@@ -156,6 +199,29 @@ public class TrayProviderTest extends TrayProviderTestCase {
 
     }
 
+    public void testQueryRouting() throws Exception {
+        final TrayProviderHelper helper = new TrayProviderHelper(getProviderMockContext());
+        final TrayUri.Builder builder = mTrayUri.builder().setModule("module").setKey("key");
+        helper.persist(builder.setType(TrayStorage.Type.USER).build(), "user");
+        helper.persist(builder.setType(TrayStorage.Type.DEVICE).build(), "device");
+        helper.persist(mTrayUri.builder().setType(TrayStorage.Type.DEVICE)
+                .setModule("module").setKey("other").build(), "device");
+
+        // a typed lookup only sees its database
+        assertEquals("device", querySingle(builder.setType(TrayStorage.Type.DEVICE).build()));
+        assertEquals("user", querySingle(builder.setType(TrayStorage.Type.USER).build()));
+
+        // an untyped lookup stops at the user database when the key is found there
+        final Uri untyped = mTrayUri.builder().setModule("module").setKey("key").build();
+        assertDatabaseSize(untyped, 1, true);
+        assertEquals("user", querySingle(untyped));
+        assertEquals("device",
+                querySingle(mTrayUri.builder().setModule("module").setKey("other").build()));
+
+        // modules still contain the items of both databases
+        assertDatabaseSize(mTrayUri.builder().setModule("module").build(), 3, true);
+    }
+
     public void testQueryUnregisteredProvider() throws Exception {
 
         final TrayContentProvider provider = spy(new TrayContentProvider());
@@ -247,9 +313,21 @@ public class TrayProviderTest extends TrayProviderTestCase {
         doReturn(null).when(spy).getWritableDatabase(mockInsertUri);
 
         doReturn(errorCode).when(spy)
-                .insertOrUpdate(any(SQLiteDatabase.class), anyString(), anyString(),
-                        any(String[].class), any(ContentValues.class), any(String[].class));
+                .insertOrUpdate(any(SQLiteDatabase.class), anyString(), any(ContentValues.class),
+                        any(String[].class));
         final Uri insert = spy.insert(mockInsertUri, new ContentValues());
         assertNull(insert);
     }
-}
\ No newline at end of file
+
+    private String querySingle(final Uri uri) {
+        final Cursor cursor = getProviderMockContext().getContentResolver()
+                .query(uri, null, null, null, null);
+        assertNotNull(cursor);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return TrayProviderHelper.cursorToTrayItem(cursor).value();
+        } finally {
+            cursor.close();
+        }
+    }
+}
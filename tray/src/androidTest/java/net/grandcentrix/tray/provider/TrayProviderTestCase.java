@@ -178,6 +178,7 @@ public abstract class TrayProviderTestCase extends ProviderTestCase2<TrayContent
     @Override
     protected void tearDown() throws Exception {
         super.tearDown();
+        TrayCache.clearAll();
         cleanupProvider();
     }
 
@@ -37,7 +37,33 @@ public class AppPreferences extends TrayPreferences {
 
     private static final int VERSION = 1;
 
+    private static volatile AppPreferences sInstance;
+
     public AppPreferences(final Context context) {
         super(context, context.getPackageName(), VERSION);
     }
+
+    /**
+     * Returns a process wide shared instance. Prefer this over creating a new instance for every
+     * single read or write, the instance holds no state besides the registered listeners.
+     * <p>
+     * The version of the module is checked once per process either way, see {@link
+     * net.grandcentrix.tray.provider.ContentProviderStorage#getVersion()}.
+     *
+     * @param context any context, the application context gets used
+     * @return the shared instance
+     */
+    public static AppPreferences getInstance(final Context context) {
+        AppPreferences instance = sInstance;
+        if (instance == null) {
+            synchronized (AppPreferences.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new AppPreferences(context.getApplicationContext());
+                    sInstance = instance;
+                }
+            }
+        }
+        return instance;
+    }
 }
@@ -18,11 +18,16 @@ package net.grandcentrix.tray;
 
 import net.grandcentrix.tray.core.AbstractTrayPreference;
 import net.grandcentrix.tray.core.Preferences;
+import net.grandcentrix.tray.core.TrayLog;
 import net.grandcentrix.tray.core.TrayStorage;
 import net.grandcentrix.tray.provider.ContentProviderStorage;
 
 import android.content.Context;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 
 /**
  * Created by pascalwelsch on 11/20/14.
@@ -38,6 +43,68 @@ import androidx.annotation.NonNull;
  */
 public class TrayPreferences extends AbstractTrayPreference<ContentProviderStorage> {
 
+    /**
+     * Collects multiple changes which get written in a single transaction with {@link
+     * #commit()}. Listeners get notified once for all changes.
+     * <p>
+     * Changes of the same key overwrite each other, the last one wins.
+     */
+    public static class Editor {
+
+        private final LinkedHashMap<String, Object> mData = new LinkedHashMap<>();
+
+        private final LinkedHashSet<String> mRemovedKeys = new LinkedHashSet<>();
+
+        private final ContentProviderStorage mStorage;
+
+        Editor(@NonNull final ContentProviderStorage storage) {
+            mStorage = storage;
+        }
+
+        /**
+         * writes all changes synchronously
+         */
+        public void commit() {
+            mStorage.apply(mData, mRemovedKeys);
+            TrayLog.v("committed " + mData.size() + " changes and " + mRemovedKeys.size()
+                    + " removals into " + mStorage.getModuleName());
+            mData.clear();
+            mRemovedKeys.clear();
+        }
+
+        public Editor put(@NonNull final String key, @Nullable final String value) {
+            return putValue(key, value);
+        }
+
+        public Editor put(@NonNull final String key, final int value) {
+            return putValue(key, value);
+        }
+
+        public Editor put(@NonNull final String key, final float value) {
+            return putValue(key, value);
+        }
+
+        public Editor put(@NonNull final String key, final long value) {
+            return putValue(key, value);
+        }
+
+        public Editor put(@NonNull final String key, final boolean value) {
+            return putValue(key, value);
+        }
+
+        public Editor remove(@NonNull final String key) {
+            mData.remove(key);
+            mRemovedKeys.add(key);
+            return this;
+        }
+
+        private Editor putValue(@NonNull final String key, @Nullable final Object value) {
+            mRemovedKeys.remove(key);
+            mData.put(key, value);
+            return this;
+        }
+    }
+
     public TrayPreferences(@NonNull final Context context, @NonNull final String module,
             final int version, final TrayStorage.Type type) {
         super(new ContentProviderStorage(context, module, type), version);
@@ -48,6 +115,13 @@ public class TrayPreferences extends AbstractTrayPreference<ContentProviderStora
         this(context, module, version, TrayStorage.Type.USER);
     }
 
+    /**
+     * @return an {@link Editor} to write multiple changes at once
+     */
+    public Editor edit() {
+        return new Editor(getStorage());
+    }
+
     public void annexModule(final String oldStorageName, final TrayStorage.Type type) {
         super.annex(new ContentProviderStorage(getContext(), oldStorageName, type));
     }
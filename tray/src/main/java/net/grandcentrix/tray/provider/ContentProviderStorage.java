@@ -24,6 +24,7 @@ import net.grandcentrix.tray.core.TrayRuntimeException;
 import net.grandcentrix.tray.core.TrayStorage;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.database.ContentObserver;
 import android.net.Uri;
@@ -35,6 +36,7 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
@@ -57,18 +59,43 @@ import java.util.WeakHashMap;
 public class ContentProviderStorage extends TrayStorage {
 
     /**
-     * Forwards changes of this storage to the registered listeners
+     * Forwards changes of this storage to the registered listeners. Changes arriving within
+     * {@link #CHANGE_DELIVERY_DELAY_MS} are delivered as a single batch. The notification only
+     * triggers the delivery, the changed items are read with a single query of all changes since
+     * the last delivered one.
      */
     @VisibleForTesting
     class TrayContentObserver extends ContentObserver {
 
+        private final Handler mHandler;
+
+        /**
+         * sequence number of the last delivered change, only used on the handler thread
+         */
+        private long mLastSequence;
+
+        /**
+         * a delivery is scheduled, guarded by this observer
+         */
+        private boolean mPending;
+
+        private final Runnable mDeliverChanges = new Runnable() {
+            @Override
+            public void run() {
+                deliverChanges();
+            }
+        };
+
         /**
          * Creates a content observer.
          *
-         * @param handler The handler to run {@link #onChange} on, or null if none.
+         * @param handler      The handler to run {@link #onChange} and the delivery on
+         * @param lastSequence sequence number of the last change not to be delivered
          */
-        public TrayContentObserver(@NonNull final Handler handler) {
+        public TrayContentObserver(@NonNull final Handler handler, final long lastSequence) {
             super(handler);
+            mHandler = handler;
+            mLastSequence = lastSequence;
         }
 
         @Override
@@ -77,19 +104,36 @@ public class ContentProviderStorage extends TrayStorage {
         }
 
         @Override
-        public void onChange(final boolean selfChange, Uri uri) {
-            if (uri == null) {
-                // for sdk version 15 and below we cannot detect which exact data was changed. This will
-                // return all data for this module
-                uri = mTrayUri.builder().setModule(getModuleName()).build();
+        public void onChange(final boolean selfChange, final Uri uri) {
+            synchronized (this) {
+                if (mPending) {
+                    return;
+                }
+                mPending = true;
             }
+            mHandler.postDelayed(mDeliverChanges, CHANGE_DELIVERY_DELAY_MS);
+        }
 
-            // query only the changed items
-            final List<TrayItem> trayItems = mProviderHelper.queryProvider(uri);
+        private void deliverChanges() {
+            synchronized (this) {
+                mPending = false;
+            }
 
             // clone to get around ConcurrentModificationException
-            final Set<Map.Entry<OnTrayPreferenceChangeListener, Handler>> entries
-                    = new HashSet<>(mListeners.entrySet());
+            final Set<Map.Entry<OnTrayPreferenceChangeListener, Handler>> entries;
+            synchronized (ContentProviderStorage.this) {
+                entries = new HashSet<>(mListeners.entrySet());
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+
+            final Uri moduleUri = mTrayUri.builder()
+                    .setType(getType())
+                    .setModule(getModuleName())
+                    .build();
+            final List<TrayItem> trayItems = new ArrayList<>();
+            mLastSequence = mProviderHelper.queryChanges(moduleUri, mLastSequence, trayItems);
 
             // notify all registered listeners
             for (final Map.Entry<OnTrayPreferenceChangeListener, Handler> entry : entries) {
@@ -113,28 +157,48 @@ public class ContentProviderStorage extends TrayStorage {
     public static final String VERSION = "version";
 
     /**
-     * weak references to the listeners. Only the keys are used.
+     * time to wait for further changes before the listeners get called
      */
     @VisibleForTesting
-    WeakHashMap<OnTrayPreferenceChangeListener, Handler> mListeners = new WeakHashMap<>();
+    static final long CHANGE_DELIVERY_DELAY_MS = 20;
 
     /**
-     * observes data changes for this storage
+     * the looper thread which runs the {@link TrayContentObserver}s of all storages. Started when
+     * the first listener gets registered and kept running afterwards
      */
     @VisibleForTesting
-    TrayContentObserver mObserver;
+    static HandlerThread sObserverThread;
+
+    private static Handler sObserverHandler;
 
     /**
-     * the looper thread which runs the {@link #mObserver}. Only started when listeners registered
+     * weak references to the listeners. Only the keys are used. Guarded by this storage
      */
     @VisibleForTesting
-    HandlerThread mObserverThread;
+    WeakHashMap<OnTrayPreferenceChangeListener, Handler> mListeners = new WeakHashMap<>();
+
+    /**
+     * observes data changes for this storage, registered while listeners are registered
+     */
+    @VisibleForTesting
+    TrayContentObserver mObserver;
 
     private final Context mContext;
 
     private final TrayProviderHelper mProviderHelper;
 
-    private volatile boolean mRegisteredContentObserver = false;
+    /**
+     * process wide read cache of this module, {@code null} for {@link Type#UNDEFINED}
+     */
+    @Nullable
+    private final TrayCache mCache;
+
+    /**
+     * tells whether the provider committed anything since {@link #mCache} was validated, {@code
+     * null} when there is no cache or the counter can't be used
+     */
+    @Nullable
+    private final TrayChangeCounter mChangeCounter;
 
     private final TrayUri mTrayUri;
 
@@ -144,16 +208,44 @@ public class ContentProviderStorage extends TrayStorage {
         mContext = context.getApplicationContext();
         mTrayUri = new TrayUri(mContext);
         mProviderHelper = new TrayProviderHelper(mContext);
+        mCache = TrayCache.get(mContext, module, type);
+        mChangeCounter = mCache == null ? null
+                : TrayChangeCounter.forReader(mContext, mTrayUri.get().getAuthority());
     }
 
     @Override
     public void annex(final TrayStorage oldStorage) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
         for (final TrayItem trayItem : oldStorage.getAll()) {
-            put(trayItem);
+            operations.add(newPutOperation(trayItem.key(), trayItem.migratedKey(),
+                    trayItem.value()));
         }
+        applyBatch(operations);
         oldStorage.wipe();
     }
 
+    /**
+     * writes and removes multiple items in a single transaction. Listeners get notified once for
+     * all changes.
+     *
+     * @param data        what to save by key, the values are saved like in {@link #put(String,
+     *                    Object)}
+     * @param removedKeys keys to remove
+     */
+    public void apply(@NonNull final Map<String, ?> data,
+            @NonNull final Collection<String> removedKeys) {
+        final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (final String key : removedKeys) {
+            operations.add(ContentProviderOperation.newDelete(getKeyUri(key)).build());
+        }
+        for (final Map.Entry<String, ?> entry : data.entrySet()) {
+            final Object value = entry.getValue();
+            operations.add(newPutOperation(entry.getKey(), null,
+                    value == null ? null : String.valueOf(value)));
+        }
+        applyBatch(operations);
+    }
+
     @Override
     public void clear() {
         final Uri uri = mTrayUri.builder()
@@ -161,38 +253,59 @@ public class ContentProviderStorage extends TrayStorage {
                 .setType(getType())
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        TrayCache.onChange(mContext, uri);
     }
 
     @Override
     @Nullable
     public TrayItem get(@NonNull final String key) {
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(key)
-                .build();
-        final List<TrayItem> prefs = mProviderHelper.queryProvider(uri);
-        final int size = prefs.size();
-        if (size > 1) {
-            TrayLog.w("found more than one item for key '" + key
-                    + "' in module " + getModuleName() + ". "
-                    + "This can be caused by using the same name for a device and user specific preference.");
-            for (int i = 0; i < prefs.size(); i++) {
-                final TrayItem pref = prefs.get(i);
-                TrayLog.d("item #" + i + " " + pref);
+        if (!validateCache()) {
+            return query(key);
+        }
+        final long generation;
+        final boolean loaded;
+        synchronized (mCache) {
+            if (mCache.contains(key)) {
+                return mCache.get(key);
             }
+            generation = mCache.getGeneration();
+            loaded = mCache.isLoaded();
         }
-        return size > 0 ? prefs.get(0) : null;
+        if (loaded) {
+            // only this key changed since the module was loaded
+            final TrayItem item = query(key);
+            mCache.put(generation, key, item);
+            return item;
+        }
+
+        // first access, load the whole module with a single query
+        final List<TrayItem> items = queryAll();
+        mCache.put(generation, items);
+        for (final TrayItem item : items) {
+            if (key.equals(item.key())) {
+                return item;
+            }
+        }
+        return null;
     }
 
     @NonNull
     @Override
     public Collection<TrayItem> getAll() {
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .build();
-        return mProviderHelper.queryProvider(uri);
+        if (!validateCache()) {
+            return queryAll();
+        }
+        final long generation;
+        synchronized (mCache) {
+            final List<TrayItem> cached = mCache.getAll();
+            if (cached != null) {
+                return cached;
+            }
+            generation = mCache.getGeneration();
+        }
+        final List<TrayItem> items = queryAll();
+        mCache.put(generation, items);
+        return items;
     }
 
     /**
@@ -205,6 +318,17 @@ public class ContentProviderStorage extends TrayStorage {
 
     @Override
     public int getVersion() {
+        final boolean cached = validateCache();
+        long generation = 0;
+        if (cached) {
+            synchronized (mCache) {
+                final int version = mCache.getVersion();
+                if (version != TrayCache.VERSION_UNKNOWN) {
+                    return version;
+                }
+                generation = mCache.getGeneration();
+            }
+        }
         final Uri internalUri = mTrayUri.builder()
                 .setInternal(true)
                 .setType(getType())
@@ -212,11 +336,12 @@ public class ContentProviderStorage extends TrayStorage {
                 .setKey(VERSION)
                 .build();
         final List<TrayItem> trayItems = mProviderHelper.queryProvider(internalUri);
-        if (trayItems.size() == 0) {
-            // fallback, not found
-            return 0;
+        // fallback, not found
+        final int version = trayItems.size() == 0 ? 0 : Integer.valueOf(trayItems.get(0).value());
+        if (cached) {
+            mCache.putVersion(generation, version);
         }
-        return Integer.valueOf(trayItems.get(0).value());
+        return version;
     }
 
     @Override
@@ -242,28 +367,17 @@ public class ContentProviderStorage extends TrayStorage {
     @Override
     public void put(@NonNull final String key, @Nullable final String migrationKey,
             @Nullable final Object data) {
-        if (getType() == Type.UNDEFINED) {
-            throw new TrayRuntimeException(
-                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
-        }
+        checkWritable();
 
         final String value = data == null ? null : String.valueOf(data);
-
-        final Uri uri = mTrayUri.builder()
-                .setType(getType())
-                .setModule(getModuleName())
-                .setKey(key)
-                .build();
-        mProviderHelper.persist(uri, value, migrationKey);
+        mProviderHelper.persist(getKeyUri(key), value, migrationKey);
     }
 
     /**
      * registers a listener for changed data which gets called asynchronously when a change from
-     * the {@link TrayContentProvider} was detected
-     * <p>
-     * sdk version 15 is only partially supported. the listener will provide all data for this
-     * module and not only the changed ones because {@link ContentObserver#onChange(boolean, Uri)}
-     * was introduced in sdk version 16
+     * the {@link TrayContentProvider} was detected. Changes in quick succession are delivered in
+     * a single call with the current data of all items changed since the last call. Deleted
+     * items are not reported.
      */
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
     public synchronized void registerOnTrayPreferenceChangeListener(
@@ -283,38 +397,79 @@ public class ContentProviderStorage extends TrayStorage {
         //noinspection ConstantConditions
         mListeners.put(listener, handler);
 
-        final Collection<OnTrayPreferenceChangeListener> listeners = mListeners.keySet();
-
-        if (listeners.size() == 1) {
-
-            // registering a TrayContentObserver requires a LooperThread
-            mObserverThread = new HandlerThread("observer") {
-                @Override
-                protected void onLooperPrepared() {
-                    super.onLooperPrepared();
-                    mObserver = new TrayContentObserver(new Handler(getLooper()));
-
-                    // register observer
-                    final Uri observingUri = mTrayUri.builder()
-                            .setType(getType())
-                            .setModule(getModuleName())
-                            .build();
-                    mContext.getContentResolver()
-                            .registerContentObserver(observingUri, true, mObserver);
-                    mRegisteredContentObserver = true;
-                }
-            };
-            mObserverThread.start();
-
-            // wait synchronously until the mObserverThread registered the mObserver
-            // cannot use Thread.join(); because the Looper of the HandlerThread runs forever until killed
-            while (true) {
-                if (mRegisteredContentObserver) {
-                    mRegisteredContentObserver = false;
-                    break;
-                }
+        if (mObserver == null) {
+            // changes committed before the registration are not delivered
+            mObserver = new TrayContentObserver(getObserverHandler(),
+                    mProviderHelper.getCommittedSequence(getModuleName()));
+            final Uri observingUri = mTrayUri.builder()
+                    .setType(getType())
+                    .setModule(getModuleName())
+                    .build();
+            mContext.getContentResolver().registerContentObserver(observingUri, true, mObserver);
+        }
+    }
+
+    private void applyBatch(@NonNull final ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        checkWritable();
+        mProviderHelper.applyBatch(operations);
+    }
+
+    private void checkWritable() {
+        if (getType() == Type.UNDEFINED) {
+            throw new TrayRuntimeException(
+                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
+        }
+    }
+
+    @NonNull
+    private Uri getKeyUri(@NonNull final String key) {
+        return mTrayUri.builder()
+                .setType(getType())
+                .setModule(getModuleName())
+                .setKey(key)
+                .build();
+    }
+
+    @NonNull
+    private ContentProviderOperation newPutOperation(@NonNull final String key,
+            @Nullable final String migrationKey, @Nullable final String value) {
+        return ContentProviderOperation.newInsert(getKeyUri(key))
+                .withValue(TrayContract.Preferences.Columns.VALUE, value)
+                .withValue(TrayContract.Preferences.Columns.MIGRATED_KEY, migrationKey)
+                .build();
+    }
+
+    @Nullable
+    private TrayItem query(@NonNull final String key) {
+        final Uri uri = mTrayUri.builder()
+                .setType(getType())
+                .setModule(getModuleName())
+                .setKey(key)
+                .build();
+        final List<TrayItem> prefs = mProviderHelper.queryProvider(uri);
+        final int size = prefs.size();
+        if (size > 1) {
+            TrayLog.w("found more than one item for key '" + key
+                    + "' in module " + getModuleName() + ". "
+                    + "This can be caused by using the same name for a device and user specific preference.");
+            for (int i = 0; i < prefs.size(); i++) {
+                final TrayItem pref = prefs.get(i);
+                TrayLog.d("item #" + i + " " + pref);
             }
         }
+        return size > 0 ? prefs.get(0) : null;
+    }
+
+    @NonNull
+    private List<TrayItem> queryAll() {
+        final Uri uri = mTrayUri.builder()
+                .setType(getType())
+                .setModule(getModuleName())
+                .build();
+        return mProviderHelper.queryProvider(uri);
     }
 
     @Override
@@ -330,14 +485,12 @@ public class ContentProviderStorage extends TrayStorage {
                 .setKey(key)
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        TrayCache.onChange(mContext, uri);
     }
 
     @Override
     public void setVersion(final int version) {
-        if (getType() == Type.UNDEFINED) {
-            throw new TrayRuntimeException(
-                    "writing data into a storage with type UNDEFINED is forbidden. Only Read and delete is allowed.");
-        }
+        checkWritable();
         final Uri uri = mTrayUri.builder()
                 .setInternal(true)
                 .setType(getType())
@@ -345,9 +498,12 @@ public class ContentProviderStorage extends TrayStorage {
                 .setKey(VERSION)
                 .build();
         mProviderHelper.persist(uri, String.valueOf(version));
+        if (mCache != null) {
+            mCache.putVersion(mCache.getGeneration(), version);
+        }
     }
 
-    public void unregisterOnTrayPreferenceChangeListener(
+    public synchronized void unregisterOnTrayPreferenceChangeListener(
             @NonNull final OnTrayPreferenceChangeListener listener) {
         // noinspection ConstantConditions
         if (listener == null) {
@@ -355,15 +511,42 @@ public class ContentProviderStorage extends TrayStorage {
         }
         mListeners.remove(listener);
 
-        if (mListeners.size() == 0) {
+        if (mListeners.size() == 0 && mObserver != null) {
             mContext.getContentResolver().unregisterContentObserver(mObserver);
             // cleanup
             mObserver = null;
-            mObserverThread.quit();
-            mObserverThread = null;
         }
     }
 
+    /**
+     * validates {@link #mCache} before a read, calls the provider only when the {@link
+     * TrayChangeCounter} changed since the last validation
+     *
+     * @return false when the data can't be cached
+     */
+    private boolean validateCache() {
+        if (mCache == null) {
+            return false;
+        }
+        if (mChangeCounter != null && mCache.isValidAt(mChangeCounter.get())) {
+            return true;
+        }
+        return mProviderHelper.validate(mCache, getModuleName());
+    }
+
+    /**
+     * @return the handler of the shared observer thread, starts the thread if necessary
+     */
+    private static synchronized Handler getObserverHandler() {
+        if (sObserverHandler == null) {
+            sObserverThread = new HandlerThread("TrayObserver");
+            sObserverThread.start();
+            // blocks until the looper is prepared
+            sObserverHandler = new Handler(sObserverThread.getLooper());
+        }
+        return sObserverHandler;
+    }
+
     /**
      * clear the data inside the preference and all evidence this preference has ever existed
      * <p>
@@ -379,6 +562,7 @@ public class ContentProviderStorage extends TrayStorage {
                 .setModule(getModuleName())
                 .build();
         mContext.getContentResolver().delete(uri, null, null);
+        TrayCache.onChange(mContext, uri);
     }
 
 
@@ -18,6 +18,7 @@ package net.grandcentrix.tray.provider;
 
 import android.content.ContentValues;
 import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import androidx.annotation.NonNull;
@@ -36,6 +37,16 @@ import java.util.List;
  */
 public class SqliteHelper {
 
+    /**
+     * the first SQLite version supporting {@code INSERT ... ON CONFLICT DO UPDATE}
+     */
+    private static final int[] UPSERT_MIN_SQLITE_VERSION = {3, 24, 0};
+
+    /**
+     * cached result of {@link #supportsUpsert(SQLiteDatabase)}, {@code null} until checked
+     */
+    private static volatile Boolean sSupportsUpsert;
+
     /**
      * combines selection a and selection b to (a) AND (b). handles all cases if a or b are
      * <code>null</code> or <code>""</code>
@@ -170,6 +181,135 @@ public class SqliteHelper {
         }
     }
 
+    /**
+     * Inserts the values or updates the existing row with the same values of the conflict
+     * columns in a single statement with {@code INSERT ... ON CONFLICT (...) DO UPDATE}. On
+     * SQLite versions older than 3.24.0 it falls back to an update followed by an insert when
+     * nothing was updated, both in one transaction.
+     *
+     * @param sqlDb                  database to work with. has to be writable
+     * @param table                  the table to insert
+     * @param values                 the values to insert, have to contain the conflict columns
+     * @param conflictColumns        columns of the unique constraint identifying the row
+     * @param excludeFieldsForUpdate contentValues keys which are only written when inserting
+     * @return 1 for insert, 0 for update (only detected by the fallback, the upsert statement
+     * always returns 1) and -1 if something goes wrong
+     */
+    public static int upsert(@Nullable SQLiteDatabase sqlDb, @NonNull String table,
+            @NonNull final ContentValues values, @NonNull final String[] conflictColumns,
+            @Nullable final String[] excludeFieldsForUpdate) {
+        if (sqlDb == null) {
+            return -1;
+        }
+
+        final List<String> columns = new ArrayList<>(values.keySet());
+        final List<String> updateColumns = new ArrayList<>(columns);
+        updateColumns.removeAll(Arrays.asList(conflictColumns));
+        if (excludeFieldsForUpdate != null) {
+            updateColumns.removeAll(Arrays.asList(excludeFieldsForUpdate));
+        }
+
+        if (supportsUpsert(sqlDb)) {
+            final StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+            final Object[] bindArgs = new Object[columns.size()];
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i > 0 ? ", " : "").append(columns.get(i));
+                bindArgs[i] = values.get(columns.get(i));
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < columns.size(); i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+            sql.append(") ON CONFLICT (").append(TextUtils.join(", ", conflictColumns))
+                    .append(") DO ");
+            if (updateColumns.isEmpty()) {
+                sql.append("NOTHING");
+            } else {
+                sql.append("UPDATE SET ");
+                for (int i = 0; i < updateColumns.size(); i++) {
+                    final String column = updateColumns.get(i);
+                    sql.append(i > 0 ? ", " : "")
+                            .append(column).append(" = excluded.").append(column);
+                }
+            }
+            try {
+                // execSQL uses the prepared statement cache of the connection
+                sqlDb.execSQL(sql.toString(), bindArgs);
+                return 1;
+            } catch (SQLException e) {
+                return -1;
+            }
+        }
+
+        String selection = null;
+        final String[] selectionArgs = new String[conflictColumns.length];
+        for (int i = 0; i < conflictColumns.length; i++) {
+            selection = extendSelection(selection, conflictColumns[i] + " = ?");
+            selectionArgs[i] = values.getAsString(conflictColumns[i]);
+        }
+        final ContentValues updateValues = new ContentValues(values);
+        for (final String column : columns) {
+            if (!updateColumns.contains(column)) {
+                updateValues.remove(column);
+            }
+        }
+
+        sqlDb.beginTransaction();
+        try {
+            final int result;
+            if (updateValues.size() > 0
+                    && sqlDb.update(table, updateValues, selection, selectionArgs) > 0) {
+                result = 0;
+            } else if (sqlDb.insertWithOnConflict(table, null, values,
+                    SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+                result = 1;
+            } else {
+                result = queryNumEntries(sqlDb, table, selection, selectionArgs) > 0 ? 0 : -1;
+            }
+            sqlDb.setTransactionSuccessful();
+            return result;
+        } finally {
+            sqlDb.endTransaction();
+        }
+    }
+
+    /**
+     * @return true if the SQLite library of the database supports {@code ON CONFLICT DO UPDATE}
+     */
+    static boolean supportsUpsert(@NonNull final SQLiteDatabase sqlDb) {
+        Boolean supported = sSupportsUpsert;
+        if (supported == null) {
+            final String version = DatabaseUtils.stringForQuery(sqlDb, "SELECT sqlite_version()",
+                    null);
+            supported = isVersionAtLeast(version, UPSERT_MIN_SQLITE_VERSION);
+            sSupportsUpsert = supported;
+        }
+        return supported;
+    }
+
+    /**
+     * @param version dotted version string like {@code 3.22.0}
+     * @return true if the version is greater or equal to the min version
+     */
+    static boolean isVersionAtLeast(@Nullable final String version, final int[] minVersion) {
+        if (version == null) {
+            return false;
+        }
+        final String[] parts = version.split("\\.");
+        for (int i = 0; i < minVersion.length; i++) {
+            final int part;
+            try {
+                part = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (part != minVersion[i]) {
+                return part > minVersion[i];
+            }
+        }
+        return true;
+    }
+
     // From https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/database/DatabaseUtils.java
     /**
      * Query the table for the number of rows in the table.
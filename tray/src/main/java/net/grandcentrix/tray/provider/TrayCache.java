@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.WeakHashMap;
+
+/**
+ * Per process read cache of the items of a single module and {@link TrayStorage.Type}.
+ * <p>
+ * The whole module gets loaded with a single query on first access, afterwards reads are served
+ * from memory. Before every read the cache is checked against the {@link TrayChangeCounter} of
+ * the provider (see {@link #isValidAt(long)}), a memory lookup. Only when something was committed
+ * since the last validation the cache is validated against the generation of the module returned
+ * by the {@link TrayContentProvider} (see {@link #validate(long, long)}). The provider updates
+ * both before a write returns, so a process reading after another process wrote, e.g. when told
+ * so by a message, never gets the old data. Change notifications are not used, they may arrive
+ * after such a message.
+ * <p>
+ * Writes done in this process through the {@link TrayProviderHelper} or the {@link
+ * ContentProviderStorage} are applied synchronously: a single item write only invalidates the
+ * written key when no other change happened since the last validation, everything else
+ * invalidates the module.
+ * <p>
+ * The cache also remembers the version of the module once it was read or written by this process,
+ * making the version check of every new {@link net.grandcentrix.tray.TrayPreferences} instance a
+ * memory lookup as long as the module doesn't change.
+ * <p>
+ * Results of a query are only stored when no invalidation happened while the query was running,
+ * so a slow load can never overwrite newer data with older data.
+ */
+final class TrayCache {
+
+    static final int VERSION_UNKNOWN = -1;
+
+    static final long GENERATION_UNKNOWN = TrayChange.GENERATION_UNKNOWN;
+
+    /**
+     * caches by module and type for each {@link ContentResolver}. The {@link ContentResolver}
+     * represents the provider instance the data was read from.
+     */
+    private static final WeakHashMap<ContentResolver, HashMap<String, TrayCache>> sCaches
+            = new WeakHashMap<>();
+
+    /**
+     * cached items by key, {@code null} when the module was not loaded yet
+     */
+    private LinkedHashMap<String, TrayItem> mItems;
+
+    /**
+     * keys changed since {@link #mItems} got loaded
+     */
+    private final HashSet<String> mStaleKeys = new HashSet<>();
+
+    /**
+     * version of the module, {@link #VERSION_UNKNOWN} when not checked yet
+     */
+    private int mVersion = VERSION_UNKNOWN;
+
+    /**
+     * incremented on every invalidation
+     */
+    private long mGeneration;
+
+    /**
+     * generation of the module in the provider the cached data belongs to
+     */
+    private long mProviderGeneration = GENERATION_UNKNOWN;
+
+    /**
+     * value of the {@link TrayChangeCounter} at the last validation, {@link #GENERATION_UNKNOWN}
+     * when the next read has to validate
+     */
+    private long mValidatedSequence = GENERATION_UNKNOWN;
+
+    private final String mModule;
+
+    private final TrayStorage.Type mType;
+
+    private TrayCache(@NonNull final String module, @NonNull final TrayStorage.Type type) {
+        mModule = module;
+        mType = type;
+    }
+
+    /**
+     * returns the shared cache of the given module, {@code null} for {@link
+     * TrayStorage.Type#UNDEFINED} which reads from both databases and is only used to annex
+     * modules
+     */
+    @Nullable
+    static TrayCache get(@NonNull final Context context, @NonNull final String module,
+            @NonNull final TrayStorage.Type type) {
+        if (type == TrayStorage.Type.UNDEFINED) {
+            return null;
+        }
+        final ContentResolver resolver = getResolver(context);
+        final String id = type.name() + "/" + module;
+        synchronized (sCaches) {
+            HashMap<String, TrayCache> caches = sCaches.get(resolver);
+            if (caches == null) {
+                caches = new HashMap<>();
+                sCaches.put(resolver, caches);
+            }
+            TrayCache cache = caches.get(id);
+            if (cache == null) {
+                cache = new TrayCache(module, type);
+                caches.put(id, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * updates the cached data of all modules affected by a write of this process to the given uri
+     *
+     * @param uri the uri returned by the write or the uri of the write
+     */
+    static void onChange(@NonNull final Context context, @NonNull final Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        final String module = segments.size() > 1 ? segments.get(1) : null;
+
+        final List<TrayCache> affected = new ArrayList<>();
+        synchronized (sCaches) {
+            final HashMap<String, TrayCache> caches = sCaches.get(getResolver(context));
+            if (caches == null) {
+                return;
+            }
+            for (final TrayCache cache : caches.values()) {
+                if (module == null || module.equals(cache.mModule)) {
+                    affected.add(cache);
+                }
+            }
+        }
+        for (final TrayCache cache : affected) {
+            cache.onChange(uri);
+        }
+    }
+
+    /**
+     * @return the current generation which has to be passed to {@link #put(long, Collection)}
+     * and {@link #put(long, String, TrayItem)} when storing the result of a query started
+     * afterwards
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return the cached item of the key or {@code null} when the key doesn't exist
+     * @throws IllegalStateException when the key is not cached, see {@link #contains(String)}
+     */
+    @Nullable
+    synchronized TrayItem get(@NonNull final String key) {
+        if (!contains(key)) {
+            throw new IllegalStateException("key '" + key + "' of " + mModule + " is not cached");
+        }
+        return mItems.get(key);
+    }
+
+    /**
+     * @return all cached items or {@code null} when not all of them are up to date
+     */
+    @Nullable
+    synchronized List<TrayItem> getAll() {
+        if (mItems == null || !mStaleKeys.isEmpty()) {
+            return null;
+        }
+        return new ArrayList<>(mItems.values());
+    }
+
+    /**
+     * @return true if the module was loaded, some keys may be stale
+     */
+    synchronized boolean isLoaded() {
+        return mItems != null;
+    }
+
+    /**
+     * @return true if the current data of the key, including its absence, is known
+     */
+    synchronized boolean contains(@NonNull final String key) {
+        return mItems != null && !mStaleKeys.contains(key);
+    }
+
+    /**
+     * @return the version of the module or {@link #VERSION_UNKNOWN}
+     */
+    synchronized int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * stores the version of the module after it was read or written
+     *
+     * @param generation {@link #getGeneration()} before the query was started
+     */
+    synchronized void putVersion(final long generation, final int version) {
+        if (generation == mGeneration) {
+            mVersion = version;
+        }
+    }
+
+    synchronized void invalidateVersion() {
+        mGeneration++;
+        mVersion = VERSION_UNKNOWN;
+    }
+
+    /**
+     * @param committedSequence the current value of the {@link TrayChangeCounter}
+     * @return true when nothing was committed since the last validation and the cache can be
+     * read without calling {@link #validate(long, long)}
+     */
+    synchronized boolean isValidAt(final long committedSequence) {
+        return committedSequence != GENERATION_UNKNOWN
+                && committedSequence == mValidatedSequence;
+    }
+
+    /**
+     * drops all cached data when the module changed since the last validation. Has to be called
+     * before reading from the cache unless {@link #isValidAt(long)}.
+     *
+     * @param providerGeneration the current generation of the module, see {@link
+     *                           TrayProviderHelper#getGeneration(String)}
+     * @param committedSequence  the sequence number of the last change committed by the provider
+     *                           when the generation was read
+     */
+    synchronized void validate(final long providerGeneration, final long committedSequence) {
+        if (providerGeneration != mProviderGeneration) {
+            invalidate(null);
+            invalidateVersion();
+            mProviderGeneration = providerGeneration;
+        }
+        mValidatedSequence = committedSequence;
+    }
+
+    /**
+     * invalidates the data changed by a write of this process to the given uri of this module
+     */
+    synchronized void onChange(@NonNull final Uri uri) {
+        // the write moved the counter, the next read validates the module again
+        mValidatedSequence = GENERATION_UNKNOWN;
+        final TrayChange change = TrayChange.parse(uri);
+        if (change == null || change.getPreviousGeneration() == GENERATION_UNKNOWN
+                || change.getPreviousGeneration() != mProviderGeneration) {
+            // other changes may have happened, validated again on the next read
+            invalidate(null);
+            invalidateVersion();
+            mProviderGeneration = GENERATION_UNKNOWN;
+            return;
+        }
+        if (change.isInternal()) {
+            if (ContentProviderStorage.VERSION.equals(change.getKey())) {
+                invalidateVersion();
+            }
+        } else if (change.affects(mType)) {
+            invalidate(change.getKey());
+        }
+        mProviderGeneration = change.getSequence();
+    }
+
+    /**
+     * invalidates a single key or the whole module when the key is {@code null}
+     */
+    synchronized void invalidate(@Nullable final String key) {
+        mGeneration++;
+        if (key == null) {
+            mItems = null;
+            mStaleKeys.clear();
+        } else if (mItems != null) {
+            mStaleKeys.add(key);
+        }
+    }
+
+    /**
+     * replaces the cached data with all items of the module
+     *
+     * @param generation {@link #getGeneration()} before the query was started
+     */
+    synchronized void put(final long generation, @NonNull final Collection<TrayItem> items) {
+        if (generation != mGeneration) {
+            return;
+        }
+        final LinkedHashMap<String, TrayItem> map = new LinkedHashMap<>();
+        for (final TrayItem item : items) {
+            if (!map.containsKey(item.key())) {
+                map.put(item.key(), item);
+            }
+        }
+        mItems = map;
+        mStaleKeys.clear();
+    }
+
+    /**
+     * updates a single key after it was invalidated
+     *
+     * @param generation {@link #getGeneration()} before the query was started
+     * @param item       the current item or {@code null} when the key doesn't exist anymore
+     */
+    synchronized void put(final long generation, @NonNull final String key,
+            @Nullable final TrayItem item) {
+        if (generation != mGeneration || mItems == null) {
+            return;
+        }
+        if (item == null) {
+            mItems.remove(key);
+        } else {
+            mItems.put(key, item);
+        }
+        mStaleKeys.remove(key);
+    }
+
+    /**
+     * the resolver of the application context, every other context has its own instance
+     */
+    private static ContentResolver getResolver(@NonNull final Context context) {
+        return context.getApplicationContext().getContentResolver();
+    }
+
+    @VisibleForTesting
+    static void clearAll() {
+        synchronized (sCaches) {
+            sCaches.clear();
+        }
+    }
+}
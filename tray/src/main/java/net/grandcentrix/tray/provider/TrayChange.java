@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayStorage;
+
+import android.net.Uri;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * A single change of an item encoded in the uri of the change notification of the {@link
+ * TrayContentProvider}. Observers don't need it, they query all changes since the last one they
+ * have seen, but the writer uses it to update its cache.
+ * <p>
+ * The notification uri is the uri of the item with two additional query parameters: the
+ * operation and a sequence number. It never carries the data of the item, notification uris are
+ * visible to other apps on older platform versions. Notifications for more than a single item
+ * (clearing a module, batches) don't carry a change and require a query of the module.
+ * <p>
+ * The sequence number increases with every change of the provider process. It is also the
+ * generation of the module after the change. The uri returned to the writer additionally carries
+ * the generation of the module before the change.
+ */
+final class TrayChange {
+
+    static final String PARAM_OPERATION = "op";
+
+    static final String PARAM_SEQUENCE = "seq";
+
+    static final String PARAM_PREVIOUS_GENERATION = "previous";
+
+    static final long GENERATION_UNKNOWN = -1;
+
+    static final String OPERATION_PUT = "put";
+
+    static final String OPERATION_DELETE = "delete";
+
+    private static final String PARAM_BACKUP = "backup";
+
+    private final boolean mDelete;
+
+    private final boolean mInternal;
+
+    /**
+     * uri of the changed item without the change parameters
+     */
+    @NonNull
+    private final Uri mItemUri;
+
+    @NonNull
+    private final String mKey;
+
+    @NonNull
+    private final String mModule;
+
+    private final long mSequence;
+
+    private final long mPreviousGeneration;
+
+    /**
+     * the affected type, {@link TrayStorage.Type#UNDEFINED} for both
+     */
+    @NonNull
+    private final TrayStorage.Type mType;
+
+    private TrayChange(final boolean delete, final boolean internal, @NonNull final Uri itemUri,
+            @NonNull final String module, @NonNull final String key,
+            @NonNull final TrayStorage.Type type, final long sequence,
+            final long previousGeneration) {
+        mDelete = delete;
+        mInternal = internal;
+        mItemUri = itemUri;
+        mModule = module;
+        mKey = key;
+        mType = type;
+        mSequence = sequence;
+        mPreviousGeneration = previousGeneration;
+    }
+
+    /**
+     * @param itemUri uri of the deleted item
+     * @return the notification uri for the deletion of a single item
+     */
+    @NonNull
+    static Uri deleteUri(@NonNull final Uri itemUri, final long sequence) {
+        return itemUri.buildUpon()
+                .appendQueryParameter(PARAM_OPERATION, OPERATION_DELETE)
+                .appendQueryParameter(PARAM_SEQUENCE, String.valueOf(sequence))
+                .build();
+    }
+
+    /**
+     * parses the change of a notification uri
+     *
+     * @return the change or {@code null} when the uri doesn't describe the change of a single item
+     */
+    @Nullable
+    static TrayChange parse(@Nullable final Uri uri) {
+        if (uri == null || uri.isOpaque()) {
+            return null;
+        }
+        final List<String> segments = uri.getPathSegments();
+        final String operation = uri.getQueryParameter(PARAM_OPERATION);
+        final String sequence = uri.getQueryParameter(PARAM_SEQUENCE);
+        if (segments.size() != 3 || operation == null || sequence == null) {
+            return null;
+        }
+        final boolean internal = TrayContract.InternalPreferences.BASE_PATH
+                .equals(segments.get(0));
+        final String module = segments.get(1);
+        final String key = segments.get(2);
+        final String backup = uri.getQueryParameter(PARAM_BACKUP);
+        final String previous = uri.getQueryParameter(PARAM_PREVIOUS_GENERATION);
+        final Uri.Builder itemUri = uri.buildUpon().clearQuery();
+        if (backup != null) {
+            itemUri.appendQueryParameter(PARAM_BACKUP, backup);
+        }
+        try {
+            final long previousGeneration = previous == null ? GENERATION_UNKNOWN
+                    : Long.parseLong(previous);
+            if (OPERATION_DELETE.equals(operation)) {
+                final TrayStorage.Type type = backup == null ? TrayStorage.Type.UNDEFINED
+                        : "false".equals(backup) ? TrayStorage.Type.DEVICE
+                                : TrayStorage.Type.USER;
+                return new TrayChange(true, internal, itemUri.build(), module, key, type,
+                        Long.parseLong(sequence), previousGeneration);
+            }
+            if (OPERATION_PUT.equals(operation)) {
+                // writes without backup param go into the user database
+                final TrayStorage.Type type = "false".equals(backup) ? TrayStorage.Type.DEVICE
+                        : TrayStorage.Type.USER;
+                return new TrayChange(false, internal, itemUri.build(), module, key, type,
+                        Long.parseLong(sequence), previousGeneration);
+            }
+        } catch (NumberFormatException e) {
+            // unknown format, handled like a change without data
+        }
+        return null;
+    }
+
+    /**
+     * @param itemUri uri of the written item
+     * @return the notification uri for a write of a single item
+     */
+    @NonNull
+    static Uri putUri(@NonNull final Uri itemUri, final long sequence) {
+        return itemUri.buildUpon()
+                .appendQueryParameter(PARAM_OPERATION, OPERATION_PUT)
+                .appendQueryParameter(PARAM_SEQUENCE, String.valueOf(sequence))
+                .build();
+    }
+
+    /**
+     * @param changeUri  the uri describing the change
+     * @param generation the generation of the module before the change
+     * @return the change uri returned to the writer
+     */
+    @NonNull
+    static Uri withPreviousGeneration(@NonNull final Uri changeUri, final long generation) {
+        return changeUri.buildUpon()
+                .appendQueryParameter(PARAM_PREVIOUS_GENERATION, String.valueOf(generation))
+                .build();
+    }
+
+    /**
+     * @return the generation of the module before the change, {@link #GENERATION_UNKNOWN} for
+     * change notifications
+     */
+    long getPreviousGeneration() {
+        return mPreviousGeneration;
+    }
+
+    /**
+     * @return the uri to query the current data of the changed item
+     */
+    @NonNull
+    Uri getItemUri() {
+        return mItemUri;
+    }
+
+    @NonNull
+    String getKey() {
+        return mKey;
+    }
+
+    @NonNull
+    String getModule() {
+        return mModule;
+    }
+
+    long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return true if the change affects the database of the given type
+     */
+    boolean affects(@NonNull final TrayStorage.Type type) {
+        return mType == TrayStorage.Type.UNDEFINED || type == TrayStorage.Type.UNDEFINED
+                || mType == type;
+    }
+
+    /**
+     * @return true if the item was deleted
+     */
+    boolean isDelete() {
+        return mDelete;
+    }
+
+    /**
+     * @return true for changes of the internal data like the version
+     */
+    boolean isInternal() {
+        return mInternal;
+    }
+
+    @Override
+    public String toString() {
+        return "TrayChange{" + (mDelete ? OPERATION_DELETE : OPERATION_PUT)
+                + " " + mModule + "/" + mKey + " #" + mSequence + "}";
+    }
+}
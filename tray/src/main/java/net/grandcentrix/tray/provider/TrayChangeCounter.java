@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 grandcentrix GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.grandcentrix.tray.provider;
+
+import net.grandcentrix.tray.core.TrayLog;
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+/**
+ * The sequence number of the last change committed by the {@link TrayContentProvider} of an
+ * authority, shared with all processes of the app through a memory mapped file.
+ * <p>
+ * The provider updates the number before a write returns. A reader only has to ask the provider
+ * whether its cached data is still current when the number differs from the one its cache was
+ * validated at, reading unchanged data needs no call into the provider process.
+ * <p>
+ * Every committed change writes a different number, a reader never sees an old number again
+ * after a change. When the file can't be used, e.g. in an isolated test context, {@link #get()}
+ * returns {@link #UNKNOWN} and readers always ask the provider.
+ */
+final class TrayChangeCounter {
+
+    static final long UNKNOWN = TrayChange.GENERATION_UNKNOWN;
+
+    private static final int SIZE = 8;
+
+    /**
+     * read only counters of this process by file
+     */
+    private static final HashMap<File, TrayChangeCounter> sCounters = new HashMap<>();
+
+    private final File mFile;
+
+    private final boolean mWritable;
+
+    /**
+     * the mapped file, {@code null} until it could be mapped
+     */
+    private MappedByteBuffer mBuffer;
+
+    private TrayChangeCounter(@NonNull final File file, final boolean writable) {
+        mFile = file;
+        mWritable = writable;
+    }
+
+    /**
+     * @return the shared read only counter of the provider with the given authority, {@code
+     * null} when the context has no files directory
+     */
+    @Nullable
+    static TrayChangeCounter forReader(@NonNull final Context context,
+            @NonNull final String authority) {
+        final File file = getFile(context, authority);
+        if (file == null) {
+            return null;
+        }
+        synchronized (sCounters) {
+            TrayChangeCounter counter = sCounters.get(file);
+            if (counter == null) {
+                counter = new TrayChangeCounter(file, false);
+                sCounters.put(file, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * @return the writable counter for the provider with the given authority, {@code null} when
+     * the file can't be mapped
+     */
+    @Nullable
+    static TrayChangeCounter forProvider(@NonNull final Context context,
+            @NonNull final String authority) {
+        final File file = getFile(context, authority);
+        if (file == null) {
+            return null;
+        }
+        final TrayChangeCounter counter = new TrayChangeCounter(file, true);
+        return counter.map() ? counter : null;
+    }
+
+    /**
+     * @return the sequence number of the last committed change or {@link #UNKNOWN} when the
+     * provider didn't create the file yet
+     */
+    synchronized long get() {
+        if (mBuffer == null && !map()) {
+            return UNKNOWN;
+        }
+        return mBuffer.getLong(0);
+    }
+
+    /**
+     * publishes the sequence number of a committed change, only supported by the counter of the
+     * provider
+     */
+    synchronized void set(final long sequence) {
+        if (!mWritable) {
+            throw new IllegalStateException("counter of " + mFile + " is read only");
+        }
+        mBuffer.putLong(0, sequence);
+    }
+
+    private boolean map() {
+        if (!mWritable && mFile.length() < SIZE) {
+            return false;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, mWritable ? "rw" : "r");
+            // the mapping stays valid after the file was closed
+            mBuffer = file.getChannel().map(mWritable ? FileChannel.MapMode.READ_WRITE
+                    : FileChannel.MapMode.READ_ONLY, 0, SIZE);
+            return true;
+        } catch (IOException e) {
+            TrayLog.w("could not map " + mFile + ": " + e);
+            return false;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    @Nullable
+    private static File getFile(@NonNull final Context context, @NonNull final String authority) {
+        final File dir = context.getFilesDir();
+        if (dir == null) {
+            return null;
+        }
+        return new File(dir, "tray__" + authority + ".changes");
+    }
+}
@@ -20,17 +20,30 @@ import net.grandcentrix.tray.R;
 import net.grandcentrix.tray.core.TrayLog;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.ProviderInfo;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The ContentProvider which stores all data for Tray. It accesses two databases {@link
@@ -43,10 +56,43 @@ import java.util.Date;
  * TrayContract.Preferences.Columns#MODULE} overrides the already
  * existing data. So <code>insert</code> works as <code>insertOrUpdate</code>.
  * <p>
+ * Inserts and deletes of a single item notify with a uri describing the change (see {@link
+ * TrayChange}). Every insert of an item also records its sequence number in the changes table of
+ * its database, within the transaction of a batch. Observers query the current data of all items
+ * changed since the last change they have seen with a single query of the module uri with the
+ * {@link #PARAM_SINCE} parameter. Writes are serialized, so changes get committed in the order
+ * of their sequence numbers and an observer never skips a change committed late.
+ * <p>
+ * Every module has a generation, the sequence number of its last committed change, which is
+ * returned by {@link #call(String, String, Bundle)} with {@link #METHOD_GET_GENERATION}. Unlike
+ * the change notifications it is updated before a write returns, so it tells other processes
+ * whether their cached data of a module is still current. The sequence number of the last
+ * committed change of any module is also published in a {@link TrayChangeCounter}, so other
+ * processes only have to call the provider after something changed.
+ * <p>
  * Created by jannisveerkamp on 16.09.14.
  */
 public class TrayContentProvider extends ContentProvider {
 
+    /**
+     * {@link #call(String, String, Bundle)} method returning the generation of the module given
+     * as argument in {@link #EXTRA_GENERATION}
+     */
+    static final String METHOD_GET_GENERATION = "getGeneration";
+
+    static final String EXTRA_GENERATION = "generation";
+
+    /**
+     * the sequence number of the last committed change of any module, returned along with {@link
+     * #EXTRA_GENERATION}
+     */
+    static final String EXTRA_COMMITTED_SEQUENCE = "committed";
+
+    /**
+     * query parameter of a module uri to query the items changed after the given sequence number
+     */
+    static final String PARAM_SINCE = "since";
+
     private static final int SINGLE_PREFERENCE = 10;
 
     private static final int MODULE_PREFERENCE = 20;
@@ -59,14 +105,69 @@ public class TrayContentProvider extends ContentProvider {
 
     private static final int INTERNAL_ALL_PREFERENCE = 130;
 
+    private static final String[] CONFLICT_COLUMNS = {
+            TrayContract.Preferences.Columns.MODULE,
+            TrayContract.Preferences.Columns.KEY
+    };
+
+    private static final String[] EXCLUDE_FOR_UPDATE = {TrayContract.Preferences.Columns.CREATED};
+
     private static UriMatcher sURIMatcher;
 
+    /**
+     * uris changed by the batch running on the current thread, {@code null} outside of batches
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<>();
+
+    /**
+     * serializes all writes, held from taking a sequence number until the change was committed
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * source of the {@link TrayChange} sequence numbers
+     */
+    private final AtomicLong mSequence = new AtomicLong();
+
+    /**
+     * generation by module, guarded by itself
+     */
+    private final HashMap<String, Long> mGenerations = new HashMap<>();
+
+    /**
+     * generation of the modules without an entry in {@link #mGenerations}, guarded by {@link
+     * #mGenerations}
+     */
+    private long mBaseGeneration;
+
+    /**
+     * sequence number of the last committed change, guarded by {@link #mGenerations}
+     */
+    private long mCommittedSequence;
+
+    /**
+     * authority of this provider, {@code null} when not known
+     */
+    private String mAuthority;
+
+    /**
+     * publishes {@link #mCommittedSequence} to other processes, {@code null} when the file can't
+     * be used. Guarded by {@link #mGenerations}
+     */
+    private TrayChangeCounter mChangeCounter;
+
     TrayDBHelper mDeviceDbHelper;
 
     TrayDBHelper mUserDbHelper;
 
     @Override
-    public int delete(final Uri uri, String selection, String[] selectionArgs) {
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        synchronized (mWriteLock) {
+            return deleteItems(uri, selection, selectionArgs);
+        }
+    }
+
+    private int deleteItems(final Uri uri, String selection, String[] selectionArgs) {
 
         final int match = sURIMatcher.match(uri);
         switch (match) {
@@ -91,6 +192,8 @@ public class TrayContentProvider extends ContentProvider {
                 throw new IllegalArgumentException("Delete is not supported for Uri: " + uri);
         }
 
+        final boolean singleItem = match == SINGLE_PREFERENCE
+                || match == INTERNAL_SINGLE_PREFERENCE;
         final int rows;
         final String backup = uri.getQueryParameter("backup");
         if (backup == null) {
@@ -99,14 +202,38 @@ public class TrayContentProvider extends ContentProvider {
             int user = mUserDbHelper.getWritableDatabase()
                     .delete(getTable(uri), selection, selectionArgs);
             rows = device + user;
+            if (device > 0) {
+                removeChanges(mDeviceDbHelper.getWritableDatabase(), uri, singleItem);
+            }
+            if (user > 0) {
+                removeChanges(mUserDbHelper.getWritableDatabase(), uri, singleItem);
+            }
+            if (singleItem) {
+                // the item may still exist in the other database, notify per database
+                if (device > 0) {
+                    notifyChange(TrayChange.deleteUri(uri.buildUpon()
+                            .appendQueryParameter("backup", "false").build(),
+                            mSequence.incrementAndGet()));
+                }
+                if (user > 0) {
+                    notifyChange(TrayChange.deleteUri(uri.buildUpon()
+                            .appendQueryParameter("backup", "true").build(),
+                            mSequence.incrementAndGet()));
+                }
+                return rows;
+            }
         } else {
             rows = getWritableDatabase(uri)
                     .delete(getTable(uri), selection, selectionArgs);
+            if (rows > 0) {
+                removeChanges(getWritableDatabase(uri), uri, singleItem);
+            }
         }
 
         // Don't force an UI refresh if nothing has changed
         if (rows > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(singleItem ? TrayChange.deleteUri(uri, mSequence.incrementAndGet())
+                    : uri);
         }
 
         return rows;
@@ -166,22 +293,28 @@ public class TrayContentProvider extends ContentProvider {
                 throw new IllegalArgumentException("Insert is not supported for Uri: " + uri);
         }
 
-        final String prefSelection =
-                TrayContract.Preferences.Columns.MODULE + " = ?"
-                        + "AND " + TrayContract.Preferences.Columns.KEY + " = ?";
-        final String[] prefSelectionArgs = {
-                values.getAsString(TrayContract.Preferences.Columns.MODULE),
-                values.getAsString(TrayContract.Preferences.Columns.KEY)
-        };
-
-        final String[] excludeForUpdate = {TrayContract.Preferences.Columns.CREATED};
-
-        final int status = insertOrUpdate(getWritableDatabase(uri), getTable(uri),
-                prefSelection, prefSelectionArgs, values, excludeForUpdate);
+        final SQLiteDatabase db = getWritableDatabase(uri);
+        final int status;
+        final long sequence;
+        synchronized (mWriteLock) {
+            sequence = mSequence.incrementAndGet();
+            status = insertOrUpdate(db, getTable(uri), values, EXCLUDE_FOR_UPDATE);
+            if (status >= 0 && match == SINGLE_PREFERENCE) {
+                logChange(db, values, sequence);
+            }
+        }
 
         if (status >= 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-            return uri;
+            final Uri changeUri = TrayChange.putUri(uri, sequence);
+            final Set<Uri> changes = mBatchChanges.get();
+            if (changes != null) {
+                changes.add(changeUri);
+                return changeUri;
+            }
+            final long previous = commitChange(uri, sequence);
+            getContext().getContentResolver().notifyChange(changeUri, null);
+            // lets the writer tell whether its cache missed other changes
+            return TrayChange.withPreviousGeneration(changeUri, previous);
 
         } else if (status == -1) {
             //throw new SQLiteException("An error occurred while saving preference.");
@@ -194,12 +327,106 @@ public class TrayContentProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * inserts the item or updates the existing one with the same module and key in a single
+     * statement
+     *
+     * @return 1 for insert, 0 for update and -1 if something goes wrong
+     * @see SqliteHelper#upsert(SQLiteDatabase, String, ContentValues, String[], String[])
+     */
     public int insertOrUpdate(final SQLiteDatabase writableDatabase, final String table,
-            final String prefSelection, final String[] prefSelectionArgs,
             final ContentValues values, final String[] excludeForUpdate) {
-        return SqliteHelper
-                .insertOrUpdate(writableDatabase, table, prefSelection, prefSelectionArgs, values,
-                        excludeForUpdate);
+        return SqliteHelper.upsert(writableDatabase, table, values, CONFLICT_COLUMNS,
+                excludeForUpdate);
+    }
+
+    /**
+     * Inserts all values into the module of the uri in a single transaction and sends a single
+     * change notification for the module. Each value has to contain the {@link
+     * TrayContract.Preferences.Columns#KEY}. Other uris are inserted one by one.
+     *
+     * @return the number of inserted or updated items
+     */
+    @Override
+    public int bulkInsert(@NonNull final Uri uri, @NonNull final ContentValues[] values) {
+        final int match = sURIMatcher.match(uri);
+        if (match != MODULE_PREFERENCE && match != INTERNAL_MODULE_PREFERENCE) {
+            return super.bulkInsert(uri, values);
+        }
+
+        final SQLiteDatabase db = getWritableDatabase(uri);
+        synchronized (mWriteLock) {
+            final boolean outermost = beginBatch(db);
+            boolean successful = false;
+            int count = 0;
+            try {
+                for (final ContentValues value : values) {
+                    final String key = value.getAsString(TrayContract.Preferences.Columns.KEY);
+                    if (key == null) {
+                        throw new IllegalArgumentException(
+                                "bulkInsert requires a key for every item");
+                    }
+                    if (insert(uri.buildUpon().appendPath(key).build(), value) != null) {
+                        count++;
+                    }
+                }
+                successful = true;
+            } finally {
+                endBatch(outermost, successful, db);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Applies all operations in one transaction per database. Change notifications are sent
+     * once after the transactions were committed, a single one for the deepest uri covering all
+     * changes.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull final ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase userDb = mUserDbHelper.getWritableDatabase();
+        final SQLiteDatabase deviceDb = mDeviceDbHelper.getWritableDatabase();
+        synchronized (mWriteLock) {
+            final boolean outermost = beginBatch(userDb, deviceDb);
+            boolean successful = false;
+            try {
+                final ContentProviderResult[] results = super.applyBatch(operations);
+                successful = true;
+                return results;
+            } finally {
+                endBatch(outermost, successful, userDb, deviceDb);
+            }
+        }
+    }
+
+    @Override
+    public void attachInfo(final Context context, final ProviderInfo info) {
+        // the authority names the change counter file and is needed in onCreate()
+        if (info != null && info.authority != null) {
+            mAuthority = info.authority.split(";")[0];
+        }
+        super.attachInfo(context, info);
+    }
+
+    /**
+     * Supports {@link #METHOD_GET_GENERATION}, other methods are passed to the super class
+     */
+    @Override
+    public Bundle call(@NonNull final String method, final String arg, final Bundle extras) {
+        if (!METHOD_GET_GENERATION.equals(method) || arg == null) {
+            return super.call(method, arg, extras);
+        }
+        final Bundle result = new Bundle();
+        synchronized (mGenerations) {
+            final Long generation = mGenerations.get(arg);
+            result.putLong(EXTRA_GENERATION, generation != null ? generation : mBaseGeneration);
+            result.putLong(EXTRA_COMMITTED_SEQUENCE, mCommittedSequence);
+        }
+        return result;
     }
 
     @Override
@@ -208,56 +435,83 @@ public class TrayContentProvider extends ContentProvider {
 
         mUserDbHelper = new TrayDBHelper(getContext(), true);
         mDeviceDbHelper = new TrayDBHelper(getContext(), false);
+        // continues above the sequence numbers of a previous provider process
+        mSequence.set(System.currentTimeMillis() * 1000);
+        // invalidates what other processes cached from a previous provider process
+        mBaseGeneration = mSequence.get();
+        mCommittedSequence = mBaseGeneration;
+        if (mAuthority != null) {
+            mChangeCounter = TrayChangeCounter.forProvider(getContext(), mAuthority);
+            if (mChangeCounter != null) {
+                mChangeCounter.set(mCommittedSequence);
+            }
+        }
         return true;
     }
 
+    /**
+     * The selection is built with arguments only, the sql of a lookup is the same for every key
+     * and module and gets compiled once per database connection. {@code MODULE = ? AND KEY = ?}
+     * is served by the index of {@code UNIQUE(MODULE, KEY)}.
+     * <p>
+     * Uris with a type (backup parameter) query only the database of that type. Without a type
+     * both databases are queried, a single item lookup stops at the first database containing the
+     * key.
+     */
     @Override
-    public Cursor query(final Uri uri, final String[] projection, final String selection,
-            final String[] selectionArgs, final String sortOrder) {
-        final SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+    public Cursor query(final Uri uri, final String[] projection, String selection,
+            String[] selectionArgs, final String sortOrder) {
         final int match = sURIMatcher.match(uri);
-
         switch (match) {
             case SINGLE_PREFERENCE:
             case INTERNAL_SINGLE_PREFERENCE:
-                builder.appendWhere(
-                        TrayContract.Preferences.Columns.KEY + " = " +
-                                DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(2)));
-                // no break
+                selection = SqliteHelper.extendSelection(selection,
+                        TrayContract.Preferences.Columns.MODULE + " = ? AND "
+                                + TrayContract.Preferences.Columns.KEY + " = ?");
+                selectionArgs = SqliteHelper.extendSelectionArgs(selectionArgs,
+                        new String[]{uri.getPathSegments().get(1),
+                                uri.getPathSegments().get(2)});
+                break;
             case MODULE_PREFERENCE:
-            case INTERNAL_MODULE_PREFERENCE:
-                if (match == SINGLE_PREFERENCE
-                        || match == INTERNAL_SINGLE_PREFERENCE) {
-                    builder.appendWhere(" AND ");
+                final String since = uri.getQueryParameter(PARAM_SINCE);
+                if (since != null) {
+                    final Cursor changes = queryChanges(uri, since);
+                    changes.setNotificationUri(getContext().getContentResolver(), uri);
+                    return changes;
                 }
-                builder.appendWhere(
-                        TrayContract.Preferences.Columns.MODULE + " = " +
-                                DatabaseUtils.sqlEscapeString(uri.getPathSegments().get(1)));
                 // no break
+            case INTERNAL_MODULE_PREFERENCE:
+                selection = SqliteHelper.extendSelection(selection,
+                        TrayContract.Preferences.Columns.MODULE + " = ?");
+                selectionArgs = SqliteHelper.extendSelectionArgs(selectionArgs,
+                        new String[]{uri.getPathSegments().get(1)});
+                break;
             case ALL_PREFERENCE:
             case INTERNAL_ALL_PREFERENCE:
-                builder.setTables(getTable(uri));
                 break;
             default:
                 throw new IllegalArgumentException("Query is not supported for Uri: " + uri);
         }
 
+        final String table = getTable(uri);
         final Cursor cursor;
         final String backup = uri.getQueryParameter("backup");
         if (backup == null) {
             // backup not set, query both dbs
-            Cursor cursor1 = builder
-                    .query(mUserDbHelper.getReadableDatabase(), projection, selection,
-                            selectionArgs, null, null, sortOrder);
-            Cursor cursor2 = builder
-                    .query(mDeviceDbHelper.getReadableDatabase(), projection, selection,
-                            selectionArgs, null, null, sortOrder);
-
-            cursor = new MergeCursor(new Cursor[]{cursor1, cursor2});
+            final Cursor userCursor = mUserDbHelper.getReadableDatabase().query(table,
+                    projection, selection, selectionArgs, null, null, sortOrder);
+            final boolean singleItem = match == SINGLE_PREFERENCE
+                    || match == INTERNAL_SINGLE_PREFERENCE;
+            if (singleItem && userCursor != null && userCursor.getCount() > 0) {
+                cursor = userCursor;
+            } else {
+                final Cursor deviceCursor = mDeviceDbHelper.getReadableDatabase().query(table,
+                        projection, selection, selectionArgs, null, null, sortOrder);
+                cursor = new MergeCursor(new Cursor[]{userCursor, deviceCursor});
+            }
         } else {
-            // Query
-            cursor = builder.query(getWritableDatabase(uri), projection, selection,
-                    selectionArgs, null, null, sortOrder);
+            cursor = getWritableDatabase(uri).query(table, projection, selection, selectionArgs,
+                    null, null, sortOrder);
         }
 
         if (cursor != null) {
@@ -304,6 +558,192 @@ public class TrayContentProvider extends ContentProvider {
         return rows;*/
     }
 
+    /**
+     * starts a transaction on each database and collects the change notifications until {@link
+     * #endBatch(boolean, boolean, SQLiteDatabase...)}
+     *
+     * @return true if this is the outermost batch of the current thread
+     */
+    private boolean beginBatch(final SQLiteDatabase... dbs) {
+        final boolean outermost = mBatchChanges.get() == null;
+        if (outermost) {
+            mBatchChanges.set(new LinkedHashSet<Uri>());
+        }
+        for (final SQLiteDatabase db : dbs) {
+            db.beginTransaction();
+        }
+        return outermost;
+    }
+
+    /**
+     * commits or rolls back the transactions of {@link #beginBatch(SQLiteDatabase...)} and sends
+     * the collected change notification when the outermost batch was successful
+     */
+    private void endBatch(final boolean outermost, final boolean successful,
+            final SQLiteDatabase... dbs) {
+        try {
+            for (int i = dbs.length - 1; i >= 0; i--) {
+                if (successful) {
+                    dbs[i].setTransactionSuccessful();
+                }
+                dbs[i].endTransaction();
+            }
+        } finally {
+            if (outermost) {
+                final Set<Uri> changes = mBatchChanges.get();
+                mBatchChanges.remove();
+                if (successful) {
+                    for (final Uri uri : changes) {
+                        commitChange(uri, mSequence.incrementAndGet());
+                    }
+                }
+                if (successful && !changes.isEmpty()) {
+                    // a single change keeps its key, otherwise observers query the module
+                    final Uri uri = changes.size() == 1 ? changes.iterator().next()
+                            : commonUri(changes);
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * records the sequence number of the change of the item in the changes table, replacing the
+     * previous change of the item
+     */
+    private void logChange(final SQLiteDatabase db, final ContentValues values,
+            final long sequence) {
+        final ContentValues change = new ContentValues();
+        change.put(TrayDBHelper.MODULE,
+                values.getAsString(TrayContract.Preferences.Columns.MODULE));
+        change.put(TrayDBHelper.KEY, values.getAsString(TrayContract.Preferences.Columns.KEY));
+        change.put(TrayDBHelper.SEQUENCE, sequence);
+        db.insertOrThrow(TrayDBHelper.CHANGES_TABLE_NAME, null, change);
+    }
+
+    /**
+     * removes the recorded changes of deleted items, they are not reported to observers
+     */
+    private void removeChanges(final SQLiteDatabase db, final Uri uri, final boolean singleItem) {
+        if (!TrayDBHelper.TABLE_NAME.equals(getTable(uri))) {
+            return;
+        }
+        if (singleItem) {
+            db.delete(TrayDBHelper.CHANGES_TABLE_NAME,
+                    TrayDBHelper.MODULE + " = ? AND " + TrayDBHelper.KEY + " = ?",
+                    new String[]{uri.getPathSegments().get(1), uri.getPathSegments().get(2)});
+        } else {
+            db.execSQL("DELETE FROM " + TrayDBHelper.CHANGES_TABLE_NAME
+                    + " WHERE NOT EXISTS (SELECT 1 FROM " + TrayDBHelper.TABLE_NAME + " p"
+                    + " WHERE p." + TrayDBHelper.MODULE + " = "
+                    + TrayDBHelper.CHANGES_TABLE_NAME + "." + TrayDBHelper.MODULE
+                    + " AND p." + TrayDBHelper.KEY + " = "
+                    + TrayDBHelper.CHANGES_TABLE_NAME + "." + TrayDBHelper.KEY + ")");
+        }
+    }
+
+    /**
+     * queries the current data of the items of the module changed after the given sequence
+     * number, in the order of their last change. The rows have the columns of the preferences
+     * table and {@link TrayContract.Preferences.Columns#SEQUENCE}. Deleted items are not
+     * included. Without a backup parameter both databases are queried.
+     */
+    private Cursor queryChanges(final Uri uri, final String since) {
+        try {
+            Long.parseLong(since);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid sequence number in Uri: " + uri);
+        }
+        final String sql = "SELECT p.*, c." + TrayDBHelper.SEQUENCE
+                + " FROM " + TrayDBHelper.TABLE_NAME + " p"
+                + " INNER JOIN " + TrayDBHelper.CHANGES_TABLE_NAME + " c"
+                + " ON p." + TrayDBHelper.MODULE + " = c." + TrayDBHelper.MODULE
+                + " AND p." + TrayDBHelper.KEY + " = c." + TrayDBHelper.KEY
+                + " WHERE c." + TrayDBHelper.MODULE + " = ?"
+                + " AND c." + TrayDBHelper.SEQUENCE + " > ?"
+                + " ORDER BY c." + TrayDBHelper.SEQUENCE;
+        final String[] args = {uri.getPathSegments().get(1), since};
+        if (uri.getQueryParameter("backup") == null) {
+            return new MergeCursor(new Cursor[]{
+                    mUserDbHelper.getReadableDatabase().rawQuery(sql, args),
+                    mDeviceDbHelper.getReadableDatabase().rawQuery(sql, args)});
+        }
+        return getWritableDatabase(uri).rawQuery(sql, args);
+    }
+
+    /**
+     * sets the generation of the module changed by the uri, or of all modules for uris without
+     * module, after the change was committed
+     *
+     * @return the generation before the change
+     */
+    private long commitChange(@NonNull final Uri uri, final long sequence) {
+        final List<String> segments = uri.getPathSegments();
+        synchronized (mGenerations) {
+            mCommittedSequence = sequence;
+            if (mChangeCounter != null) {
+                mChangeCounter.set(sequence);
+            }
+            if (segments.size() < 2) {
+                final long previous = mBaseGeneration;
+                mGenerations.clear();
+                mBaseGeneration = sequence;
+                return previous;
+            }
+            final Long previous = mGenerations.put(segments.get(1), sequence);
+            return previous != null ? previous : mBaseGeneration;
+        }
+    }
+
+    /**
+     * notifies the observers of the uri or collects the change when a batch is running
+     */
+    private void notifyChange(final Uri uri) {
+        final Set<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            commitChange(uri, mSequence.incrementAndGet());
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * @return the deepest uri which is equal to or a parent of all given uris. The backup query
+     * parameter is kept when it's the same for all uris.
+     */
+    @VisibleForTesting
+    static Uri commonUri(@NonNull final Collection<Uri> uris) {
+        final Iterator<Uri> iterator = uris.iterator();
+        final Uri first = iterator.next();
+        List<String> segments = first.getPathSegments();
+        String backup = first.getQueryParameter("backup");
+        while (iterator.hasNext()) {
+            final Uri uri = iterator.next();
+            final List<String> other = uri.getPathSegments();
+            int common = 0;
+            while (common < segments.size() && common < other.size()
+                    && segments.get(common).equals(other.get(common))) {
+                common++;
+            }
+            segments = segments.subList(0, common);
+            if (backup != null && !backup.equals(uri.getQueryParameter("backup"))) {
+                backup = null;
+            }
+        }
+
+        final Uri.Builder builder = new Uri.Builder()
+                .scheme(first.getScheme())
+                .encodedAuthority(first.getEncodedAuthority());
+        for (final String segment : segments) {
+            builder.appendPath(segment);
+        }
+        if (backup != null) {
+            builder.appendQueryParameter("backup", backup);
+        }
+        return builder.build();
+    }
+
     /**
      * checks the uri for the backup param. default is that
      *
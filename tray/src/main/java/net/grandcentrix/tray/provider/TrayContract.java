@@ -53,6 +53,11 @@ class TrayContract {
             String UPDATED = TrayDBHelper.UPDATED; // DATE
 
             String MIGRATED_KEY = TrayDBHelper.MIGRATED_KEY;
+
+            /**
+             * sequence number of the last change of the item, only returned by change queries
+             */
+            String SEQUENCE = TrayDBHelper.SEQUENCE;
         }
 
         String BASE_PATH = "preferences";
@@ -38,6 +38,8 @@ public class TrayDBHelper extends SQLiteOpenHelper {
 
     public static final String INTERNAL_TABLE_NAME = "TrayInternal";
 
+    public static final String CHANGES_TABLE_NAME = "TrayChanges";
+
     public static final String DATABASE_NAME = "tray.db";
 
     public static final String DATABASE_NAME_NO_BACKUP = "tray_backup_excluded.db";
@@ -54,6 +56,8 @@ public class TrayDBHelper extends SQLiteOpenHelper {
 
     public static final String MIGRATED_KEY = "MIGRATED_KEY";
 
+    public static final String SEQUENCE = "SEQUENCE";
+
     // TODO add additional meta fields:
     // public static final String APP_VERSION_CODE = "APP_VERSION_CODE";
 
@@ -89,7 +93,27 @@ public class TrayDBHelper extends SQLiteOpenHelper {
             + ")"
             + ");";
 
-    /*package*/ static final int DATABASE_VERSION = 2;
+    /**
+     * the sequence number of the last change of every existing item, lets observers query all
+     * items changed since the last change they have seen
+     */
+    public static final String V3_CREATE_CHANGES_TABLE = "CREATE TABLE "
+            + CHANGES_TABLE_NAME + " ( "
+            + BaseColumns._ID + " INTEGER PRIMARY KEY, "
+            + MODULE + " TEXT, "
+            + KEY + " TEXT NOT NULL, "
+            + SEQUENCE + " INT NOT NULL, "
+            + "UNIQUE ("
+            + MODULE + ", "
+            + KEY
+            + ") ON CONFLICT REPLACE"
+            + ");";
+
+    public static final String V3_CREATE_CHANGES_INDEX = "CREATE INDEX "
+            + CHANGES_TABLE_NAME + "_" + MODULE + "_" + SEQUENCE + " ON "
+            + CHANGES_TABLE_NAME + " (" + MODULE + ", " + SEQUENCE + ");";
+
+    /*package*/ static final int DATABASE_VERSION = 3;
 
     private final int mCreateVersion;
 
@@ -132,7 +156,7 @@ public class TrayDBHelper extends SQLiteOpenHelper {
                 + " to version " + newVersion);
 
         // increase the version here after the upgrade was implemented
-        if (newVersion > 2) {
+        if (newVersion > 3) {
             throw new IllegalStateException(
                     "onUpgrade doesn't support the upgrade to version " + newVersion);
         }
@@ -141,6 +165,13 @@ public class TrayDBHelper extends SQLiteOpenHelper {
             case 1:
                 upgradeToV2(db);
                 TrayLog.v(logTag() + "upgraded Database to version 2");
+                if (newVersion == 2) {
+                    break;
+                }
+                // no break
+            case 2:
+                upgradeToV3(db);
+                TrayLog.v(logTag() + "upgraded Database to version 3");
                 break;
             default:
                 throw new IllegalArgumentException(
@@ -161,4 +192,9 @@ public class TrayDBHelper extends SQLiteOpenHelper {
         db.execSQL(V2_ALTER_PREFERENCES_TABLE);
         db.execSQL(V2_CREATE_INTERNAL_TRAY_TABLE);
     }
+
+    private void upgradeToV3(final SQLiteDatabase db) {
+        db.execSQL(V3_CREATE_CHANGES_TABLE);
+        db.execSQL(V3_CREATE_CHANGES_INDEX);
+    }
 }
@@ -18,11 +18,16 @@ package net.grandcentrix.tray.provider;
 
 import net.grandcentrix.tray.TrayPreferences;
 import net.grandcentrix.tray.core.TrayItem;
+import net.grandcentrix.tray.core.TrayRuntimeException;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.RemoteException;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -51,6 +56,7 @@ public class TrayProviderHelper {
      */
     public void clear() {
         mContext.getContentResolver().delete(mTrayUri.get(), null, null);
+        TrayCache.onChange(mContext, mTrayUri.get());
     }
 
     /**
@@ -74,6 +80,7 @@ public class TrayProviderHelper {
         }
 
         mContext.getContentResolver().delete(mTrayUri.get(), selection, selectionArgs);
+        TrayCache.onChange(mContext, mTrayUri.get());
     }
 
     /**
@@ -86,6 +93,89 @@ public class TrayProviderHelper {
         return queryProvider(mTrayUri.get());
     }
 
+    /**
+     * @param module module name
+     * @return the current generation of the module in the provider, changes with every write to
+     * the module. {@link TrayCache#GENERATION_UNKNOWN} when the provider doesn't support it.
+     */
+    long getGeneration(@NonNull final String module) {
+        final Bundle result = callGetGeneration(module);
+        if (result == null) {
+            return TrayCache.GENERATION_UNKNOWN;
+        }
+        return result.getLong(TrayContentProvider.EXTRA_GENERATION, TrayCache.GENERATION_UNKNOWN);
+    }
+
+    /**
+     * validates the cache of the module against its current generation in the provider
+     *
+     * @return false when the provider doesn't support generations and the cache can't be used
+     */
+    boolean validate(@NonNull final TrayCache cache, @NonNull final String module) {
+        final Bundle result = callGetGeneration(module);
+        if (result == null || !result.containsKey(TrayContentProvider.EXTRA_GENERATION)) {
+            return false;
+        }
+        cache.validate(result.getLong(TrayContentProvider.EXTRA_GENERATION),
+                result.getLong(TrayContentProvider.EXTRA_COMMITTED_SEQUENCE,
+                        TrayCache.GENERATION_UNKNOWN));
+        return true;
+    }
+
+    /**
+     * @param module module name
+     * @return the sequence number of the last change committed by the provider, changes after it
+     * are returned by {@link #queryChanges(Uri, long, List)}. {@code 0} when the provider doesn't
+     * support it.
+     */
+    long getCommittedSequence(@NonNull final String module) {
+        final Bundle result = callGetGeneration(module);
+        if (result == null) {
+            return 0;
+        }
+        return result.getLong(TrayContentProvider.EXTRA_COMMITTED_SEQUENCE, 0);
+    }
+
+    /**
+     * queries the current data of the items of a module changed after the given sequence number
+     * with a single query. Deleted items are not included.
+     *
+     * @param moduleUri uri of the module, with the type to query
+     * @param since     sequence number of the last change already seen
+     * @param items     receives the changed items in the order of their last change
+     * @return the sequence number of the last returned change, {@code since} when nothing changed
+     */
+    long queryChanges(@NonNull final Uri moduleUri, final long since,
+            @NonNull final List<TrayItem> items) {
+        final Uri uri = moduleUri.buildUpon()
+                .appendQueryParameter(TrayContentProvider.PARAM_SINCE, String.valueOf(since))
+                .build();
+        final Cursor cursor = mContext.getContentResolver().query(uri, null, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException(
+                    "could not access stored data with uri " + uri
+                            + ". Is the provider registered in the manifest of your application?");
+        }
+        long last = since;
+        try {
+            final int sequenceColumn = cursor.getColumnIndexOrThrow(
+                    TrayContract.Preferences.Columns.SEQUENCE);
+            while (cursor.moveToNext()) {
+                items.add(cursorToTrayItem(cursor));
+                // both databases are ordered on their own when queried together
+                last = Math.max(last, cursor.getLong(sequenceColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return last;
+    }
+
+    @Nullable
+    private Bundle callGetGeneration(@NonNull final String module) {
+        return mContext.getContentResolver().call(mTrayUri.get(),
+                TrayContentProvider.METHOD_GET_GENERATION, module, null);
+    }
 
     /**
      * saves the value into the database.
@@ -125,7 +215,28 @@ public class TrayProviderHelper {
         ContentValues values = new ContentValues();
         values.put(TrayContract.Preferences.Columns.VALUE, value);
         values.put(TrayContract.Preferences.Columns.MIGRATED_KEY, previousKey);
-        mContext.getContentResolver().insert(uri, values);
+        final Uri changeUri = mContext.getContentResolver().insert(uri, values);
+        // invalidates the written key in the cache of this process
+        TrayCache.onChange(mContext, changeUri != null ? changeUri : uri);
+    }
+
+    /**
+     * applies the operations in a single transaction of the provider which sends a single change
+     * notification afterwards
+     *
+     * @param operations inserts and deletes of tray uris
+     * @throws TrayRuntimeException when the operations couldn't be applied
+     */
+    public void applyBatch(@NonNull final ArrayList<ContentProviderOperation> operations) {
+        try {
+            mContext.getContentResolver().applyBatch(mTrayUri.get().getAuthority(), operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new TrayRuntimeException("could not apply " + operations.size()
+                    + " operations", e);
+        }
+        for (final ContentProviderOperation operation : operations) {
+            TrayCache.onChange(mContext, operation.getUri());
+        }
     }
 
     /**
@@ -162,6 +273,7 @@ public class TrayProviderHelper {
     public void wipe() {
         clear();
         mContext.getContentResolver().delete(mTrayUri.getInternal(), null, null);
+        TrayCache.onChange(mContext, mTrayUri.getInternal());
     }
 
     /**